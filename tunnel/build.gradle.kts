@@ -22,6 +22,9 @@ android {
     }
     testOptions.unitTests.all {
         it.testLogging { events(TestLogEvent.PASSED, TestLogEvent.SKIPPED, TestLogEvent.FAILED) }
+        // Benchmarks take a while and only print timings, so they run only when asked for with -Pbenchmarks.
+        if (!providers.gradleProperty("benchmarks").isPresent)
+            it.exclude("**/*Benchmark.class")
     }
     buildTypes {
         all {
@@ -1,8 +1,13 @@
 package org.amnezia.awg;
 
+import java.nio.ByteBuffer;
+
+import androidx.annotation.Keep;
 import androidx.annotation.Nullable;
 
 public class GoBackend {
+    @Nullable private static PeerEventListener peerEventListener;
+
     @Nullable
     public static native String awgGetConfig(int handle);
 
@@ -10,9 +15,33 @@ public class GoBackend {
 
     public static native int awgGetSocketV6(int handle);
 
+    public static native int awgGetRuntimeStats(ByteBuffer stats);
+
+    public static native int awgGetStatistics(int handle, ByteBuffer stats);
+
+    public static native void awgSetMemoryLimit(long limitBytes, int gcPercent);
+
+    public static native int awgSetConfig(int handle, String settings);
+
     public static native void awgTurnOff(int handle);
 
-    public static native int awgTurnOn(String ifName, int tunFd, String settings);
+    public static native int awgTurnOn(String ifName, int tunFd, ByteBuffer settings, int settingsLength);
 
     public static native String awgVersion();
+
+    public static void setPeerEventListener(@Nullable final PeerEventListener listener) {
+        peerEventListener = listener;
+    }
+
+    // Called from native code on a thread owned by the Go runtime.
+    @Keep
+    private static void onPeerEvent(final int handle, final byte[] publicKey, final int event) {
+        final PeerEventListener listener = peerEventListener;
+        if (listener != null)
+            listener.onPeerEvent(handle, publicKey, event);
+    }
+
+    public interface PeerEventListener {
+        void onPeerEvent(int handle, byte[] publicKey, int event);
+    }
 }
@@ -6,6 +6,7 @@
 package org.amnezia.awg.backend;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
@@ -17,19 +18,25 @@ import org.amnezia.awg.config.Config;
 import org.amnezia.awg.crypto.Key;
 import org.amnezia.awg.util.NonNullForAll;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import androidx.annotation.Nullable;
 
@@ -40,15 +47,20 @@ import androidx.annotation.Nullable;
 
 @NonNullForAll
 public final class AwgQuickBackend implements Backend {
+    private static final long RUNNING_TUNNEL_NAMES_MAX_AGE_MILLIS = 10_000;
     private static final String TAG = "AmneziaWG/AwgQuickBackend";
     private final File localTemporaryDir;
     private final RootShell rootShell;
     private final Map<Tunnel, Config> runningConfigs = new HashMap<>();
+    private final Object runningTunnelNamesLock = new Object();
     private final ToolsInstaller toolsInstaller;
+    private final StateTransitionQueue transitions = new StateTransitionQueue();
     private boolean multipleTunnels;
     @Nullable private Thread statusThread;
     @Nullable private StatusCallback statusCallback;
     @Nullable private Tunnel currentTunnel;
+    @Nullable private Set<String> runningTunnelNames;
+    private long runningTunnelNamesExpiry;
 
     public AwgQuickBackend(final Context context, final RootShell rootShell, final ToolsInstaller toolsInstaller) {
         localTemporaryDir = new File(context.getCacheDir(), "tmp");
@@ -60,22 +72,67 @@ public final class AwgQuickBackend implements Backend {
         return new File("/sys/module/amneziawg").exists();
     }
 
+    /**
+     * Returns the names of the running tunnels, as last read from {@code awg show interfaces} and
+     * kept up to date by this backend's own transitions. The kernel is asked again once the view
+     * is ten seconds old, or after it was invalidated, to pick up tunnels started or stopped by
+     * other means.
+     */
     @Override
     public Set<String> getRunningTunnelNames() {
+        synchronized (runningTunnelNamesLock) {
+            if (runningTunnelNames != null && SystemClock.elapsedRealtime() < runningTunnelNamesExpiry)
+                return runningTunnelNames;
+            final Set<String> names = queryRunningTunnelNames();
+            if (names != null) {
+                runningTunnelNames = names;
+                runningTunnelNamesExpiry = SystemClock.elapsedRealtime() + RUNNING_TUNNEL_NAMES_MAX_AGE_MILLIS;
+            }
+            // Don't throw an exception here or nothing will show up in the UI.
+            return runningTunnelNames != null ? runningTunnelNames : Collections.emptySet();
+        }
+    }
+
+    /**
+     * Makes the next call to {@link #getRunningTunnelNames()} ask the kernel which tunnels are
+     * running.
+     */
+    @Override
+    public void invalidateState() {
+        synchronized (runningTunnelNamesLock) {
+            runningTunnelNamesExpiry = 0;
+        }
+    }
+
+    @Nullable
+    private Set<String> queryRunningTunnelNames() {
         final List<String> output = new ArrayList<>();
-        // Don't throw an exception here or nothing will show up in the UI.
         try {
             toolsInstaller.ensureToolsAvailable();
-            if (rootShell.run(output, "awg show interfaces") != 0 || output.isEmpty())
+            if (query(output, "awg show interfaces") != 0 || output.isEmpty() || output.get(0).isEmpty())
                 return Collections.emptySet();
         } catch (final Exception e) {
             Log.w(TAG, "Unable to enumerate running tunnels", e);
-            return Collections.emptySet();
+            return null;
         }
         // awg puts all interface names on the same line. Split them into separate elements.
         return Set.of(output.get(0).split(" "));
     }
 
+    private void setRunning(final String name, final boolean running) {
+        synchronized (runningTunnelNamesLock) {
+            // With nothing read yet, the first read will see this transition anyway.
+            if (runningTunnelNames == null)
+                return;
+            final Set<String> names = new HashSet<>(runningTunnelNames);
+            if (running)
+                names.add(name);
+            else
+                names.remove(name);
+            runningTunnelNames = Collections.unmodifiableSet(names);
+        }
+    }
+
     @Override
     public State getState(final Tunnel tunnel) {
         return getRunningTunnelNames().contains(tunnel.getName()) ? State.UP : State.DOWN;
@@ -88,7 +145,7 @@ public final class AwgQuickBackend implements Backend {
         }
         final Collection<String> output = new ArrayList<>();
         try {
-            if (rootShell.run(output, String.format("awg show '%s' latest-handshakes", tunnel.getName())) != 0) {
+            if (query(output, String.format("awg show '%s' latest-handshakes", tunnel.getName())) != 0) {
                 Log.e(TAG, "Failed to get latest handshakes");
                 return -2;
             }
@@ -111,6 +168,22 @@ public final class AwgQuickBackend implements Backend {
         return -1;
     }
 
+    /**
+     * Runs a read-only command through the root shell's queue, so that queries made at the same
+     * time, such as the state and statistics of several tunnels, share one round trip.
+     */
+    private int query(final Collection<String> output, final String command) throws Exception {
+        try {
+            return rootShell.runAsync(output, command).get();
+        } catch (final InterruptedException e) {
+            // Keep the status job's interruption visible to its loop.
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
     /**
      * Set a callback to be notified when connection status changes.
      *
@@ -123,8 +196,10 @@ public final class AwgQuickBackend implements Backend {
     /**
      * Launch a background thread to poll handshake status and determine connection state.
      * This is called after tunnel creation to wait for the first successful handshake.
+     *
+     * @param trace The bring-up trace that the first handshake is recorded into.
      */
-    private void launchStatusJob() {
+    private void launchStatusJob(final BringUpTrace trace) {
         stopStatusJob();
         Log.d(TAG, "Launch status job");
         statusThread = new Thread(() -> {
@@ -152,6 +227,7 @@ public final class AwgQuickBackend implements Backend {
                 // -1 may be returned if unable to parse output (doesn't mean no connection)
                 // -2 indicates command execution error (also doesn't mean no connection)
                 if (lastHandshake > 0L) {
+                    Log.i(TAG, "First handshake detected after " + trace.end(BringUpTrace.Phase.FIRST_HANDSHAKE) + " ms");
                     if (statusCallback != null) {
                         statusCallback.onStatusChanged(true);
                     }
@@ -186,7 +262,7 @@ public final class AwgQuickBackend implements Backend {
         final Statistics stats = new Statistics();
         final Collection<String> output = new ArrayList<>();
         try {
-            if (rootShell.run(output, String.format("awg show '%s' dump", tunnel.getName())) != 0)
+            if (query(output, String.format("awg show '%s' dump", tunnel.getName())) != 0)
                 return stats;
         } catch (final Exception ignored) {
             return stats;
@@ -215,6 +291,11 @@ public final class AwgQuickBackend implements Backend {
         multipleTunnels = on;
     }
 
+    @Override
+    public CompletableFuture<State> setStateAsync(final Tunnel tunnel, final State state, @Nullable final Config config) {
+        return transitions.submit(tunnel, () -> setState(tunnel, state, config));
+    }
+
     @Override
     public State setState(final Tunnel tunnel, State state, @Nullable final Config config) throws Exception {
         final State originalState = getState(tunnel);
@@ -274,24 +355,42 @@ public final class AwgQuickBackend implements Backend {
 
         Objects.requireNonNull(config, "Trying to set state up with a null config");
 
+        final BringUpTrace trace = BringUpTrace.begin(tunnel.getName());
         final File tempFile = new File(localTemporaryDir, tunnel.getName() + ".conf");
-        try (final FileOutputStream stream = new FileOutputStream(tempFile, false)) {
-            stream.write(config.toAwgQuickString().getBytes(StandardCharsets.UTF_8));
+        try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tempFile, false), StandardCharsets.UTF_8))) {
+            // awg-quick does not know ExcludedIPs.
+            config.appendAwgQuickString(writer, true);
         }
+        if (state == State.UP)
+            trace.end(BringUpTrace.Phase.BUILD_CONFIG);
         String command = String.format("awg-quick %s '%s'",
                 state.toString().toLowerCase(Locale.ENGLISH), tempFile.getAbsolutePath());
         if (state == State.UP)
             command = "cat /sys/module/amneziawg/version && " + command;
-        final int result = rootShell.run(null, command);
-        // noinspection ResultOfMethodCallIgnored
-        tempFile.delete();
-        if (result != 0)
+        final int result;
+        try {
+            result = rootShell.run(null, command);
+        } catch (final Exception e) {
+            invalidateState();
+            throw e;
+        } finally {
+            // noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+        if (result != 0) {
+            // awg-quick may have got partway, so the interface could be in either state.
+            invalidateState();
             throw new BackendException(Reason.AWG_QUICK_CONFIG_ERROR_CODE, result);
+        }
+        setRunning(tunnel.getName(), state == State.UP);
 
         if (state == State.UP) {
+            trace.end(BringUpTrace.Phase.AWG_QUICK_UP);
+            trace.complete();
             runningConfigs.put(tunnel, config);
             currentTunnel = tunnel;
-            launchStatusJob();
+            launchStatusJob(trace);
         } else {
             stopStatusJob();
             runningConfigs.remove(tunnel);
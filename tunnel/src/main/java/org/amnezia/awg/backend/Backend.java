@@ -9,6 +9,7 @@ import org.amnezia.awg.config.Config;
 import org.amnezia.awg.util.NonNullForAll;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import androidx.annotation.Nullable;
 
@@ -25,6 +26,13 @@ public interface Backend {
      */
     Set<String> getRunningTunnelNames();
 
+    /**
+     * Forget any state cached from the system, such as which tunnels are running, for when it may
+     * have been changed behind this backend's back.
+     */
+    default void invalidateState() {
+    }
+
     /**
      * Get the state of a tunnel.
      *
@@ -75,6 +83,23 @@ public interface Backend {
      */
     Tunnel.State setState(Tunnel tunnel, Tunnel.State state, @Nullable Config config) throws Exception;
 
+    /**
+     * Set the state of a tunnel without blocking the caller, as with
+     * {@link #setState(Tunnel, Tunnel.State, Config)}. Transitions run one at a time in the order
+     * they were requested. A newer request for the same tunnel supersedes an older one that has
+     * not finished, which is then cancelled, and interrupted if it already started.
+     *
+     * @param tunnel The tunnel to control the state of.
+     * @param state  The new state for this tunnel. Must be {@code UP}, {@code DOWN}, or
+     *               {@code TOGGLE}.
+     * @param config The configuration for this tunnel, may be null if state is {@code DOWN}.
+     * @return A future completed with the updated state of the tunnel. Cancelling it with
+     * {@code cancel(true)} abandons the transition, interrupting it if it already started. The
+     * future completes as soon as it is cancelled, while an interrupted transition may still be
+     * unwinding; the next transition for the tunnel does not start until it has.
+     */
+    CompletableFuture<Tunnel.State> setStateAsync(Tunnel tunnel, Tunnel.State state, @Nullable Config config);
+
     /**
      * Set the callback for status changes (e.g. handshake / connection state).
      *
@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.util.Log;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timing of the phases of bringing a tunnel up. Each {@link Backend} starts a trace when it brings a
+ * tunnel up and ends one phase after another; every phase is recorded into a process-wide
+ * histogram with fixed buckets, which can be read with {@link #getHistogram(Phase)} or written to
+ * the log with {@link #dumpToLog()}.
+ */
+@NonNullForAll
+public final class BringUpTrace {
+    /**
+     * Upper bounds (inclusive) of the histogram buckets, in milliseconds. A final bucket counts
+     * everything slower than the last bound.
+     */
+    public static final long[] BUCKET_BOUNDS_MILLIS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000
+    };
+    private static final int BUCKETS = BUCKET_BOUNDS_MILLIS.length + 1;
+    private static final int PHASES = Phase.values().length;
+    private static final AtomicLongArray COUNTS = new AtomicLongArray(PHASES * BUCKETS);
+    private static final AtomicLongArray MAX_MILLIS = new AtomicLongArray(PHASES);
+    private static final AtomicLongArray TOTAL_MILLIS = new AtomicLongArray(PHASES);
+    private static final String TAG = "AmneziaWG/BringUpTrace";
+
+    private final long[] phaseMillis = new long[PHASES];
+    private final long startNanos;
+    private final String tunnelName;
+    private long markNanos;
+
+    private BringUpTrace(final String tunnelName) {
+        this.tunnelName = tunnelName;
+        startNanos = markNanos = System.nanoTime();
+        Arrays.fill(phaseMillis, -1);
+    }
+
+    static BringUpTrace begin(final String tunnelName) {
+        return new BringUpTrace(tunnelName);
+    }
+
+    /**
+     * Get a snapshot of the histogram of a phase.
+     *
+     * @param phase The phase to get the histogram of.
+     * @return {@link Histogram} of all recorded durations of this phase.
+     */
+    public static Histogram getHistogram(final Phase phase) {
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = COUNTS.get(phase.ordinal() * BUCKETS + i);
+            count += counts[i];
+        }
+        return new Histogram(phase, counts, count, TOTAL_MILLIS.get(phase.ordinal()), MAX_MILLIS.get(phase.ordinal()));
+    }
+
+    /**
+     * Write every non-empty histogram to the log, one line per phase.
+     */
+    public static void dumpToLog() {
+        for (final Phase phase : Phase.values()) {
+            final Histogram histogram = getHistogram(phase);
+            if (histogram.count() > 0)
+                Log.i(TAG, histogram.toString());
+        }
+    }
+
+    /**
+     * Discard everything recorded so far.
+     */
+    public static void reset() {
+        for (int i = 0; i < COUNTS.length(); ++i)
+            COUNTS.set(i, 0);
+        for (int i = 0; i < PHASES; ++i) {
+            MAX_MILLIS.set(i, 0);
+            TOTAL_MILLIS.set(i, 0);
+        }
+    }
+
+    private static void record(final Phase phase, final long millis) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket])
+            ++bucket;
+        COUNTS.incrementAndGet(phase.ordinal() * BUCKETS + bucket);
+        TOTAL_MILLIS.addAndGet(phase.ordinal(), millis);
+        long max;
+        while ((max = MAX_MILLIS.get(phase.ordinal())) < millis && !MAX_MILLIS.compareAndSet(phase.ordinal(), max, millis))
+            ;
+    }
+
+    /**
+     * End {@code phase}, which began when the previous phase ended.
+     *
+     * @return the duration of the phase in milliseconds.
+     */
+    long end(final Phase phase) {
+        final long now = System.nanoTime();
+        final long millis = TimeUnit.NANOSECONDS.toMillis(now - markNanos);
+        markNanos = now;
+        phaseMillis[phase.ordinal()] = millis;
+        record(phase, millis);
+        return millis;
+    }
+
+    /**
+     * Record the time since the trace began as {@link Phase#TOTAL}, and log the duration of every
+     * phase of this bring-up. Phases ended afterwards, such as the first handshake, are measured
+     * from this point.
+     */
+    void complete() {
+        markNanos = System.nanoTime();
+        final long millis = TimeUnit.NANOSECONDS.toMillis(markNanos - startNanos);
+        phaseMillis[Phase.TOTAL.ordinal()] = millis;
+        record(Phase.TOTAL, millis);
+        final StringBuilder sb = new StringBuilder("Brought up tunnel ").append(tunnelName).append(':');
+        for (final Phase phase : Phase.values()) {
+            if (phaseMillis[phase.ordinal()] >= 0)
+                sb.append(' ').append(phase.name().toLowerCase(Locale.ENGLISH)).append('=')
+                        .append(phaseMillis[phase.ordinal()]).append("ms");
+        }
+        Log.i(TAG, sb.toString());
+    }
+
+    /**
+     * Phases of bringing a tunnel up. Not every {@link Backend} goes through every phase.
+     */
+    public enum Phase {
+        START_VPN_SERVICE,
+        RESOLVE_ENDPOINTS,
+        BUILD_CONFIG,
+        ESTABLISH,
+        TURN_ON,
+        PROTECT_SOCKETS,
+        AWG_QUICK_UP,
+        TOTAL,
+        FIRST_HANDSHAKE
+    }
+
+    /**
+     * Snapshot of the durations recorded for one phase.
+     *
+     * @param phase       The phase.
+     * @param counts      Number of durations in each bucket of {@link #BUCKET_BOUNDS_MILLIS}, plus
+     *                    one final bucket for anything slower.
+     * @param count       Number of recorded durations.
+     * @param totalMillis Sum of all recorded durations.
+     * @param maxMillis   Longest recorded duration.
+     */
+    public record Histogram(Phase phase, long[] counts, long count, long totalMillis, long maxMillis) {
+        /**
+         * Estimate a percentile as the upper bound of the bucket that contains it.
+         *
+         * @param percentile A value between 0 and 100.
+         * @return The estimate in milliseconds, or 0 if nothing was recorded.
+         */
+        public long percentileMillis(final double percentile) {
+            final long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return i < BUCKET_BOUNDS_MILLIS.length ? Math.min(BUCKET_BOUNDS_MILLIS[i], maxMillis) : maxMillis;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(phase.name().toLowerCase(Locale.ENGLISH));
+            sb.append(": n=").append(count);
+            if (count > 0) {
+                sb.append(" mean=").append(totalMillis / count).append("ms");
+                sb.append(" p50=").append(percentileMillis(50)).append("ms");
+                sb.append(" p90=").append(percentileMillis(90)).append("ms");
+                sb.append(" max=").append(maxMillis).append("ms");
+            }
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] == 0)
+                    continue;
+                sb.append(i < BUCKET_BOUNDS_MILLIS.length ? " <=" + BUCKET_BOUNDS_MILLIS[i] : " >" + BUCKET_BOUNDS_MILLIS[i - 1]);
+                sb.append(':').append(counts[i]);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import org.amnezia.awg.config.Config;
+import org.amnezia.awg.config.DnsCache;
+import org.amnezia.awg.config.InetEndpoint;
+import org.amnezia.awg.config.Peer;
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+import static org.amnezia.awg.GoBackend.awgSetConfig;
+
+/**
+ * Periodically re-resolves the hostname endpoints of a running tunnel's peers, and pushes any
+ * address that changed into the device without restarting it. Checks follow the TTL of the cached
+ * DNS answers, and back off exponentially while the screen is off.
+ */
+@NonNullForAll
+final class EndpointRefresher {
+    private static final long MAX_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final long MAX_SCREEN_OFF_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(2);
+    private static final long MIN_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final String TAG = "AmneziaWG/EndpointRefresher";
+
+    private final Config config;
+    private final ScheduledExecutorService executor;
+    private final int handle;
+    @Nullable private final PowerManager powerManager;
+    // Only accessed from the executor's thread.
+    private final Map<Key, String> pushedEndpoints = new HashMap<>();
+    private int screenOffBackoff = 1;
+    // Guarded by this; once set, the device may be closed and its handle must not be used.
+    private boolean stopped;
+
+    private EndpointRefresher(final Context context, final int handle, final Config config) {
+        this.config = config;
+        this.handle = handle;
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "EndpointRefresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start refreshing the endpoints of the device {@code handle}, which is running {@code config}.
+     *
+     * @return the refresher, or null if no peer has a hostname endpoint.
+     */
+    @Nullable
+    static EndpointRefresher start(final Context context, final int handle, final Config config) {
+        boolean hasHostname = false;
+        for (final Peer peer : config.getPeers())
+            hasHostname |= peer.getEndpoint().map(ep -> !ep.isResolved()).orElse(false);
+        if (!hasHostname)
+            return null;
+        final EndpointRefresher refresher = new EndpointRefresher(context, handle, config);
+        refresher.executor.execute(refresher::initialize);
+        return refresher;
+    }
+
+    /**
+     * Stop refreshing. Once this returns, the device is no longer updated, so it can be closed; an
+     * update already being pushed is waited for, but not a lookup of a hostname.
+     */
+    void stop() {
+        executor.shutdownNow();
+        synchronized (this) {
+            stopped = true;
+        }
+    }
+
+    private void initialize() {
+        // These resolve from the cache filled when the device was configured.
+        for (final Peer peer : config.getPeers()) {
+            final InetEndpoint endpoint = peer.getEndpoint().orElse(null);
+            if (endpoint != null && !endpoint.isResolved())
+                endpoint.getResolved().ifPresent(resolved -> pushedEndpoints.put(peer.getPublicKey(), resolved.toString()));
+        }
+        schedule();
+    }
+
+    private void refresh() {
+        final Map<Key, String> moved = new HashMap<>();
+        final StringBuilder sb = new StringBuilder();
+        for (final Peer peer : config.getPeers()) {
+            final InetEndpoint endpoint = peer.getEndpoint().orElse(null);
+            if (endpoint == null || endpoint.isResolved())
+                continue;
+            final InetEndpoint resolved = endpoint.getResolved().orElse(null);
+            if (resolved == null || resolved.toString().equals(pushedEndpoints.get(peer.getPublicKey())))
+                continue;
+            Log.i(TAG, "Endpoint " + endpoint + " moved to " + resolved);
+            sb.append("public_key=").append(peer.getPublicKey().toHex()).append('\n');
+            sb.append("update_only=true\n");
+            sb.append("endpoint=").append(resolved).append('\n');
+            moved.put(peer.getPublicKey(), resolved.toString());
+        }
+        if (!moved.isEmpty()) {
+            synchronized (this) {
+                if (stopped)
+                    return;
+                // Endpoints that couldn't be pushed are tried again on the next refresh.
+                if (awgSetConfig(handle, sb.toString()) < 0)
+                    Log.w(TAG, "Unable to update endpoints");
+                else
+                    pushedEndpoints.putAll(moved);
+            }
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        long delay = MAX_INTERVAL_MILLIS;
+        for (final Peer peer : config.getPeers()) {
+            final InetEndpoint endpoint = peer.getEndpoint().orElse(null);
+            if (endpoint == null || endpoint.isResolved())
+                continue;
+            final long ttl = DnsCache.getDefault().getRemainingTtlMillis(endpoint.getHost());
+            delay = Math.min(delay, ttl < 0 ? MIN_INTERVAL_MILLIS : ttl);
+        }
+        delay = Math.max(delay, MIN_INTERVAL_MILLIS);
+        if (powerManager != null && !powerManager.isInteractive()) {
+            delay = Math.min(delay * screenOffBackoff, MAX_SCREEN_OFF_INTERVAL_MILLIS);
+            screenOffBackoff = Math.min(screenOffBackoff * 2, 64);
+        } else {
+            screenOffBackoff = 1;
+        }
+        if (!executor.isShutdown())
+            executor.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+    }
+}
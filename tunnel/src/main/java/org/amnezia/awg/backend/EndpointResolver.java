@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.amnezia.awg.backend.BackendException.Reason;
+import org.amnezia.awg.config.Config;
+import org.amnezia.awg.config.InetEndpoint;
+import org.amnezia.awg.config.Peer;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the endpoints of a {@link Config}'s peers before a tunnel is brought up. All endpoints
+ * are resolved concurrently, each one retried with exponential backoff until it resolves or the
+ * deadline passes, and resolution finishes as soon as the last endpoint has resolved.
+ */
+@NonNullForAll
+public final class EndpointResolver {
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+    private static final int MAX_THREADS = 8;
+    private static final String TAG = "AmneziaWG/EndpointResolver";
+
+    private EndpointResolver() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Resolve every peer endpoint in {@code config}, so that the resolved addresses are cached
+     * when the userspace configuration string is built. This blocks, so it must not be called
+     * from the main thread.
+     *
+     * @param config        the configuration whose endpoints should be resolved
+     * @param timeoutMillis how long each endpoint may take, including retries
+     * @return how long resolution took
+     * @throws BackendException with {@link Reason#DNS_RESOLUTION_FAILURE} naming the first host
+     *                          that did not resolve in time
+     */
+    static Timing resolve(final Config config, final long timeoutMillis)
+            throws BackendException, InterruptedException {
+        final Set<InetEndpoint> endpoints = new LinkedHashSet<>();
+        for (final Peer peer : config.getPeers())
+            peer.getEndpoint().ifPresent(endpoints::add);
+        final long start = SystemClock.elapsedRealtime();
+        if (endpoints.isEmpty())
+            return new Timing(0, Collections.emptyMap(), 0);
+
+        final long deadline = start + timeoutMillis;
+        final AtomicInteger attempts = new AtomicInteger();
+        final Map<String, Long> endpointMillis = new LinkedHashMap<>();
+        final Map<Future<Long>, InetEndpoint> pending = new HashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(endpoints.size(), MAX_THREADS));
+        final CompletionService<Long> completion = new ExecutorCompletionService<>(executor);
+        try {
+            for (final InetEndpoint endpoint : endpoints)
+                pending.put(completion.submit(() -> resolve(endpoint, deadline, attempts)), endpoint);
+            while (!pending.isEmpty()) {
+                // A lookup can block past the deadline inside the system resolver, so don't wait
+                // for it any longer than its own retries would have.
+                final Future<Long> done = completion.poll(Math.max(deadline - SystemClock.elapsedRealtime(), 0),
+                        TimeUnit.MILLISECONDS);
+                if (done == null)
+                    throw new BackendException(Reason.DNS_RESOLUTION_FAILURE,
+                            pending.values().iterator().next().getHost());
+                final InetEndpoint endpoint = pending.remove(done);
+                try {
+                    endpointMillis.put(String.valueOf(endpoint), done.get() - start);
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof BackendException)
+                        throw (BackendException) e.getCause();
+                    throw new BackendException(Reason.DNS_RESOLUTION_FAILURE, endpoint.getHost());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final Timing timing = new Timing(SystemClock.elapsedRealtime() - start,
+                Collections.unmodifiableMap(endpointMillis), attempts.get());
+        Log.i(TAG, "Resolved " + endpoints.size() + " endpoints in " + timing.elapsedMillis() + " ms with "
+                + timing.attempts() + " lookups: " + timing.endpointMillis());
+        return timing;
+    }
+
+    private static long resolve(final InetEndpoint endpoint, final long deadline, final AtomicInteger attempts)
+            throws BackendException, InterruptedException {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        while (true) {
+            attempts.incrementAndGet();
+            if (endpoint.getResolved().isPresent())
+                return SystemClock.elapsedRealtime();
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0)
+                throw new BackendException(Reason.DNS_RESOLUTION_FAILURE, endpoint.getHost());
+            Log.w(TAG, "DNS host \"" + endpoint.getHost() + "\" failed to resolve; trying again");
+            Thread.sleep(Math.min(backoff, remaining));
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Timing of a successful call to {@link #resolve(Config, long)}.
+     *
+     * @param elapsedMillis  time until every endpoint had resolved
+     * @param endpointMillis time until each endpoint resolved, keyed by endpoint
+     * @param attempts       total number of lookups, including retries
+     */
+    public record Timing(long elapsedMillis, Map<String, Long> endpointMillis, int attempts) { }
+}
@@ -16,19 +16,25 @@ import org.amnezia.awg.backend.BackendException.Reason;
 import org.amnezia.awg.backend.Tunnel.State;
 import org.amnezia.awg.util.SharedLibraryLoader;
 import org.amnezia.awg.config.Config;
-import org.amnezia.awg.config.InetEndpoint;
 import org.amnezia.awg.config.InetNetwork;
+import org.amnezia.awg.config.Interface;
 import org.amnezia.awg.config.Peer;
+import org.amnezia.awg.config.PrefixTrie;
+import org.amnezia.awg.config.UapiBuffer;
 import org.amnezia.awg.crypto.Key;
 import org.amnezia.awg.crypto.KeyFormatException;
+import org.amnezia.awg.crypto.KeyTable;
 import org.amnezia.awg.util.NonNullForAll;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -43,16 +49,30 @@ import static org.amnezia.awg.GoBackend.*;
  */
 @NonNullForAll
 public final class GoBackend implements Backend {
-    private static final int DNS_RESOLUTION_RETRIES = 10;
+    private static final long DNS_RESOLUTION_TIMEOUT_MILLIS = 10000;
+    // Public key, rx bytes, tx bytes and latest handshake in epoch milliseconds.
+    private static final int STATISTICS_RECORD_SIZE = 32 + 3 * 8;
     private static final String TAG = "AmneziaWG/GoBackend";
     @Nullable private static AlwaysOnCallback alwaysOnCallback;
-    private static GhettoCompletableFuture<VpnService> vpnService = new GhettoCompletableFuture<>();
+    private static CompletableFuture<VpnService> vpnService = new CompletableFuture<>();
     private final Context context;
+    private final StateTransitionQueue transitions = new StateTransitionQueue();
     @Nullable private Config currentConfig;
     @Nullable private Tunnel currentTunnel;
+    @Nullable private EndpointRefresher endpointRefresher;
+    @Nullable private EndpointResolver.Timing lastEndpointResolution;
     private int currentTunnelHandle = -1;
-    @Nullable private Thread statusThread;
+    private volatile int sendBatchSize;
     @Nullable private StatusCallback statusCallback;
+    // Peers with a live session, as reported by the native library. Also guards the handoff of
+    // currentTunnelHandle, since events can arrive as soon as the device is up.
+    private final Set<Key> livePeers = new HashSet<>();
+    // Waiting for the first handshake of the current tunnel; guarded by livePeers.
+    @Nullable private BringUpTrace handshakeTrace;
+    private final Object statisticsLock = new Object();
+    private final KeyTable statisticsKeys = new KeyTable();
+    @Nullable private Config statisticsKeysConfig;
+    @Nullable private ByteBuffer statisticsBuffer;
 
     /**
      * Public constructor for GoBackend.
@@ -62,6 +82,7 @@ public final class GoBackend implements Backend {
     public GoBackend(final Context context) {
         SharedLibraryLoader.loadSharedLibrary(context, "wg-go");
         this.context = context;
+        org.amnezia.awg.GoBackend.setPeerEventListener(this::onPeerEvent);
     }
 
     /**
@@ -74,7 +95,34 @@ public final class GoBackend implements Backend {
         alwaysOnCallback = cb;
     }
 
+    /**
+     * Set the soft memory limit and GC target of the Go runtime. They apply to the whole process
+     * and stay in effect until changed, across tunnels being brought up and down.
+     *
+     * @param limitBytes Soft limit on the memory used by the runtime, or 0 for no limit. The
+     *                   runtime collects more often as it nears the limit rather than failing.
+     * @param gcPercent  Heap growth, as a percentage of live heap, that triggers a collection; 100
+     *                   is the default and a negative value turns collection off below the limit.
+     */
+    public void setMemoryLimit(final long limitBytes, final int gcPercent) {
+        awgSetMemoryLimit(limitBytes, gcPercent);
+    }
 
+    /**
+     * Limit the number of packets handed to the kernel in each send. The native bind batches sends
+     * with sendmmsg and UDP segmentation offload where the kernel supports them; a smaller batch
+     * lowers burst sizes, and 1 sends every packet on its own. Applies to the running tunnel
+     * immediately and to tunnels brought up later.
+     *
+     * @param batchSize Most packets per send, or 0 for the bind's own batch size.
+     */
+    public void setSendBatchSize(final int batchSize) {
+        sendBatchSize = batchSize;
+        synchronized (livePeers) {
+            if (currentTunnelHandle != -1)
+                awgSetConfig(currentTunnelHandle, "batch_size=" + Math.max(batchSize, 0) + '\n');
+        }
+    }
 
     /**
      * Method to get the names of running tunnels.
@@ -113,6 +161,68 @@ public final class GoBackend implements Backend {
         final Statistics stats = new Statistics();
         if (tunnel != currentTunnel || currentTunnelHandle == -1)
             return stats;
+        if (readStatistics(stats))
+            return stats;
+        return parseStatistics(stats);
+    }
+
+    /**
+     * Fill {@code stats} from the fixed-size per-peer records written by {@link
+     * org.amnezia.awg.GoBackend#awgGetStatistics}, which avoids serializing the whole device
+     * configuration to text on every poll.
+     *
+     * @return false if the native side could not provide the records.
+     */
+    private boolean readStatistics(final Statistics stats) {
+        synchronized (statisticsLock) {
+            final Config config = currentConfig;
+            if (config == null)
+                return false;
+            if (statisticsKeysConfig != config) {
+                statisticsKeys.clear();
+                for (final Peer peer : config.getPeers())
+                    statisticsKeys.add(peer.getPublicKey());
+                statisticsKeysConfig = config;
+            }
+            int peers = -1;
+            for (int attempt = 0; attempt < 2; ++attempt) {
+                final int capacity = Math.max(peers, config.getPeers().size());
+                if (statisticsBuffer == null || statisticsBuffer.capacity() < capacity * STATISTICS_RECORD_SIZE) {
+                    statisticsBuffer = ByteBuffer.allocateDirect(Math.max(capacity, 1) * STATISTICS_RECORD_SIZE)
+                            .order(ByteOrder.nativeOrder());
+                }
+                peers = awgGetStatistics(currentTunnelHandle, statisticsBuffer);
+                if (peers < 0)
+                    return false;
+                if (peers * STATISTICS_RECORD_SIZE <= statisticsBuffer.capacity())
+                    break;
+            }
+            final ByteBuffer buffer = Objects.requireNonNull(statisticsBuffer);
+            peers = Math.min(peers, buffer.capacity() / STATISTICS_RECORD_SIZE);
+            for (int i = 0; i < peers; ++i) {
+                final int offset = i * STATISTICS_RECORD_SIZE;
+                final int number = statisticsKeys.indexOf(buffer, offset);
+                final Key key;
+                if (number >= 0) {
+                    key = statisticsKeys.get(number);
+                } else {
+                    final byte[] bytes = new byte[Key.Format.BINARY.getLength()];
+                    for (int j = 0; j < bytes.length; ++j)
+                        bytes[j] = buffer.get(offset + j);
+                    try {
+                        key = Key.fromBytes(bytes);
+                    } catch (final KeyFormatException ignored) {
+                        continue;
+                    }
+                }
+                stats.add(key, buffer.getLong(offset + 32), buffer.getLong(offset + 40),
+                        buffer.getLong(offset + 48));
+            }
+            return true;
+        }
+    }
+
+    private Statistics parseStatistics(final Statistics stats) {
         final String config = awgGetConfig(currentTunnelHandle);
         if (config == null)
             return stats;
@@ -212,65 +322,60 @@ public final class GoBackend implements Backend {
         this.statusCallback = callback;
     }
 
-    /**
-     * Launch a background thread to poll handshake status and determine connection state.
-     * This is called after tunnel creation to wait for the first successful handshake.
-     */
-    private void launchStatusJob() {
-        stopStatusJob();
-        Log.d(TAG, "Launch status job");
-        statusThread = new Thread(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                final long lastHandshake = getLastHandshake(currentTunnel);
-
-                // Check if tunnel is no longer active (race condition protection)
-                if (lastHandshake == -3L) {
-                    Log.d(TAG, "Tunnel is no longer active, stopping status job");
-                    break;
-                }
-
-                // 0 means no handshake yet, wait and retry
-                if (lastHandshake == 0L) {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (final InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                    continue;
-                }
-
-                // Only positive handshake time indicates successful connection
-                // -1 may be returned if unable to parse output (doesn't mean no connection)
-                // -2 indicates command execution error (also doesn't mean no connection)
-                if (lastHandshake > 0L) {
-                    if (statusCallback != null) {
-                        statusCallback.onStatusChanged(true);
-                    }
-                    break;
+    private void onPeerEvent(final int handle, final byte[] publicKey, final int event) {
+        final StatusCallback callback = statusCallback;
+        final StatusCallback.Event[] events = StatusCallback.Event.values();
+        if (callback == null || event < 0 || event >= events.length)
+            return;
+        final Key key;
+        try {
+            key = Key.fromBytes(publicKey);
+        } catch (final KeyFormatException ignored) {
+            return;
+        }
+        final Tunnel tunnel;
+        final boolean connected;
+        synchronized (livePeers) {
+            tunnel = currentTunnel;
+            if (tunnel == null || handle != currentTunnelHandle)
+                return;
+            if (events[event] == StatusCallback.Event.HANDSHAKE_COMPLETED) {
+                livePeers.add(key);
+                if (handshakeTrace != null) {
+                    Log.i(TAG, "First handshake with " + tunnel.getName() + " took "
+                            + handshakeTrace.end(BringUpTrace.Phase.FIRST_HANDSHAKE) + " ms");
+                    handshakeTrace = null;
                 }
+            } else
+                livePeers.remove(key);
+            connected = !livePeers.isEmpty();
+        }
+        Log.d(TAG, "Peer " + key.toBase64() + ": " + events[event]);
+        callback.onStatusEvent(tunnel, key, events[event], connected);
+    }
 
-                // For -1 or -2, retry after delay instead of reporting disconnected
-                try {
-                    Thread.sleep(1000);
-                } catch (final InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-            }
-            statusThread = null;
-        }, "StatusJob");
-        statusThread.start();
+    /**
+     * Get how long peer endpoints took to resolve the last time a tunnel was brought up or
+     * updated.
+     *
+     * @return {@link EndpointResolver.Timing} of the last resolution, or null if none happened yet.
+     */
+    @Nullable
+    public EndpointResolver.Timing getLastEndpointResolution() {
+        return lastEndpointResolution;
     }
 
     /**
-     * Stop the status polling thread if running.
+     * Get a snapshot of the memory use of the Go runtime, which all tunnels of this process share.
+     *
+     * @return {@link GoRuntimeStats} of the runtime, or null if the library could not provide them.
      */
-    private void stopStatusJob() {
-        if (statusThread != null) {
-            statusThread.interrupt();
-            statusThread = null;
-        }
+    @Nullable
+    public GoRuntimeStats getRuntimeStats() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(GoRuntimeStats.FIELDS * 8).order(ByteOrder.nativeOrder());
+        if (awgGetRuntimeStats(buffer) < GoRuntimeStats.FIELDS)
+            return null;
+        return GoRuntimeStats.read(buffer);
     }
 
     /**
@@ -283,6 +388,22 @@ public final class GoBackend implements Backend {
         return awgVersion();
     }
 
+    /**
+     * Change the state of a given {@link Tunnel} on a background thread, superseding any
+     * unfinished change requested earlier for the same tunnel.
+     *
+     * @param tunnel The tunnel to control the state of.
+     * @param state  The new state for this tunnel. Must be {@code UP}, {@code DOWN}, or
+     *               {@code TOGGLE}.
+     * @param config The configuration for this tunnel, may be null if state is {@code DOWN}.
+     * @return {@link CompletableFuture} completed with the {@link State} of the tunnel after state
+     * changes are applied.
+     */
+    @Override
+    public CompletableFuture<State> setStateAsync(final Tunnel tunnel, final State state, @Nullable final Config config) {
+        return transitions.submit(tunnel, () -> setState(tunnel, state, config));
+    }
+
     /**
      * Change the state of a given {@link Tunnel}, optionally applying a given {@link Config}.
      *
@@ -301,11 +422,16 @@ public final class GoBackend implements Backend {
             state = originalState == State.UP ? State.DOWN : State.UP;
         if (state == originalState && tunnel == currentTunnel && config == currentConfig)
             return originalState;
+        if (state == State.UP && originalState == State.UP && config != null && updateInPlace(tunnel, config))
+            return State.UP;
         if (state == State.UP) {
             final Config originalConfig = currentConfig;
             final Tunnel originalTunnel = currentTunnel;
             if (currentTunnel != null)
                 setStateInternal(currentTunnel, null, State.DOWN);
+            // A newer transition that interrupts this one from here on is reported to the caller as
+            // a cancellation straight away, while the catch below may still be restoring the old
+            // tunnel. The newer transition only starts once that restore is done.
             try {
                 setStateInternal(tunnel, config, state);
             } catch (final Exception e) {
@@ -319,6 +445,77 @@ public final class GoBackend implements Backend {
         return getState(tunnel);
     }
 
+    /**
+     * Apply {@code config} to the running tunnel without tearing down the device, so that peers
+     * which did not change keep their sessions. This is only possible when none of the settings
+     * owned by the {@link android.net.VpnService.Builder} changed.
+     *
+     * @return true if the update was applied, false if the tunnel must be recreated instead.
+     */
+    private boolean updateInPlace(final Tunnel tunnel, final Config config) throws Exception {
+        final Config originalConfig = currentConfig;
+        if (tunnel != currentTunnel || originalConfig == null || currentTunnelHandle == -1
+                || requiresTunRebuild(originalConfig, config))
+            return false;
+        lastEndpointResolution = EndpointResolver.resolve(config, DNS_RESOLUTION_TIMEOUT_MILLIS);
+        final String update = config.toAwgUserspaceUpdateString(originalConfig).orElse(null);
+        if (update == null)
+            return false;
+        Log.i(TAG, "Updating tunnel " + tunnel.getName() + " in place");
+        if (!update.isEmpty()) {
+            if (awgSetConfig(currentTunnelHandle, update) < 0) {
+                Log.w(TAG, "Unable to update tunnel " + tunnel.getName() + " in place; recreating it");
+                return false;
+            }
+            // A changed listen port rebinds the sockets, which then need to be protected again.
+            try {
+                final VpnService service = vpnService.get(0, TimeUnit.NANOSECONDS);
+                service.protect(awgGetSocketV4(currentTunnelHandle));
+                service.protect(awgGetSocketV6(currentTunnelHandle));
+            } catch (final TimeoutException ignored) { }
+        }
+        stopEndpointRefresher();
+        endpointRefresher = EndpointRefresher.start(context, currentTunnelHandle, config);
+        synchronized (livePeers) {
+            currentConfig = config;
+            final Set<Key> configuredPeers = new HashSet<>();
+            for (final Peer peer : config.getPeers())
+                configuredPeers.add(peer.getPublicKey());
+            livePeers.retainAll(configuredPeers);
+        }
+        return true;
+    }
+
+    private void stopEndpointRefresher() {
+        if (endpointRefresher != null) {
+            endpointRefresher.stop();
+            endpointRefresher = null;
+        }
+    }
+
+    private static boolean requiresTunRebuild(final Config a, final Config b) {
+        final Interface ia = a.getInterface();
+        final Interface ib = b.getInterface();
+        if (!ia.getAddresses().equals(ib.getAddresses())
+                || !ia.getDnsServers().equals(ib.getDnsServers())
+                || !ia.getDnsSearchDomains().equals(ib.getDnsSearchDomains())
+                || !ia.getExcludedApplications().equals(ib.getExcludedApplications())
+                || !ia.getIncludedApplications().equals(ib.getIncludedApplications())
+                || !ia.getMtu().equals(ib.getMtu()))
+            return true;
+        // The kill-switch decision depends on the number of peers as well as on the routes.
+        if ((a.getPeers().size() == 1) != (b.getPeers().size() == 1))
+            return true;
+        return !getRoutes(a).equals(getRoutes(b));
+    }
+
+    private static List<InetNetwork> getRoutes(final Config config) {
+        final PrefixTrie routes = new PrefixTrie();
+        for (final Peer peer : config.getPeers())
+            routes.addAll(peer.getEffectiveAllowedIps());
+        return routes.toList();
+    }
+
     private void setStateInternal(final Tunnel tunnel, @Nullable final Config config, final State state)
             throws Exception {
         Log.i(TAG, "Bringing tunnel " + tunnel.getName() + ' ' + state);
@@ -330,6 +527,7 @@ public final class GoBackend implements Backend {
             if (VpnService.prepare(context) != null)
                 throw new BackendException(Reason.VPN_NOT_AUTHORIZED);
 
+            final BringUpTrace trace = BringUpTrace.begin(tunnel.getName());
             final VpnService service;
             if (!vpnService.isDone()) {
                 Log.d(TAG, "Requesting to start VpnService");
@@ -344,102 +542,115 @@ public final class GoBackend implements Backend {
                 throw be;
             }
             service.setOwner(this);
+            trace.end(BringUpTrace.Phase.START_VPN_SERVICE);
 
             if (currentTunnelHandle != -1) {
                 Log.w(TAG, "Tunnel already up");
                 return;
             }
 
+            lastEndpointResolution = EndpointResolver.resolve(config, DNS_RESOLUTION_TIMEOUT_MILLIS);
+            trace.end(BringUpTrace.Phase.RESOLVE_ENDPOINTS);
 
-            dnsRetry: for (int i = 0; i < DNS_RESOLUTION_RETRIES; ++i) {
-                // Pre-resolve IPs so they're cached when building the userspace string
-                for (final Peer peer : config.getPeers()) {
-                    final InetEndpoint ep = peer.getEndpoint().orElse(null);
-                    if (ep == null)
-                        continue;
-                    if (ep.getResolved().orElse(null) == null) {
-                        if (i < DNS_RESOLUTION_RETRIES - 1) {
-                            Log.w(TAG, "DNS host \"" + ep.getHost() + "\" failed to resolve; trying again");
-                            Thread.sleep(1000);
-                            continue dnsRetry;
-                        } else
-                            throw new BackendException(Reason.DNS_RESOLUTION_FAILURE, ep.getHost());
-                    }
-                }
-                break;
-            }
-
-            // Build config
-            final String goConfig = config.toAwgUserspaceString();
+            // Build config straight into native memory, which is wiped once the tunnel has read it
+            final UapiBuffer goConfig = new UapiBuffer(4096);
+            try {
+                // The native side only looks for the batch size on the first line.
+                final int batchSize = sendBatchSize;
+                if (batchSize > 0)
+                    goConfig.append("batch_size=").append(Integer.toString(batchSize)).append('\n');
+                config.appendAwgUserspaceString(goConfig);
+                trace.end(BringUpTrace.Phase.BUILD_CONFIG);
 
-            // Create the vpn tunnel with android API
-            final VpnService.Builder builder = service.getBuilder();
-            builder.setSession(tunnel.getName());
+                // Create the vpn tunnel with android API
+                final VpnService.Builder builder = service.getBuilder();
+                builder.setSession(tunnel.getName());
 
-            for (final String excludedApplication : config.getInterface().getExcludedApplications())
-                builder.addDisallowedApplication(excludedApplication);
+                for (final String excludedApplication : config.getInterface().getExcludedApplications())
+                    builder.addDisallowedApplication(excludedApplication);
 
-            for (final String includedApplication : config.getInterface().getIncludedApplications())
-                builder.addAllowedApplication(includedApplication);
+                for (final String includedApplication : config.getInterface().getIncludedApplications())
+                    builder.addAllowedApplication(includedApplication);
 
-            for (final InetNetwork addr : config.getInterface().getAddresses())
-                builder.addAddress(addr.getAddress(), addr.getMask());
+                for (final InetNetwork addr : config.getInterface().getAddresses())
+                    builder.addAddress(addr.getAddress(), addr.getMask());
 
-            for (final InetAddress addr : config.getInterface().getDnsServers())
-                builder.addDnsServer(addr.getHostAddress());
+                for (final InetAddress addr : config.getInterface().getDnsServers())
+                    builder.addDnsServer(addr.getHostAddress());
 
-            for (final String dnsSearchDomain : config.getInterface().getDnsSearchDomains())
-                builder.addSearchDomain(dnsSearchDomain);
+                for (final String dnsSearchDomain : config.getInterface().getDnsSearchDomains())
+                    builder.addSearchDomain(dnsSearchDomain);
 
-            boolean sawDefaultRoute = false;
-            for (final Peer peer : config.getPeers()) {
-                for (final InetNetwork addr : peer.getAllowedIps()) {
-                    if (addr.getMask() == 0)
-                        sawDefaultRoute = true;
-                    builder.addRoute(addr.getAddress(), addr.getMask());
+                // Every route leads into the tunnel, so they are merged across peers to save calls.
+                boolean sawDefaultRoute = false;
+                for (final Peer peer : config.getPeers()) {
+                    for (final InetNetwork addr : peer.getAllowedIps()) {
+                        if (addr.getMask() == 0 && (peer.getExcludedIps().isEmpty() || peer.getEffectiveAllowedIps().contains(addr)))
+                            sawDefaultRoute = true;
+                    }
                 }
-            }
+                for (final InetNetwork route : getRoutes(config))
+                    builder.addRoute(route.getAddress(), route.getMask());
 
-            // "Kill-switch" semantics
-            if (!(sawDefaultRoute && config.getPeers().size() == 1)) {
-                builder.allowFamily(OsConstants.AF_INET);
-                builder.allowFamily(OsConstants.AF_INET6);
-            }
-
-            builder.setMtu(config.getInterface().getMtu().orElse(1280));
+                // "Kill-switch" semantics
+                if (!(sawDefaultRoute && config.getPeers().size() == 1)) {
+                    builder.allowFamily(OsConstants.AF_INET);
+                    builder.allowFamily(OsConstants.AF_INET6);
+                }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
-                builder.setMetered(false);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-                service.setUnderlyingNetworks(null);
+                builder.setMtu(config.getInterface().getMtu().orElse(1280));
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+                    builder.setMetered(false);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                    service.setUnderlyingNetworks(null);
+
+                builder.setBlocking(true);
+                synchronized (livePeers) {
+                    livePeers.clear();
+                    try (final ParcelFileDescriptor tun = builder.establish()) {
+                        if (tun == null)
+                            throw new BackendException(Reason.TUN_CREATION_ERROR);
+                        trace.end(BringUpTrace.Phase.ESTABLISH);
+                        Log.d(TAG, "Go backend " + awgVersion());
+                        currentTunnelHandle = awgTurnOn(tunnel.getName(), tun.detachFd(), goConfig.getBuffer(), goConfig.length());
+                    }
+                    if (currentTunnelHandle < 0)
+                        throw new BackendException(Reason.GO_ACTIVATION_ERROR_CODE, currentTunnelHandle);
+                    trace.end(BringUpTrace.Phase.TURN_ON);
 
-            builder.setBlocking(true);
-            try (final ParcelFileDescriptor tun = builder.establish()) {
-                if (tun == null)
-                    throw new BackendException(Reason.TUN_CREATION_ERROR);
-                Log.d(TAG, "Go backend " + awgVersion());
-                currentTunnelHandle = awgTurnOn(tunnel.getName(), tun.detachFd(), goConfig);
+                    currentTunnel = tunnel;
+                    currentConfig = config;
+                }
+            } finally {
+                goConfig.close();
             }
-            if (currentTunnelHandle < 0)
-                throw new BackendException(Reason.GO_ACTIVATION_ERROR_CODE, currentTunnelHandle);
-
-            currentTunnel = tunnel;
-            currentConfig = config;
 
             service.protect(awgGetSocketV4(currentTunnelHandle));
             service.protect(awgGetSocketV6(currentTunnelHandle));
+            trace.end(BringUpTrace.Phase.PROTECT_SOCKETS);
+            trace.complete();
+            synchronized (livePeers) {
+                // Unless the handshake already completed while the sockets were being protected.
+                if (livePeers.isEmpty())
+                    handshakeTrace = trace;
+            }
 
-            launchStatusJob();
+            endpointRefresher = EndpointRefresher.start(context, currentTunnelHandle, config);
         } else {
             if (currentTunnelHandle == -1) {
                 Log.w(TAG, "Tunnel already down");
                 return;
             }
-            stopStatusJob();
-            int handleToClose = currentTunnelHandle;
-            currentTunnel = null;
-            currentTunnelHandle = -1;
-            currentConfig = null;
+            stopEndpointRefresher();
+            final int handleToClose = currentTunnelHandle;
+            synchronized (livePeers) {
+                livePeers.clear();
+                handshakeTrace = null;
+                currentTunnel = null;
+                currentTunnelHandle = -1;
+                currentConfig = null;
+            }
             awgTurnOff(handleToClose);
             try {
                 vpnService.get(0, TimeUnit.NANOSECONDS).stopSelf();
@@ -457,35 +668,6 @@ public final class GoBackend implements Backend {
         void alwaysOnTriggered();
     }
 
-    // TODO: When we finally drop API 21 and move to API 24, delete this and replace with the ordinary CompletableFuture.
-    private static final class GhettoCompletableFuture<V> {
-        private final LinkedBlockingQueue<V> completion = new LinkedBlockingQueue<>(1);
-        private final FutureTask<V> result = new FutureTask<>(completion::peek);
-
-        public boolean complete(final V value) {
-            final boolean offered = completion.offer(value);
-            if (offered)
-                result.run();
-            return offered;
-        }
-
-        public V get() throws ExecutionException, InterruptedException {
-            return result.get();
-        }
-
-        public V get(final long timeout, final TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException {
-            return result.get(timeout, unit);
-        }
-
-        public boolean isDone() {
-            return !completion.isEmpty();
-        }
-
-        public GhettoCompletableFuture<V> newIncompleteFuture() {
-            return new GhettoCompletableFuture<>();
-        }
-    }
-
     /**
      * {@link android.net.VpnService} implementation for {@link GoBackend}
      */
@@ -507,6 +689,7 @@ public final class GoBackend implements Backend {
             if (owner != null) {
                 final Tunnel tunnel = owner.currentTunnel;
                 if (tunnel != null) {
+                    owner.stopEndpointRefresher();
                     if (owner.currentTunnelHandle != -1)
                         awgTurnOff(owner.currentTunnelHandle);
                     owner.currentTunnel = null;
@@ -515,7 +698,7 @@ public final class GoBackend implements Backend {
                     tunnel.onStateChange(State.DOWN);
                 }
             }
-            vpnService = vpnService.newIncompleteFuture();
+            vpnService = new CompletableFuture<>();
             super.onDestroy();
         }
 
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Snapshot of the memory use of the Go runtime that runs the {@link GoBackend}'s tunnels. The
+ * runtime is shared by the whole process, so these values cover every tunnel at once. Values the
+ * runtime did not report are -1.
+ *
+ * @param heapInUseBytes    Bytes of heap occupied by live and not yet swept objects.
+ * @param heapGoalBytes     Heap size at which the next collection is due.
+ * @param totalMemoryBytes  All memory mapped by the runtime, including stacks and metadata.
+ * @param goroutines        Number of live goroutines.
+ * @param gcCycles          Number of completed collections.
+ * @param gcPauseP50Nanos   Median stop-the-world pause for collection.
+ * @param gcPauseP90Nanos   90th percentile of those pauses.
+ * @param gcPauseP99Nanos   99th percentile of those pauses.
+ * @param gcPauseMaxNanos   Longest of those pauses.
+ * @param memoryLimitBytes  Soft memory limit, or {@link Long#MAX_VALUE} if there is none.
+ * @param gcPercent         GC target as a percentage of live heap, or -1 if collection is off.
+ * @param buffersPerPool    Cap on the entries of each of the device's buffer pools.
+ */
+@NonNullForAll
+public record GoRuntimeStats(long heapInUseBytes, long heapGoalBytes, long totalMemoryBytes, long goroutines,
+                             long gcCycles, long gcPauseP50Nanos, long gcPauseP90Nanos, long gcPauseP99Nanos,
+                             long gcPauseMaxNanos, long memoryLimitBytes, long gcPercent, long buffersPerPool) {
+    static final int FIELDS = 12;
+
+    static GoRuntimeStats read(final ByteBuffer buffer) {
+        final long[] v = new long[FIELDS];
+        for (int i = 0; i < FIELDS; ++i)
+            v[i] = buffer.getLong(i * 8);
+        return new GoRuntimeStats(v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7], v[8], v[9], v[10], v[11]);
+    }
+
+    @Override
+    public String toString() {
+        return "heap=" + heapInUseBytes / 1024 + "KiB" +
+                " goal=" + heapGoalBytes / 1024 + "KiB" +
+                " total=" + totalMemoryBytes / 1024 + "KiB" +
+                " goroutines=" + goroutines +
+                " gc=" + gcCycles +
+                " pause_p50=" + gcPauseP50Nanos / 1000 + "us" +
+                " pause_p90=" + gcPauseP90Nanos / 1000 + "us" +
+                " pause_p99=" + gcPauseP99Nanos / 1000 + "us" +
+                " pause_max=" + gcPauseMaxNanos / 1000 + "us" +
+                " limit=" + (memoryLimitBytes == Long.MAX_VALUE ? "none" : memoryLimitBytes / 1024 + "KiB") +
+                " gogc=" + (gcPercent < 0 ? "off" : String.valueOf(gcPercent)) +
+                " pool_cap=" + buffersPerPool;
+    }
+}
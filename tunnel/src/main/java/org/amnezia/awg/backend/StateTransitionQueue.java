@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import androidx.annotation.VisibleForTesting;
+
+import org.amnezia.awg.backend.Tunnel.State;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the state transitions requested through {@link Backend#setStateAsync} one at a time on a
+ * background thread. A newer transition for a tunnel supersedes the one still pending or running
+ * for it: that one is cancelled, and interrupted if it already started.
+ */
+@NonNullForAll
+final class StateTransitionQueue {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "TunnelStateTransition");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Tunnel, CompletableFuture<State>> pending = new HashMap<>();
+
+    CompletableFuture<State> submit(final Tunnel tunnel, final Callable<State> transition) {
+        final CompletableFuture<State> result = new CompletableFuture<>();
+        final CompletableFuture<State> superseded;
+        synchronized (pending) {
+            superseded = pending.put(tunnel, result);
+        }
+        if (superseded != null)
+            superseded.cancel(true);
+        final Future<?> task = executor.submit(() -> {
+            try {
+                if (!result.isDone())
+                    result.complete(transition.call());
+            } catch (final Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((state, e) -> {
+            // Here rather than in the task, which never runs if it is cancelled before it starts.
+            synchronized (pending) {
+                pending.remove(tunnel, result);
+            }
+            // CompletableFuture.cancel() does not interrupt anything, so forward it to the task.
+            if (result.isCancelled())
+                task.cancel(true);
+        });
+        return result;
+    }
+
+    @VisibleForTesting
+    int pendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+}
@@ -8,10 +8,10 @@ package org.amnezia.awg.backend;
 import android.os.SystemClock;
 
 import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.crypto.KeyTable;
 import org.amnezia.awg.util.NonNullForAll;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import androidx.annotation.Nullable;
 
@@ -21,7 +21,11 @@ import androidx.annotation.Nullable;
 @NonNullForAll
 public class Statistics {
     public record PeerStats(long rxBytes, long txBytes, long latestHandshakeEpochMillis) { }
-    private final Map<Key, PeerStats> stats = new HashMap<>();
+    // Numbers peers, indexing the arrays below.
+    private final KeyTable keys = new KeyTable();
+    private long[] latestHandshakes = new long[8];
+    private long[] rxBytes = new long[8];
+    private long[] txBytes = new long[8];
     private long lastTouched = SystemClock.elapsedRealtime();
 
     Statistics() {
@@ -39,7 +43,15 @@ public class Statistics {
      *                          referenced by the provided {@link Key}. The value is in epoch milliseconds.
      */
     void add(final Key key, final long rxBytes, final long txBytes, final long latestHandshake) {
-        stats.put(key, new PeerStats(rxBytes, txBytes, latestHandshake));
+        final int number = keys.add(key);
+        if (number == this.rxBytes.length) {
+            this.rxBytes = Arrays.copyOf(this.rxBytes, number * 2);
+            this.txBytes = Arrays.copyOf(this.txBytes, number * 2);
+            latestHandshakes = Arrays.copyOf(latestHandshakes, number * 2);
+        }
+        this.rxBytes[number] = rxBytes;
+        this.txBytes[number] = txBytes;
+        latestHandshakes[number] = latestHandshake;
         lastTouched = SystemClock.elapsedRealtime();
     }
 
@@ -60,7 +72,10 @@ public class Statistics {
      */
     @Nullable
     public PeerStats peer(final Key peer) {
-        return stats.get(peer);
+        final int number = keys.indexOf(peer);
+        if (number < 0)
+            return null;
+        return new PeerStats(rxBytes[number], txBytes[number], latestHandshakes[number]);
     }
 
     /**
@@ -70,7 +85,10 @@ public class Statistics {
      * {@link org.amnezia.config.Peer}s
      */
     public Key[] peers() {
-        return stats.keySet().toArray(new Key[0]);
+        final Key[] peers = new Key[keys.size()];
+        for (int i = 0; i < peers.length; ++i)
+            peers[i] = keys.get(i);
+        return peers;
     }
 
     /**
@@ -80,9 +98,8 @@ public class Statistics {
      */
     public long totalRx() {
         long rx = 0;
-        for (final PeerStats val : stats.values()) {
-            rx += val.rxBytes;
-        }
+        for (int i = 0; i < keys.size(); ++i)
+            rx += rxBytes[i];
         return rx;
     }
 
@@ -93,9 +110,8 @@ public class Statistics {
      */
     public long totalTx() {
         long tx = 0;
-        for (final PeerStats val : stats.values()) {
-            tx += val.txBytes;
-        }
+        for (int i = 0; i < keys.size(); ++i)
+            tx += txBytes[i];
         return tx;
     }
 }
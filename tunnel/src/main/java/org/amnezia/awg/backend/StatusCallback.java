@@ -1,7 +1,9 @@
 package org.amnezia.awg.backend;
 
+import org.amnezia.awg.crypto.Key;
+
 /**
- * Callback for status changes detected by the status polling job.
+ * Callback for status changes reported by a {@link Backend}.
  */
 public interface StatusCallback {
     /**
@@ -10,5 +12,26 @@ public interface StatusCallback {
      * @param connected true if handshake was successful (connected), false if disconnected
      */
     void onStatusChanged(boolean connected);
-}
 
+    /**
+     * Called when the session with a single peer changes. The default implementation forwards to
+     * {@link #onStatusChanged(boolean)}.
+     *
+     * @param tunnel    the tunnel the peer belongs to
+     * @param peer      the public key of the peer
+     * @param event     what happened to the peer's session
+     * @param connected true if the tunnel still has at least one peer with a live session
+     */
+    default void onStatusEvent(final Tunnel tunnel, final Key peer, final Event event, final boolean connected) {
+        onStatusChanged(connected);
+    }
+
+    /**
+     * Changes to a peer's session. The ordinals are shared with the native library.
+     */
+    enum Event {
+        HANDSHAKE_COMPLETED,
+        HANDSHAKE_FAILED,
+        PEER_STALE
+    }
+}
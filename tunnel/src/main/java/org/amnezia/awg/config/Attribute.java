@@ -7,53 +7,152 @@ package org.amnezia.awg.config;
 
 import org.amnezia.awg.util.NonNullForAll;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * A "Key = Value" line of a configuration file. Lines are scanned by hand rather than matched
+ * against a regular expression, as configurations may have tens of thousands of values.
+ */
 @NonNullForAll
 public final class Attribute {
-    private static final Pattern LINE_PATTERN = Pattern.compile("(\\w+)\\s*=\\s*(.*?)\\s*$");
-    private static final Pattern LIST_SEPARATOR = Pattern.compile("\\s*,\\s*");
-
     private final String key;
+    private final String lowerCaseKey;
     private final String value;
 
     private Attribute(final String key, final String value) {
         this.key = key;
         this.value = value;
+        lowerCaseKey = toLowerCase(key);
+    }
+
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    // The characters matched by \s in a regular expression.
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+    }
+
+    // The characters matched by \w in a regular expression.
+    private static boolean isWordCharacter(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
     }
 
     public static String join(final Iterable<?> values) {
-        final Iterator<?> it = values.iterator();
-        if (!it.hasNext()) {
-            return "";
-        }
         final StringBuilder sb = new StringBuilder();
-        sb.append(it.next());
-        while (it.hasNext()) {
-            sb.append(", ");
-            sb.append(it.next());
+        try {
+            appendJoined(sb, values);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
         }
         return sb.toString();
     }
 
+    static void appendJoined(final Appendable out, final Iterable<?> values) throws IOException {
+        final Iterator<?> it = values.iterator();
+        if (!it.hasNext())
+            return;
+        out.append(String.valueOf(it.next()));
+        while (it.hasNext())
+            out.append(", ").append(String.valueOf(it.next()));
+    }
+
+    /**
+     * Parses a line of the form "Key = Value", where the key is made of letters, digits and
+     * underscores, and whitespace around the key, the equals sign and the value is ignored.
+     *
+     * @param line the line to parse, without any comment
+     * @return the attribute, or {@code Optional.empty()} if the line is not of that form
+     */
     public static Optional<Attribute> parse(final CharSequence line) {
-        final Matcher matcher = LINE_PATTERN.matcher(line);
-        if (!matcher.matches())
+        final int length = line.length();
+        int keyEnd = 0;
+        while (keyEnd < length && isWordCharacter(line.charAt(keyEnd)))
+            ++keyEnd;
+        if (keyEnd == 0)
+            return Optional.empty();
+        int equals = keyEnd;
+        while (equals < length && isSpace(line.charAt(equals)))
+            ++equals;
+        if (equals == length || line.charAt(equals) != '=')
             return Optional.empty();
-        return Optional.of(new Attribute(matcher.group(1), matcher.group(2)));
+        int valueStart = equals + 1;
+        while (valueStart < length && isSpace(line.charAt(valueStart)))
+            ++valueStart;
+        int valueEnd = length;
+        while (valueEnd > valueStart && isSpace(line.charAt(valueEnd - 1)))
+            --valueEnd;
+        for (int i = valueStart; i < valueEnd; ++i) {
+            if (isLineTerminator(line.charAt(i)))
+                return Optional.empty();
+        }
+        return Optional.of(new Attribute(line.subSequence(0, keyEnd).toString(),
+                line.subSequence(valueStart, valueEnd).toString()));
     }
 
+    /**
+     * Splits a list value at its commas, dropping whitespace around each comma and any empty
+     * values at the end of the list, like {@link String#split(String)} with {@code "\\s*,\\s*"}.
+     *
+     * @param value the list to split
+     * @return the values of the list
+     */
     public static String[] split(final CharSequence value) {
-        return LIST_SEPARATOR.split(value);
+        final int length = value.length();
+        final List<String> values = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < length; ++i) {
+            if (value.charAt(i) != ',')
+                continue;
+            int end = i;
+            while (end > start && isSpace(value.charAt(end - 1)))
+                --end;
+            values.add(value.subSequence(start, end).toString());
+            start = i + 1;
+            while (start < length && isSpace(value.charAt(start)))
+                ++start;
+            i = start - 1;
+        }
+        if (values.isEmpty())
+            return new String[]{value.toString()};
+        values.add(value.subSequence(start, length).toString());
+        int size = values.size();
+        while (size > 0 && values.get(size - 1).isEmpty())
+            --size;
+        return values.subList(0, size).toArray(new String[0]);
+    }
+
+    private static String toLowerCase(final String key) {
+        for (int i = 0; i < key.length(); ++i) {
+            final char c = key.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                final char[] chars = key.toCharArray();
+                for (int j = i; j < chars.length; ++j) {
+                    if (chars[j] >= 'A' && chars[j] <= 'Z')
+                        chars[j] += 'a' - 'A';
+                }
+                return new String(chars);
+            }
+        }
+        return key;
     }
 
     public String getKey() {
         return key;
     }
 
+    /**
+     * Returns the key in lower case, for matching keys regardless of case.
+     */
+    String getLowerCaseKey() {
+        return lowerCaseKey;
+    }
+
     public String getValue() {
         return value;
     }
@@ -71,6 +71,7 @@ public class BadConfigException extends Exception {
         ALLOWED_IPS("AllowedIPs"),
         DNS("DNS"),
         ENDPOINT("Endpoint"),
+        EXCLUDED_IPS("ExcludedIPs"),
         EXCLUDED_APPLICATIONS("ExcludedApplications"),
         INCLUDED_APPLICATIONS("IncludedApplications"),
         LISTEN_PORT("ListenPort"),
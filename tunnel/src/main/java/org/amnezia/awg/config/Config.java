@@ -8,6 +8,7 @@ package org.amnezia.awg.config;
 import org.amnezia.awg.config.BadConfigException.Location;
 import org.amnezia.awg.config.BadConfigException.Reason;
 import org.amnezia.awg.config.BadConfigException.Section;
+import org.amnezia.awg.crypto.Key;
 import org.amnezia.awg.util.NonNullForAll;
 
 import java.io.BufferedReader;
@@ -17,8 +18,11 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 
 import androidx.annotation.Nullable;
 
@@ -32,6 +36,9 @@ import androidx.annotation.Nullable;
 public final class Config {
     private final Interface interfaze;
     private final List<Peer> peers;
+    // Computed on first use. Instances are immutable, so racing threads compute the same value.
+    // Serialized forms are not kept, since they would hold the private key in a String.
+    private int hashCode;
 
     private Config(final Builder builder) {
         interfaze = Objects.requireNonNull(builder.interfaze, "An [Interface] section is required");
@@ -70,13 +77,19 @@ public final class Config {
         boolean seenInterfaceSection = false;
         @Nullable String line;
         while ((line = reader.readLine()) != null) {
-            final int commentIndex = line.indexOf('#');
-            if (commentIndex != -1)
-                line = line.substring(0, commentIndex);
-            line = line.trim();
-            if (line.isEmpty())
+            // Strip the comment and surrounding whitespace with a single substring, if any.
+            int end = line.indexOf('#');
+            if (end == -1)
+                end = line.length();
+            int start = 0;
+            while (start < end && line.charAt(start) <= ' ')
+                ++start;
+            while (end > start && line.charAt(end - 1) <= ' ')
+                --end;
+            if (start == end)
                 continue;
-            if (line.startsWith("[")) {
+            line = line.substring(start, end);
+            if (line.charAt(0) == '[') {
                 // Consume all [Peer] lines read so far.
                 if (inPeerSection) {
                     builder.parsePeer(peerLines);
@@ -117,6 +130,8 @@ public final class Config {
         if (!(obj instanceof Config))
             return false;
         final Config other = (Config) obj;
+        if (hashCode() != other.hashCode())
+            return false;
         return interfaze.equals(other.interfaze) && peers.equals(other.peers);
     }
 
@@ -140,7 +155,12 @@ public final class Config {
 
     @Override
     public int hashCode() {
-        return 31 * interfaze.hashCode() + peers.hashCode();
+        int hash = hashCode;
+        if (hash == 0) {
+            hash = 31 * interfaze.hashCode() + peers.hashCode();
+            hashCode = hash;
+        }
+        return hash;
     }
 
     /**
@@ -161,13 +181,43 @@ public final class Config {
      * @return the {@code Config} represented as one [Interface] and zero or more [Peer] sections
      */
     public String toAwgQuickString() {
+        return toAwgQuickString(false);
+    }
+
+    /**
+     * Converts the {@code Config} into a string suitable for use as a {@code awg-quick}
+     * configuration file, optionally for a {@code awg-quick} that does not know ExcludedIPs.
+     *
+     * @param applyExcludedIps whether to write each peer's effective allowed IPs, see
+     *                         {@link Peer#getEffectiveAllowedIps()}, instead of both lists
+     * @return the {@code Config} represented as one [Interface] and zero or more [Peer] sections
+     */
+    public String toAwgQuickString(final boolean applyExcludedIps) {
         final StringBuilder sb = new StringBuilder();
-        sb.append("[Interface]\n").append(interfaze.toAwgQuickString());
-        for (final Peer peer : peers)
-            sb.append("\n[Peer]\n").append(peer.toAwgQuickString());
+        try {
+            appendAwgQuickString(sb, applyExcludedIps);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
         return sb.toString();
     }
 
+    /**
+     * Converts the {@code Config} into a {@code awg-quick} configuration file, like
+     * {@link #toAwgQuickString(boolean)}, writing it section by section to {@code out}.
+     *
+     * @param out              where to append the file, typically a {@link java.io.Writer}
+     * @param applyExcludedIps whether to write each peer's effective allowed IPs
+     */
+    public void appendAwgQuickString(final Appendable out, final boolean applyExcludedIps) throws IOException {
+        out.append("[Interface]\n");
+        interfaze.appendAwgQuickString(out);
+        for (final Peer peer : peers) {
+            out.append("\n[Peer]\n");
+            peer.appendAwgQuickString(out, applyExcludedIps);
+        }
+    }
+
     /**
      * Serializes the {@code Config} for use with the AmneziaWG cross-platform userspace API.
      *
@@ -175,13 +225,90 @@ public final class Config {
      */
     public String toAwgUserspaceString() {
         final StringBuilder sb = new StringBuilder();
-        sb.append(interfaze.toAwgUserspaceString());
-        sb.append("replace_peers=true\n");
-        for (final Peer peer : peers)
-            sb.append(peer.toAwgUserspaceString());
+        try {
+            appendAwgUserspaceString(sb);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
         return sb.toString();
     }
 
+    /**
+     * Serializes the {@code Config} for use with the AmneziaWG cross-platform userspace API, like
+     * {@link #toAwgUserspaceString()}. Keys are written to {@code out} character by character, so
+     * that appending to a {@link UapiBuffer} leaves no copy of them in {@link String}s.
+     *
+     * @param out where to append the "key=value" lines
+     */
+    public void appendAwgUserspaceString(final Appendable out) throws IOException {
+        interfaze.appendAwgUserspaceString(out);
+        out.append("replace_peers=true\n");
+        final List<Collection<InetNetwork>> allowedIps = getUserspaceAllowedIps();
+        for (int i = 0; i < peers.size(); ++i)
+            peers.get(i).appendAwgUserspaceString(out, allowedIps.get(i));
+    }
+
+    /**
+     * Merges the allowed IPs of each peer into the fewest networks, so that the device's routing
+     * table stays small. A peer whose allowed IPs overlap those of another peer keeps its own
+     * list, since which of them gets an address depends on the lengths of the prefixes.
+     *
+     * @return the allowed IPs to send for each peer, in the order of {@link #getPeers()}
+     */
+    private List<Collection<InetNetwork>> getUserspaceAllowedIps() {
+        final List<Collection<InetNetwork>> effective = new ArrayList<>(peers.size());
+        final List<PrefixTrie> tries = new ArrayList<>(peers.size());
+        for (final Peer peer : peers) {
+            effective.add(peer.getEffectiveAllowedIps());
+            tries.add(new PrefixTrie(effective.get(effective.size() - 1)));
+        }
+        final List<Collection<InetNetwork>> allowedIps = new ArrayList<>(peers.size());
+        for (int i = 0; i < peers.size(); ++i) {
+            boolean overlaps = false;
+            for (int j = 0; j < peers.size() && !overlaps; ++j) {
+                if (j == i)
+                    continue;
+                for (final InetNetwork network : effective.get(j)) {
+                    if (tries.get(i).overlaps(network)) {
+                        overlaps = true;
+                        break;
+                    }
+                }
+            }
+            allowedIps.add(overlaps ? effective.get(i) : tries.get(i).toList());
+        }
+        return allowedIps;
+    }
+
+    /**
+     * Serializes the changes needed to turn the running configuration {@code previous} into this
+     * one, for use with the AmneziaWG cross-platform userspace API. Unchanged peers are omitted so
+     * that their sessions survive the update.
+     *
+     * @param previous the {@code Config} currently applied to the device
+     * @return the difference represented as a series of "key=value" lines, or
+     * {@code Optional.empty()} if it cannot be applied without recreating the device
+     */
+    public Optional<String> toAwgUserspaceUpdateString(final Config previous) {
+        final Optional<String> interfaceUpdate = interfaze.toAwgUserspaceUpdateString(previous.interfaze);
+        if (!interfaceUpdate.isPresent())
+            return Optional.empty();
+        final StringBuilder sb = new StringBuilder(interfaceUpdate.get());
+        final Map<Key, Peer> previousPeers = new HashMap<>();
+        for (final Peer peer : previous.peers)
+            previousPeers.put(peer.getPublicKey(), peer);
+        final List<Collection<InetNetwork>> allowedIps = getUserspaceAllowedIps();
+        for (int i = 0; i < peers.size(); ++i) {
+            final Peer peer = peers.get(i);
+            final Peer previousPeer = previousPeers.remove(peer.getPublicKey());
+            if (!peer.equals(previousPeer))
+                sb.append(peer.toAwgUserspaceUpdateString(previousPeer, allowedIps.get(i)));
+        }
+        for (final Peer removed : previousPeers.values())
+            sb.append("public_key=").append(removed.getPublicKey().toHex()).append("\nremove=true\n");
+        return Optional.of(sb.toString());
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     public static final class Builder {
         // Defaults to an empty set.
@@ -0,0 +1,244 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.crypto.KeyFormatException;
+import org.amnezia.awg.crypto.KeyPair;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A compact binary form of {@link Config}, for caching parsed configurations. Networks, addresses
+ * and keys are stored as bytes and numbers as numbers, so that reading a {@code Config} back skips
+ * tokenizing and parsing the lists that make up most of a large configuration. The form is private
+ * to one version of this library: anything written by another version is rejected, so that
+ * callers can fall back to the configuration file.
+ */
+@NonNullForAll
+public final class ConfigCodec {
+    private static final int MAGIC = 0x41574743; // "AWGC"
+    private static final int VERSION = 1;
+
+    private ConfigCodec() {
+    }
+
+    /**
+     * Reads a {@code Config} written by {@link #write(Config, DataOutput)}.
+     *
+     * @param in where to read the {@code Config} from
+     * @return the {@code Config}
+     * @throws IOException if the data is truncated, or was written by another version
+     */
+    public static Config read(final DataInput in) throws IOException, BadConfigException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Not a cached configuration of this version");
+        final Config.Builder builder = new Config.Builder().setInterface(readInterface(in));
+        for (int peers = in.readInt(); peers > 0; --peers)
+            builder.addPeer(readPeer(in));
+        return builder.build();
+    }
+
+    private static InetAddress readAddress(final DataInput in) throws IOException {
+        final byte[] bytes = new byte[in.readUnsignedByte()];
+        in.readFully(bytes);
+        return InetAddress.getByAddress(bytes);
+    }
+
+    private static Interface readInterface(final DataInput in) throws IOException, BadConfigException {
+        final Interface.Builder builder = new Interface.Builder();
+        builder.addAddresses(InetNetworkSet.readFrom(in));
+        for (int count = in.readInt(); count > 0; --count)
+            builder.addDnsServer(readAddress(in));
+        builder.addDnsSearchDomains(readStrings(in));
+        builder.excludeApplications(readStrings(in));
+        builder.includeApplications(readStrings(in));
+        builder.setKeyPair(new KeyPair(readKey(in)));
+        if (in.readBoolean())
+            builder.setListenPort(in.readInt());
+        if (in.readBoolean())
+            builder.setMtu(in.readInt());
+        if (in.readBoolean())
+            builder.setJunkPacketCount(in.readInt());
+        if (in.readBoolean())
+            builder.setJunkPacketMinSize(in.readInt());
+        if (in.readBoolean())
+            builder.setJunkPacketMaxSize(in.readInt());
+        if (in.readBoolean())
+            builder.setInitPacketJunkSize(in.readInt());
+        if (in.readBoolean())
+            builder.setResponsePacketJunkSize(in.readInt());
+        if (in.readBoolean())
+            builder.setCookieReplyPacketJunkSize(in.readInt());
+        if (in.readBoolean())
+            builder.setTransportPacketJunkSize(in.readInt());
+        if (in.readBoolean())
+            builder.setInitPacketMagicHeader(in.readUTF());
+        if (in.readBoolean())
+            builder.setResponsePacketMagicHeader(in.readUTF());
+        if (in.readBoolean())
+            builder.setUnderloadPacketMagicHeader(in.readUTF());
+        if (in.readBoolean())
+            builder.setTransportPacketMagicHeader(in.readUTF());
+        if (in.readBoolean())
+            builder.setSpecialJunkI1(in.readUTF());
+        if (in.readBoolean())
+            builder.setSpecialJunkI2(in.readUTF());
+        if (in.readBoolean())
+            builder.setSpecialJunkI3(in.readUTF());
+        if (in.readBoolean())
+            builder.setSpecialJunkI4(in.readUTF());
+        if (in.readBoolean())
+            builder.setSpecialJunkI5(in.readUTF());
+        if (in.readBoolean())
+            builder.setContentPaddingAddition(in.readUTF());
+        if (in.readBoolean())
+            builder.setRekeyAfterTime(in.readUTF());
+        if (in.readBoolean())
+            builder.setRekeyTimeout(in.readUTF());
+        if (in.readBoolean())
+            builder.setRejectAfterTime(in.readUTF());
+        if (in.readBoolean())
+            builder.setKeepaliveTimeout(in.readUTF());
+        if (in.readBoolean())
+            builder.setMaxHandshakeAttempts(in.readUTF());
+        if (in.readBoolean())
+            builder.setRandomTrailers(in.readUTF());
+        if (in.readBoolean())
+            builder.setDisableCookies(in.readUTF());
+        if (in.readBoolean())
+            builder.setHeaderProtectionKey(readKey(in));
+        return builder.build();
+    }
+
+    private static Key readKey(final DataInput in) throws IOException {
+        final byte[] bytes = new byte[Key.Format.BINARY.getLength()];
+        in.readFully(bytes);
+        try {
+            return Key.fromBytes(bytes);
+        } catch (final KeyFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Peer readPeer(final DataInput in) throws IOException, BadConfigException {
+        final Peer.Builder builder = new Peer.Builder();
+        builder.setPublicKey(readKey(in));
+        if (in.readBoolean())
+            builder.setPreSharedKey(readKey(in));
+        if (in.readBoolean())
+            builder.parseEndpoint(in.readUTF());
+        if (in.readBoolean())
+            builder.setPersistentKeepalive(in.readUTF());
+        builder.addAllowedIps(InetNetworkSet.readFrom(in));
+        builder.addExcludedIps(InetNetworkSet.readFrom(in));
+        return builder.build();
+    }
+
+    private static List<String> readStrings(final DataInput in) throws IOException {
+        final int count = in.readInt();
+        final List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            strings.add(in.readUTF());
+        return strings;
+    }
+
+    /**
+     * Writes a {@code Config} in a form that {@link #read(DataInput)} reads back. Note that this
+     * includes the private key.
+     *
+     * @param config the {@code Config} to write
+     * @param out    where to write it
+     */
+    public static void write(final Config config, final DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeInterface(config.getInterface(), out);
+        out.writeInt(config.getPeers().size());
+        for (final Peer peer : config.getPeers())
+            writePeer(peer, out);
+    }
+
+    private static void writeInterface(final Interface interfaze, final DataOutput out) throws IOException {
+        InetNetworkSet.copyOf(interfaze.getAddresses()).writeTo(out);
+        out.writeInt(interfaze.getDnsServers().size());
+        for (final InetAddress dnsServer : interfaze.getDnsServers()) {
+            final byte[] bytes = dnsServer.getAddress();
+            out.writeByte(bytes.length);
+            out.write(bytes);
+        }
+        writeStrings(out, interfaze.getDnsSearchDomains());
+        writeStrings(out, interfaze.getExcludedApplications());
+        writeStrings(out, interfaze.getIncludedApplications());
+        out.write(interfaze.getKeyPair().getPrivateKey().getBytes());
+        writeOptionalInt(out, interfaze.getListenPort());
+        writeOptionalInt(out, interfaze.getMtu());
+        writeOptionalInt(out, interfaze.getJunkPacketCount());
+        writeOptionalInt(out, interfaze.getJunkPacketMinSize());
+        writeOptionalInt(out, interfaze.getJunkPacketMaxSize());
+        writeOptionalInt(out, interfaze.getInitPacketJunkSize());
+        writeOptionalInt(out, interfaze.getResponsePacketJunkSize());
+        writeOptionalInt(out, interfaze.getCookieReplyPacketJunkSize());
+        writeOptionalInt(out, interfaze.getTransportPacketJunkSize());
+        writeOptionalString(out, interfaze.getInitPacketMagicHeader());
+        writeOptionalString(out, interfaze.getResponsePacketMagicHeader());
+        writeOptionalString(out, interfaze.getUnderloadPacketMagicHeader());
+        writeOptionalString(out, interfaze.getTransportPacketMagicHeader());
+        writeOptionalString(out, interfaze.getSpecialJunkI1());
+        writeOptionalString(out, interfaze.getSpecialJunkI2());
+        writeOptionalString(out, interfaze.getSpecialJunkI3());
+        writeOptionalString(out, interfaze.getSpecialJunkI4());
+        writeOptionalString(out, interfaze.getSpecialJunkI5());
+        writeOptionalString(out, interfaze.getContentPaddingAddition());
+        writeOptionalString(out, interfaze.getRekeyAfterTime());
+        writeOptionalString(out, interfaze.getRekeyTimeout());
+        writeOptionalString(out, interfaze.getRejectAfterTime());
+        writeOptionalString(out, interfaze.getKeepaliveTimeout());
+        writeOptionalString(out, interfaze.getMaxHandshakeAttempts());
+        writeOptionalString(out, interfaze.getRandomTrailers());
+        writeOptionalString(out, interfaze.getDisableCookies());
+        out.writeBoolean(interfaze.getHeaderProtectionKey().isPresent());
+        if (interfaze.getHeaderProtectionKey().isPresent())
+            out.write(interfaze.getHeaderProtectionKey().get().getBytes());
+    }
+
+    private static void writeOptionalInt(final DataOutput out, final Optional<Integer> value) throws IOException {
+        out.writeBoolean(value.isPresent());
+        if (value.isPresent())
+            out.writeInt(value.get());
+    }
+
+    private static void writeOptionalString(final DataOutput out, final Optional<String> value) throws IOException {
+        out.writeBoolean(value.isPresent());
+        if (value.isPresent())
+            out.writeUTF(value.get());
+    }
+
+    private static void writePeer(final Peer peer, final DataOutput out) throws IOException {
+        out.write(peer.getPublicKey().getBytes());
+        out.writeBoolean(peer.getPreSharedKey().isPresent());
+        if (peer.getPreSharedKey().isPresent())
+            out.write(peer.getPreSharedKey().get().getBytes());
+        writeOptionalString(out, peer.getEndpoint().map(InetEndpoint::toString));
+        writeOptionalString(out, peer.getPersistentKeepalive());
+        InetNetworkSet.copyOf(peer.getAllowedIps()).writeTo(out);
+        InetNetworkSet.copyOf(peer.getExcludedIps()).writeTo(out);
+    }
+
+    private static void writeStrings(final DataOutput out, final Collection<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (final String string : strings)
+            out.writeUTF(string);
+    }
+}
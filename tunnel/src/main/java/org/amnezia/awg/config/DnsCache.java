@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A process-wide cache of resolved endpoint hostnames, shared by every {@link InetEndpoint} so that
+ * answers survive re-parsing a {@link Config}. Entries live for the TTL reported by the
+ * {@link HostResolver}, and are refreshed in the background shortly before they expire so that
+ * callers rarely block on a lookup. Concurrent lookups of the same host share one query.
+ */
+@NonNullForAll
+public final class DnsCache {
+    // Keep answers for at least this long, even if their TTL is shorter or zero.
+    private static final long MIN_TTL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // Refresh an entry once this fraction of its lifetime has passed.
+    private static final double PREFETCH_FRACTION = 0.9;
+    private static volatile DnsCache defaultCache = new DnsCache(new SystemHostResolver());
+
+    private final LongSupplier clock;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, FutureTask<Entry>> inFlight = new HashMap<>();
+    private final Executor prefetchExecutor;
+    private final HostResolver resolver;
+
+    /**
+     * Create a cache that uses {@code resolver} for lookups.
+     *
+     * @param resolver the resolver used when an entry is missing or about to expire
+     */
+    public DnsCache(final HostResolver resolver) {
+        this(resolver, () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()),
+                Executors.newSingleThreadExecutor(r -> {
+                    final Thread thread = new Thread(r, "DnsCachePrefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+    }
+
+    DnsCache(final HostResolver resolver, final LongSupplier clock, final Executor prefetchExecutor) {
+        this.resolver = resolver;
+        this.clock = clock;
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * Returns the cache used by {@link InetEndpoint#getResolved()}.
+     *
+     * @return the process-wide cache
+     */
+    public static DnsCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the cache used by {@link InetEndpoint#getResolved()}, for example to resolve
+     * through a different {@link HostResolver}.
+     *
+     * @param cache the new process-wide cache
+     */
+    public static void setDefault(final DnsCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Drops every cached answer.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns how much longer the cached answer for {@code host} remains valid.
+     *
+     * @param host a DNS hostname
+     * @return the remaining lifetime in milliseconds, or -1 if no unexpired answer is cached
+     */
+    public synchronized long getRemainingTtlMillis(final String host) {
+        final Entry entry = entries.get(host);
+        final long remaining = entry == null ? -1 : entry.expiresAt - clock.getAsLong();
+        return remaining > 0 ? remaining : -1;
+    }
+
+    /**
+     * Returns the addresses of {@code host}, ordered by preference. IPv4 comes first to work around
+     * DNS64 and IPv6 NAT issues, then the families alternate as in RFC 8305. This only blocks if
+     * there is no unexpired answer in the cache, so it must not be called from the main thread.
+     *
+     * @param host a DNS hostname
+     * @return the candidate addresses, never empty
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    public List<InetAddress> lookup(final String host) throws UnknownHostException {
+        final FutureTask<Entry> task;
+        synchronized (this) {
+            final long now = clock.getAsLong();
+            final Entry entry = entries.get(host);
+            if (entry != null && now < entry.expiresAt) {
+                if (now >= entry.prefetchAt && !inFlight.containsKey(host))
+                    prefetchExecutor.execute(newTask(host));
+                return entry.candidates;
+            }
+            final FutureTask<Entry> pending = inFlight.get(host);
+            task = pending != null ? pending : newTask(host);
+        }
+        task.run();
+        try {
+            return task.get().candidates;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException)
+                throw (UnknownHostException) e.getCause();
+            final UnknownHostException uhe = new UnknownHostException(host);
+            uhe.initCause(e.getCause());
+            throw uhe;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host);
+        }
+    }
+
+    /**
+     * Returns the most preferred address of {@code host}. See {@link #lookup(String)}.
+     *
+     * @param host a DNS hostname
+     * @return the preferred address
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    public InetAddress lookupPreferred(final String host) throws UnknownHostException {
+        return lookup(host).get(0);
+    }
+
+    // Must be called with the lock held.
+    private FutureTask<Entry> newTask(final String host) {
+        final FutureTask<Entry> task = new FutureTask<>(() -> {
+            try {
+                return fetch(host);
+            } finally {
+                synchronized (this) {
+                    inFlight.remove(host);
+                }
+            }
+        });
+        inFlight.put(host, task);
+        return task;
+    }
+
+    private Entry fetch(final String host) throws UnknownHostException {
+        final HostResolver.Result result = resolver.resolve(host);
+        if (result.addresses().isEmpty())
+            throw new UnknownHostException(host);
+        final long ttl = Math.max(MIN_TTL_MILLIS, Math.min(result.ttlMillis(), MAX_TTL_MILLIS));
+        final long now = clock.getAsLong();
+        final Entry entry = new Entry(order(result.addresses()), now + (long) (ttl * PREFETCH_FRACTION), now + ttl);
+        synchronized (this) {
+            for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                if (it.next().expiresAt <= now)
+                    it.remove();
+            }
+            entries.put(host, entry);
+        }
+        return entry;
+    }
+
+    private static List<InetAddress> order(final List<InetAddress> addresses) {
+        final List<InetAddress> v4 = new ArrayList<>();
+        final List<InetAddress> v6 = new ArrayList<>();
+        for (final InetAddress address : addresses)
+            (address instanceof Inet4Address ? v4 : v6).add(address);
+        final List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(v4.size(), v6.size()); ++i) {
+            if (i < v4.size())
+                ordered.add(v4.get(i));
+            if (i < v6.size())
+                ordered.add(v6.get(i));
+        }
+        return Collections.unmodifiableList(ordered);
+    }
+
+    private static final class Entry {
+        final List<InetAddress> candidates;
+        final long expiresAt;
+        final long prefetchAt;
+
+        Entry(final List<InetAddress> candidates, final long prefetchAt, final long expiresAt) {
+            this.candidates = candidates;
+            this.expiresAt = expiresAt;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+}
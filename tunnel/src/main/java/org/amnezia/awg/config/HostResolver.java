@@ -0,0 +1,36 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * Looks up the addresses of a DNS hostname on behalf of {@link DnsCache}. Implementations may
+ * block, and are never called from the main thread by this library.
+ */
+@NonNullForAll
+public interface HostResolver {
+    /**
+     * Resolve {@code host} to its addresses.
+     *
+     * @param host a DNS hostname
+     * @return the addresses of the host and how long they may be cached
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    Result resolve(String host) throws UnknownHostException;
+
+    /**
+     * The answer to a lookup.
+     *
+     * @param addresses the IPv4 and IPv6 addresses of the host, in the order they were received
+     * @param ttlMillis how long the answer may be cached, taken from the records' TTL if known
+     */
+    record Result(List<InetAddress> addresses, long ttlMillis) { }
+}
@@ -7,36 +7,36 @@ package org.amnezia.awg.config;
 
 import org.amnezia.awg.util.NonNullForAll;
 
-import java.lang.reflect.Method;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.regex.Pattern;
 
 import androidx.annotation.Nullable;
 
 /**
  * Utility methods for creating instances of {@link InetAddress}.
+ * <p>
+ * Addresses are parsed by hand, following the rules of {@code inet_pton()} that
+ * {@code android.net.InetAddresses} applies, so parsing never involves the resolver.
  */
 @NonNullForAll
 public final class InetAddresses {
-    @Nullable private static final Method PARSER_METHOD;
-    private static final Pattern WONT_TOUCH_RESOLVER = Pattern.compile("^(((([0-9A-Fa-f]{1,4}:){7}([0-9A-Fa-f]{1,4}|:))|(([0-9A-Fa-f]{1,4}:){6}(:[0-9A-Fa-f]{1,4}|((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3})|:))|(([0-9A-Fa-f]{1,4}:){5}(((:[0-9A-Fa-f]{1,4}){1,2})|:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3})|:))|(([0-9A-Fa-f]{1,4}:){4}(((:[0-9A-Fa-f]{1,4}){1,3})|((:[0-9A-Fa-f]{1,4})?:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:){3}(((:[0-9A-Fa-f]{1,4}){1,4})|((:[0-9A-Fa-f]{1,4}){0,2}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:){2}(((:[0-9A-Fa-f]{1,4}){1,5})|((:[0-9A-Fa-f]{1,4}){0,3}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:){1}(((:[0-9A-Fa-f]{1,4}){1,6})|((:[0-9A-Fa-f]{1,4}){0,4}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(:(((:[0-9A-Fa-f]{1,4}){1,7})|((:[0-9A-Fa-f]{1,4}){0,5}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:)))(%.+)?)|((?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))$");
-    private static final Pattern VALID_HOSTNAME = Pattern.compile("^(?=.{1,255}$)[0-9A-Za-z](?:(?:[0-9A-Za-z]|-){0,61}[0-9A-Za-z])?(?:\\.[0-9A-Za-z](?:(?:[0-9A-Za-z]|-){0,61}[0-9A-Za-z])?)*\\.?$");
+    private InetAddresses() {
+    }
 
-    static {
-        Method m = null;
-        try {
-            if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.Q)
-                // noinspection JavaReflectionMemberAccess
-                m = InetAddress.class.getMethod("parseNumericAddress", String.class);
-        } catch (final Exception ignored) {
-        }
-        PARSER_METHOD = m;
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
     }
 
-    private InetAddresses() {
+    private static boolean isAlphanumeric(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
     }
 
     /**
@@ -46,7 +46,28 @@ public final class InetAddresses {
      * @return whether or not maybeHostname is a valid DNS hostname
      */
     public static boolean isHostname(final CharSequence maybeHostname) {
-        return VALID_HOSTNAME.matcher(maybeHostname).matches();
+        final int length = maybeHostname.length();
+        if (length == 0 || length > 255)
+            return false;
+        int labelStart = 0;
+        for (int i = 0; i <= length; ++i) {
+            if (i < length && maybeHostname.charAt(i) != '.')
+                continue;
+            // A single trailing dot is allowed, and marks the name as fully qualified.
+            if (i == length && labelStart == length && length > 1)
+                break;
+            final int labelLength = i - labelStart;
+            if (labelLength < 1 || labelLength > 63 || !isAlphanumeric(maybeHostname.charAt(labelStart))
+                    || !isAlphanumeric(maybeHostname.charAt(i - 1)))
+                return false;
+            for (int j = labelStart + 1; j < i - 1; ++j) {
+                final char c = maybeHostname.charAt(j);
+                if (!isAlphanumeric(c) && c != '-')
+                    return false;
+            }
+            labelStart = i + 1;
+        }
+        return true;
     }
 
     /**
@@ -56,31 +77,160 @@ public final class InetAddresses {
      * @return an instance of {@link Inet4Address} or {@link Inet6Address}, as appropriate
      */
     public static InetAddress parse(final String address) throws ParseException {
-        if (address.isEmpty())
-            throw new ParseException(InetAddress.class, address, "Empty address");
+        return parse(address, 0, address.length());
+    }
+
+    /**
+     * Parses the numeric address in {@code text} between {@code start} and {@code end}, like
+     * {@link #parse(String)}, without copying it out first.
+     */
+    static InetAddress parse(final String text, final int start, final int end) throws ParseException {
+        if (start == end)
+            throw new ParseException(InetAddress.class, text.substring(start, end), "Empty address");
+        int from = start;
+        int to = end;
+        // IPv6 addresses may be given in brackets, as in URLs.
+        final int colon = text.indexOf(':', from);
+        if (text.charAt(from) == '[' && text.charAt(to - 1) == ']' && colon >= 0 && colon < to) {
+            ++from;
+            --to;
+        }
+        int scope = text.indexOf('%', from);
+        if (scope < 0 || scope >= to)
+            scope = to;
+        @Nullable byte[] bytes = null;
+        if (scope == to)
+            bytes = parseIpv4(text, from, to);
+        if (bytes == null && scope > from && scope != to - 1)
+            bytes = parseIpv6(text, from, scope);
+        if (bytes == null)
+            throw new ParseException(InetAddress.class, text.substring(start, end), "Not an IP address");
         try {
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q)
-                return android.net.InetAddresses.parseNumericAddress(address);
-            else if (PARSER_METHOD != null)
-                return (InetAddress) PARSER_METHOD.invoke(null, address);
-            else
-                throw new NoSuchMethodException("parseNumericAddress");
-        } catch (final IllegalArgumentException e) {
-            throw new ParseException(InetAddress.class, address, e);
-        } catch (final Exception e) {
-            final Throwable cause = e.getCause();
-            // Re-throw parsing exceptions with the original type, as callers might try to catch
-            // them. On the other hand, callers cannot be expected to handle reflection failures.
-            if (cause instanceof IllegalArgumentException)
-                throw new ParseException(InetAddress.class, address, cause);
-            try {
-                if (WONT_TOUCH_RESOLVER.matcher(address).matches())
-                    return InetAddress.getByName(address);
-                else
-                    throw new ParseException(InetAddress.class, address, "Not an IP address");
-            } catch (final UnknownHostException f) {
-                throw new ParseException(InetAddress.class, address, f);
+            if (scope == to)
+                return InetAddress.getByAddress(bytes);
+            final int scopeId = parseScopeId(text, scope + 1, to);
+            if (scopeId >= 0)
+                return Inet6Address.getByAddress(null, bytes, scopeId);
+            // A scope naming an interface; the address is a literal, so this does not resolve it.
+            return InetAddress.getByName(text.substring(from, to));
+        } catch (final UnknownHostException e) {
+            throw new ParseException(InetAddress.class, text.substring(start, end), e);
+        }
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address. Each part is a decimal number up to 255 without leading
+     * zeros, so that no part can be mistaken for octal.
+     *
+     * @return the four bytes of the address, or null if it is not valid
+     */
+    @Nullable
+    static byte[] parseIpv4(final CharSequence text, final int start, final int end) {
+        final byte[] bytes = new byte[4];
+        return parseIpv4(text, start, end, bytes, 0) ? bytes : null;
+    }
+
+    private static boolean parseIpv4(final CharSequence text, final int start, final int end,
+                                     final byte[] bytes, final int offset) {
+        int i = start;
+        for (int part = 0; part < 4; ++part) {
+            if (part > 0) {
+                if (i == end || text.charAt(i) != '.')
+                    return false;
+                ++i;
             }
+            final int partStart = i;
+            int value = 0;
+            while (i < end && i - partStart < 3 && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                if (i > partStart && value == 0)
+                    return false;
+                value = value * 10 + text.charAt(i++) - '0';
+            }
+            if (i == partStart || value > 255)
+                return false;
+            bytes[offset + part] = (byte) value;
+        }
+        return i == end;
+    }
+
+    /**
+     * Parses an IPv6 address: up to eight groups of up to four hex digits, separated by colons,
+     * where one run of zero groups may be written as "::" and the last two groups as an IPv4
+     * address.
+     *
+     * @return the sixteen bytes of the address, or null if it is not valid
+     */
+    @Nullable
+    static byte[] parseIpv6(final CharSequence text, final int start, final int end) {
+        final byte[] bytes = new byte[16];
+        int length = 0;
+        int gap = -1;
+        int i = start;
+        if (i < end && text.charAt(i) == ':') {
+            if (i + 1 == end || text.charAt(i + 1) != ':')
+                return null;
+            ++i;
+        }
+        int groupStart = i;
+        int value = 0;
+        int digits = 0;
+        while (i < end) {
+            final char c = text.charAt(i);
+            final int digit = hexValue(c);
+            if (digit >= 0) {
+                if (++digits > 4)
+                    return null;
+                value = value << 4 | digit;
+            } else if (c == ':') {
+                if (digits == 0) {
+                    if (gap >= 0)
+                        return null;
+                    gap = length;
+                } else {
+                    if (i + 1 == end || length == 16)
+                        return null;
+                    bytes[length++] = (byte) (value >>> 8);
+                    bytes[length++] = (byte) value;
+                    value = 0;
+                    digits = 0;
+                }
+                groupStart = i + 1;
+            } else if (c == '.' && length <= 12 && parseIpv4(text, groupStart, end, bytes, length)) {
+                length += 4;
+                digits = 0;
+                break;
+            } else {
+                return null;
+            }
+            ++i;
+        }
+        if (digits > 0) {
+            if (length == 16)
+                return null;
+            bytes[length++] = (byte) (value >>> 8);
+            bytes[length++] = (byte) value;
+        }
+        if (gap >= 0) {
+            if (length == 16)
+                return null;
+            final int moved = length - gap;
+            System.arraycopy(bytes, gap, bytes, 16 - moved, moved);
+            for (int j = gap; j < 16 - moved; ++j)
+                bytes[j] = 0;
+        } else if (length != 16) {
+            return null;
+        }
+        return bytes;
+    }
+
+    private static int parseScopeId(final CharSequence text, final int start, final int end) {
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9' || i - start > 9)
+                return -1;
+            value = value * 10 + c - '0';
         }
+        return value <= Integer.MAX_VALUE ? (int) value : -1;
     }
 }
@@ -7,15 +7,9 @@ package org.amnezia.awg.config;
 
 import org.amnezia.awg.util.NonNullForAll;
 
-import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.UnknownHostException;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.Optional;
-import java.util.regex.Pattern;
 
 import androidx.annotation.Nullable;
 
@@ -27,14 +21,10 @@ import androidx.annotation.Nullable;
  */
 @NonNullForAll
 public final class InetEndpoint {
-    private static final Pattern BARE_IPV6 = Pattern.compile("^[^\\[\\]]*:[^\\[\\]]*");
-    private static final Pattern FORBIDDEN_CHARACTERS = Pattern.compile("[/?#]");
-
     private final String host;
     private final boolean isResolved;
     private final Object lock = new Object();
     private final int port;
-    private Instant lastResolution = Instant.EPOCH;
     @Nullable private InetEndpoint resolved;
 
     private InetEndpoint(final String host, final boolean isResolved, final int port) {
@@ -43,25 +33,90 @@ public final class InetEndpoint {
         this.port = port;
     }
 
+    /**
+     * Parses a "host:port" endpoint. The host is an IPv4 address, an IPv6 address in brackets, or
+     * a DNS hostname as allowed in URIs.
+     *
+     * @param endpoint the endpoint to parse
+     * @return the endpoint, to be resolved later if the host is a hostname
+     */
     public static InetEndpoint parse(final String endpoint) throws ParseException {
-        if (FORBIDDEN_CHARACTERS.matcher(endpoint).find())
-            throw new ParseException(InetEndpoint.class, endpoint, "Forbidden characters");
-        final URI uri;
-        try {
-            uri = new URI("awg://" + endpoint);
-        } catch (final URISyntaxException e) {
-            throw new ParseException(InetEndpoint.class, endpoint, e);
+        for (int i = 0; i < endpoint.length(); ++i) {
+            final char c = endpoint.charAt(i);
+            if (c == '/' || c == '?' || c == '#')
+                throw new ParseException(InetEndpoint.class, endpoint, "Forbidden characters");
         }
-        if (uri.getPort() < 0 || uri.getPort() > 65535)
+        final int colon = endpoint.lastIndexOf(':');
+        final int portLength = endpoint.length() - colon - 1;
+        if (colon < 0 || portLength == 0 || portLength > 9)
             throw new ParseException(InetEndpoint.class, endpoint, "Missing/invalid port number");
-        try {
-            InetAddresses.parse(uri.getHost());
-            // Parsing ths host as a numeric address worked, so we don't need to do DNS lookups.
-            return new InetEndpoint(uri.getHost(), true, uri.getPort());
-        } catch (final ParseException ignored) {
-            // Failed to parse the host as a numeric address, so it must be a DNS hostname/FQDN.
-            return new InetEndpoint(uri.getHost(), false, uri.getPort());
+        int port = 0;
+        for (int i = colon + 1; i < endpoint.length(); ++i) {
+            final char c = endpoint.charAt(i);
+            if (c < '0' || c > '9')
+                throw new ParseException(InetEndpoint.class, endpoint, "Missing/invalid port number");
+            port = port * 10 + c - '0';
+        }
+        if (port > 65535)
+            throw new ParseException(InetEndpoint.class, endpoint, "Missing/invalid port number");
+        final String host = endpoint.substring(0, colon);
+        if (!host.isEmpty() && host.charAt(0) == '[') {
+            // The brackets are kept, as they were when endpoints were parsed as URIs.
+            if (host.charAt(host.length() - 1) != ']' || host.indexOf(':') < 0)
+                throw new ParseException(InetEndpoint.class, endpoint, "Invalid IPv6 address");
+            InetAddresses.parse(host);
+            return new InetEndpoint(host, true, port);
+        }
+        if (InetAddresses.parseIpv4(host, 0, host.length()) != null)
+            return new InetEndpoint(host, true, port);
+        if (!isUriHostname(host))
+            throw new ParseException(InetEndpoint.class, endpoint, "Invalid hostname");
+        // Failed to parse the host as a numeric address, so it must be a DNS hostname/FQDN.
+        return new InetEndpoint(host, false, port);
+    }
+
+    private static boolean isAlphanumeric(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Checks the host of a server-based URI authority (RFC 2396), as {@link java.net.URI} does:
+     * either four dot-separated numbers up to 255, or dot-separated labels of letters, digits
+     * and inner hyphens where the last of several labels starts with a letter.
+     */
+    private static boolean isUriHostname(final String host) {
+        final int length = host.length();
+        int labelStart = 0;
+        int lastLabelStart = -1;
+        int labels = 0;
+        boolean dottedQuad = true;
+        for (int i = 0; i <= length; ++i) {
+            if (i < length && host.charAt(i) != '.')
+                continue;
+            if (i == length && labelStart == length && labels > 0)
+                break;
+            if (i == labelStart || !isAlphanumeric(host.charAt(labelStart)) || !isAlphanumeric(host.charAt(i - 1)))
+                return false;
+            int value = 0;
+            for (int j = labelStart; j < i; ++j) {
+                final char c = host.charAt(j);
+                if (!isAlphanumeric(c) && c != '-')
+                    return false;
+                if (c < '0' || c > '9')
+                    dottedQuad = false;
+                else
+                    value = Math.min(value * 10 + c - '0', 256);
+            }
+            if (value > 255)
+                dottedQuad = false;
+            lastLabelStart = labelStart;
+            ++labels;
+            labelStart = i + 1;
         }
+        if (dottedQuad && labels == 4 && host.charAt(length - 1) != '.')
+            return true;
+        final char first = host.charAt(lastLabelStart);
+        return labels == 1 || (first >= 'a' && first <= 'z') || (first >= 'A' && first <= 'Z');
     }
 
     @Override
@@ -80,36 +135,36 @@ public final class InetEndpoint {
         return port;
     }
 
+    /**
+     * Returns whether the host is a numeric address rather than a DNS hostname.
+     *
+     * @return true if {@link #getResolved()} never performs a lookup for this endpoint
+     */
+    public boolean isResolved() {
+        return isResolved;
+    }
+
     /**
      * Generate an {@code InetEndpoint} instance with the same port and the host resolved using DNS
      * to a numeric address. If the host is already numeric, the existing instance may be returned.
-     * Because this function may perform network I/O, it must not be called from the main thread.
+     * Lookups go through the shared {@link DnsCache}, but because this function may still perform
+     * network I/O, it must not be called from the main thread.
      *
      * @return the resolved endpoint, or {@link Optional#empty()}
      */
     public Optional<InetEndpoint> getResolved() {
         if (isResolved)
             return Optional.of(this);
+        final InetAddress address;
+        try {
+            address = DnsCache.getDefault().lookupPreferred(host);
+        } catch (final UnknownHostException e) {
+            return Optional.empty();
+        }
         synchronized (lock) {
-            //TODO(zx2c4): Implement a real timeout mechanism using DNS TTL
-            if (Duration.between(lastResolution, Instant.now()).toMinutes() > 1) {
-                try {
-                    // Prefer v4 endpoints over v6 to work around DNS64 and IPv6 NAT issues.
-                    final InetAddress[] candidates = InetAddress.getAllByName(host);
-                    InetAddress address = candidates[0];
-                    for (final InetAddress candidate : candidates) {
-                        if (candidate instanceof Inet4Address) {
-                            address = candidate;
-                            break;
-                        }
-                    }
-                    resolved = new InetEndpoint(address.getHostAddress(), true, port);
-                    lastResolution = Instant.now();
-                } catch (final UnknownHostException e) {
-                    resolved = null;
-                }
-            }
-            return Optional.ofNullable(resolved);
+            if (resolved == null || !resolved.host.equals(address.getHostAddress()))
+                resolved = new InetEndpoint(address.getHostAddress(), true, port);
+            return Optional.of(resolved);
         }
     }
 
@@ -120,7 +175,7 @@ public final class InetEndpoint {
 
     @Override
     public String toString() {
-        final boolean isBareIpv6 = isResolved && BARE_IPV6.matcher(host).matches();
+        final boolean isBareIpv6 = isResolved && host.indexOf(':') >= 0 && host.indexOf('[') < 0 && host.indexOf(']') < 0;
         return (isBareIpv6 ? '[' + host + ']' : host) + ':' + port;
     }
 }
@@ -20,33 +20,31 @@ public final class InetNetwork {
     private final InetAddress address;
     private final int mask;
 
-    private InetNetwork(final InetAddress address, final int mask) {
+    InetNetwork(final InetAddress address, final int mask) {
         this.address = address;
         this.mask = mask;
     }
 
     public static InetNetwork parse(final String network) throws ParseException {
         final int slash = network.lastIndexOf('/');
-        final String maskString;
-        final int rawMask;
-        final String rawAddress;
+        final int addressEnd = slash >= 0 ? slash : network.length();
+        int rawMask = -1;
         if (slash >= 0) {
-            maskString = network.substring(slash + 1);
-            try {
-                rawMask = Integer.parseInt(maskString, 10);
-            } catch (final NumberFormatException ignored) {
-                throw new ParseException(Integer.class, maskString);
+            final int maskLength = network.length() - slash - 1;
+            if (maskLength == 0 || maskLength > 9)
+                throw new ParseException(Integer.class, network.substring(slash + 1));
+            rawMask = 0;
+            for (int i = slash + 1; i < network.length(); ++i) {
+                final char c = network.charAt(i);
+                if (c < '0' || c > '9')
+                    throw new ParseException(Integer.class, network.substring(slash + 1));
+                rawMask = rawMask * 10 + c - '0';
             }
-            rawAddress = network.substring(0, slash);
-        } else {
-            maskString = "";
-            rawMask = -1;
-            rawAddress = network;
         }
-        final InetAddress address = InetAddresses.parse(rawAddress);
+        final InetAddress address = InetAddresses.parse(network, 0, addressEnd);
         final int maxMask = (address instanceof Inet4Address) ? 32 : 128;
         if (rawMask > maxMask)
-            throw new ParseException(InetNetwork.class, maskString, "Invalid network mask");
+            throw new ParseException(InetNetwork.class, network.substring(slash + 1), "Invalid network mask");
         final int mask = rawMask >= 0 ? rawMask : maxMask;
         return new InetNetwork(address, mask);
     }
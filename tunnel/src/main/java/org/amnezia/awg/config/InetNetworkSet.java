@@ -0,0 +1,355 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * An immutable set of {@link InetNetwork}s, packed into primitive arrays: two longs for the
+ * address and a short for the family and mask of each network, instead of a hash table entry, an
+ * {@link InetNetwork} and an {@link InetAddress} with its own arrays. Networks are iterated in the
+ * order they were first added, so that configuration files keep their order, while an index
+ * sorted by address makes {@link #contains(Object)} a binary search and {@link #equals(Object)} a
+ * linear comparison of arrays.
+ * <p>
+ * Iterating creates each {@link InetNetwork} as it is reached.
+ */
+@NonNullForAll
+public final class InetNetworkSet extends AbstractSet<InetNetwork> {
+    private static final InetNetworkSet EMPTY = new InetNetworkSet(new long[0], new short[0], new int[0]);
+    // Set in the prefix of IPv4 networks, above the mask.
+    private static final int IPV4 = 0x100;
+
+    // Two longs per network, the high and low halves of the address; IPv4 uses the low half.
+    private final long[] addresses;
+    // The mask of each network, with IPV4 set for IPv4 networks.
+    private final short[] prefixes;
+    // The indices of the networks in ascending order of family, address and mask.
+    private final int[] sorted;
+    private int hashCode;
+
+    private InetNetworkSet(final long[] addresses, final short[] prefixes, final int[] sorted) {
+        this.addresses = addresses;
+        this.prefixes = prefixes;
+        this.sorted = sorted;
+    }
+
+    /**
+     * Adds networks to the list a builder collects for {@link #copyOf(Iterable)}. A packed set added
+     * to an empty builder is kept as it is, so that building from it does not unpack it only to
+     * pack it again.
+     *
+     * @param to       what the builder has collected so far
+     * @param networks the networks to add
+     * @return what the builder has collected now
+     */
+    static Collection<InetNetwork> addAll(final Collection<InetNetwork> to, final Collection<InetNetwork> networks) {
+        if (to.isEmpty() && networks instanceof InetNetworkSet)
+            return networks;
+        final Collection<InetNetwork> list = to instanceof InetNetworkSet ? new ArrayList<>(to) : to;
+        list.addAll(networks);
+        return list;
+    }
+
+    /**
+     * Packs a collection of networks, dropping all but the first occurrence of duplicates.
+     *
+     * @param networks the networks to pack, in the order to iterate them in
+     * @return a set of the networks, which may be {@code networks} itself if it is already packed
+     */
+    public static InetNetworkSet copyOf(final Iterable<InetNetwork> networks) {
+        if (networks instanceof InetNetworkSet)
+            return (InetNetworkSet) networks;
+        int count = 0;
+        long[] addresses = new long[16];
+        short[] prefixes = new short[8];
+        for (final InetNetwork network : networks) {
+            if (count == prefixes.length) {
+                addresses = Arrays.copyOf(addresses, addresses.length * 2);
+                prefixes = Arrays.copyOf(prefixes, prefixes.length * 2);
+            }
+            final byte[] bytes = network.getAddress().getAddress();
+            if (bytes.length == 4) {
+                addresses[2 * count + 1] = readLong(bytes, 0, 4);
+                prefixes[count] = (short) (IPV4 | network.getMask());
+            } else {
+                addresses[2 * count] = readLong(bytes, 0, 8);
+                addresses[2 * count + 1] = readLong(bytes, 8, 8);
+                prefixes[count] = (short) network.getMask();
+            }
+            ++count;
+        }
+        if (count == 0)
+            return EMPTY;
+        final InetNetworkSet unsorted = new InetNetworkSet(addresses, prefixes, identity(count));
+        unsorted.sort();
+        return unsorted.withoutDuplicates(count);
+    }
+
+    /**
+     * Returns the empty set.
+     */
+    public static InetNetworkSet of() {
+        return EMPTY;
+    }
+
+    private static int[] identity(final int count) {
+        final int[] indices = new int[count];
+        for (int i = 0; i < count; ++i)
+            indices[i] = i;
+        return indices;
+    }
+
+    /**
+     * Reads a set written by {@link #writeTo(DataOutput)}.
+     */
+    static InetNetworkSet readFrom(final DataInput in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Invalid network count");
+        if (count == 0)
+            return EMPTY;
+        final long[] addresses = new long[2 * count];
+        final short[] prefixes = new short[count];
+        for (int i = 0; i < count; ++i) {
+            final short prefix = in.readShort();
+            if ((prefix & ~(IPV4 | 0xff)) != 0 || (prefix & 0xff) > ((prefix & IPV4) != 0 ? 32 : 128))
+                throw new IOException("Invalid network prefix");
+            prefixes[i] = prefix;
+            addresses[2 * i] = in.readLong();
+            addresses[2 * i + 1] = in.readLong();
+        }
+        final InetNetworkSet unsorted = new InetNetworkSet(addresses, prefixes, identity(count));
+        unsorted.sort();
+        return unsorted.withoutDuplicates(count);
+    }
+
+    private static long readLong(final byte[] bytes, final int offset, final int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; ++i)
+            value = value << 8 | (bytes[i] & 0xff);
+        return value;
+    }
+
+    private static void writeLong(final long value, final byte[] bytes, final int offset, final int length) {
+        for (int i = 0; i < length; ++i)
+            bytes[offset + i] = (byte) (value >>> (8 * (length - 1 - i)));
+    }
+
+    private int compare(final int a, final int b) {
+        // IPv4 before IPv6, then by address and by mask.
+        final int family = Integer.compare(prefixes[b] & IPV4, prefixes[a] & IPV4);
+        if (family != 0)
+            return family;
+        final int high = Long.compareUnsigned(addresses[2 * a], addresses[2 * b]);
+        if (high != 0)
+            return high;
+        final int low = Long.compareUnsigned(addresses[2 * a + 1], addresses[2 * b + 1]);
+        if (low != 0)
+            return low;
+        return Integer.compare(prefixes[a], prefixes[b]);
+    }
+
+    private int compareTo(final int index, final long high, final long low, final int prefix) {
+        final int family = Integer.compare(prefix & IPV4, prefixes[index] & IPV4);
+        if (family != 0)
+            return family;
+        final int highOrder = Long.compareUnsigned(addresses[2 * index], high);
+        if (highOrder != 0)
+            return highOrder;
+        final int lowOrder = Long.compareUnsigned(addresses[2 * index + 1], low);
+        if (lowOrder != 0)
+            return lowOrder;
+        return Integer.compare(prefixes[index], prefix);
+    }
+
+    @Override
+    public boolean contains(@Nullable final Object o) {
+        if (!(o instanceof InetNetwork))
+            return false;
+        final InetNetwork network = (InetNetwork) o;
+        final byte[] bytes = network.getAddress().getAddress();
+        final boolean ipv4 = bytes.length == 4;
+        final long high = ipv4 ? 0 : readLong(bytes, 0, 8);
+        final long low = ipv4 ? readLong(bytes, 0, 4) : readLong(bytes, 8, 8);
+        final int prefix = (ipv4 ? IPV4 : 0) | network.getMask();
+        int from = 0;
+        int to = sorted.length - 1;
+        while (from <= to) {
+            final int middle = (from + to) >>> 1;
+            final int order = compareTo(sorted[middle], high, low, prefix);
+            if (order < 0)
+                from = middle + 1;
+            else if (order > 0)
+                to = middle - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(@Nullable final Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof InetNetworkSet))
+            return super.equals(o);
+        final InetNetworkSet other = (InetNetworkSet) o;
+        if (sorted.length != other.sorted.length)
+            return false;
+        for (int i = 0; i < sorted.length; ++i) {
+            final int a = sorted[i];
+            final int b = other.sorted[i];
+            if (addresses[2 * a] != other.addresses[2 * b] || addresses[2 * a + 1] != other.addresses[2 * b + 1]
+                    || prefixes[a] != other.prefixes[b])
+                return false;
+        }
+        return true;
+    }
+
+    private InetNetwork get(final int index) {
+        final boolean ipv4 = (prefixes[index] & IPV4) != 0;
+        final byte[] bytes = new byte[ipv4 ? 4 : 16];
+        if (ipv4) {
+            writeLong(addresses[2 * index + 1], bytes, 0, 4);
+        } else {
+            writeLong(addresses[2 * index], bytes, 0, 8);
+            writeLong(addresses[2 * index + 1], bytes, 8, 8);
+        }
+        try {
+            return new InetNetwork(InetAddress.getByAddress(bytes), prefixes[index] & 0xff);
+        } catch (final UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the same hash code as any other {@link java.util.Set} of the same networks, which
+     * takes creating each of them once; it is kept afterwards.
+     */
+    @Override
+    public int hashCode() {
+        int hash = hashCode;
+        if (hash == 0 && prefixes.length != 0) {
+            hash = super.hashCode();
+            hashCode = hash;
+        }
+        return hash;
+    }
+
+    @Override
+    public Iterator<InetNetwork> iterator() {
+        return new Iterator<InetNetwork>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < prefixes.length;
+            }
+
+            @Override
+            public InetNetwork next() {
+                if (next == prefixes.length)
+                    throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+    /**
+     * Returns how many bytes the arrays backing this set hold, not counting their headers.
+     */
+    @VisibleForTesting
+    long packedBytes() {
+        return 8L * addresses.length + 2L * prefixes.length + 4L * sorted.length;
+    }
+
+    @Override
+    public int size() {
+        return prefixes.length;
+    }
+
+    private void sort() {
+        // A merge sort, which keeps equal networks in the order they were added.
+        final int[] scratch = new int[sorted.length];
+        for (int width = 1; width < sorted.length; width *= 2) {
+            for (int from = 0; from < sorted.length - width; from += 2 * width) {
+                final int middle = from + width;
+                final int to = Math.min(from + 2 * width, sorted.length);
+                int left = from;
+                int right = middle;
+                for (int i = from; i < to; ++i) {
+                    if (right == to || (left < middle && compare(sorted[left], sorted[right]) <= 0))
+                        scratch[i] = sorted[left++];
+                    else
+                        scratch[i] = sorted[right++];
+                }
+                System.arraycopy(scratch, from, sorted, from, to - from);
+            }
+        }
+    }
+
+    /**
+     * Writes the packed networks, in the order they are iterated in.
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        out.writeInt(prefixes.length);
+        for (int i = 0; i < prefixes.length; ++i) {
+            out.writeShort(prefixes[i]);
+            out.writeLong(addresses[2 * i]);
+            out.writeLong(addresses[2 * i + 1]);
+        }
+    }
+
+    private InetNetworkSet withoutDuplicates(final int count) {
+        final boolean[] duplicate = new boolean[count];
+        int duplicates = 0;
+        for (int i = 1; i < count; ++i) {
+            if (compare(sorted[i - 1], sorted[i]) == 0) {
+                duplicate[sorted[i]] = true;
+                sorted[i] = sorted[i - 1];
+                ++duplicates;
+            }
+        }
+        final int size = count - duplicates;
+        // Renumber the networks that remain, keeping the order they were added in.
+        final int[] renumbered = new int[count];
+        final long[] packedAddresses = new long[2 * size];
+        final short[] packedPrefixes = new short[size];
+        int next = 0;
+        for (int i = 0; i < count; ++i) {
+            if (duplicate[i])
+                continue;
+            renumbered[i] = next;
+            packedAddresses[2 * next] = addresses[2 * i];
+            packedAddresses[2 * next + 1] = addresses[2 * i + 1];
+            packedPrefixes[next] = prefixes[i];
+            ++next;
+        }
+        final int[] packedSorted = new int[size];
+        next = 0;
+        for (int i = 0; i < count; ++i) {
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                packedSorted[next++] = renumbered[sorted[i]];
+        }
+        return new InetNetworkSet(packedAddresses, packedPrefixes, packedSorted);
+    }
+}
@@ -13,12 +13,15 @@ import org.amnezia.awg.crypto.KeyFormatException;
 import org.amnezia.awg.crypto.KeyPair;
 import org.amnezia.awg.util.NonNullForAll;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
@@ -71,10 +74,13 @@ public final class Interface {
     private final Optional<String> maxHandshakeAttempts;
     private final Optional<String> randomTrailers;
     private final Optional<String> disableCookies;
+    // Computed on first use. Instances are immutable, so racing threads compute the same value.
+    // Serialized forms are not kept, since they would hold the private key in a String.
+    private int hashCode;
 
     private Interface(final Builder builder) {
         // Defensively copy to ensure immutability even if the Builder is reused.
-        addresses = Collections.unmodifiableSet(new LinkedHashSet<>(builder.addresses));
+        addresses = InetNetworkSet.copyOf(builder.addresses);
         dnsServers = Collections.unmodifiableSet(new LinkedHashSet<>(builder.dnsServers));
         dnsSearchDomains = Collections.unmodifiableSet(new LinkedHashSet<>(builder.dnsSearchDomains));
         excludedApplications = Collections.unmodifiableSet(new LinkedHashSet<>(builder.excludedApplications));
@@ -123,7 +129,7 @@ public final class Interface {
             final Attribute attribute = Attribute.parse(line).orElseThrow(() ->
                     new BadConfigException(Section.INTERFACE, Location.TOP_LEVEL,
                             Reason.SYNTAX_ERROR, line));
-            switch (attribute.getKey().toLowerCase(Locale.ENGLISH)) {
+            switch (attribute.getLowerCaseKey()) {
                 case "address":
                     builder.parseAddresses(attribute.getValue());
                     break;
@@ -233,6 +239,8 @@ public final class Interface {
         if (!(obj instanceof Interface))
             return false;
         final Interface other = (Interface) obj;
+        if (hashCode() != other.hashCode())
+            return false;
         return addresses.equals(other.addresses)
                 && dnsServers.equals(other.dnsServers)
                 && dnsSearchDomains.equals(other.dnsSearchDomains)
@@ -572,6 +580,15 @@ public final class Interface {
 
     @Override
     public int hashCode() {
+        int hash = hashCode;
+        if (hash == 0) {
+            hash = computeHashCode();
+            hashCode = hash;
+        }
+        return hash;
+    }
+
+    private int computeHashCode() {
         int hash = 1;
         hash = 31 * hash + addresses.hashCode();
         hash = 31 * hash + dnsServers.hashCode();
@@ -631,46 +648,68 @@ public final class Interface {
      */
     public String toAwgQuickString() {
         final StringBuilder sb = new StringBuilder();
+        try {
+            appendAwgQuickString(sb);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Converts the {@code Interface} into lines of a {@code awg-quick} configuration file, like
+     * {@link #toAwgQuickString()}, appending them to {@code out}.
+     *
+     * @param out where to append the "Key = Value" lines
+     */
+    public void appendAwgQuickString(final Appendable out) throws IOException {
         if (!addresses.isEmpty())
-            sb.append("Address = ").append(Attribute.join(addresses)).append('\n');
+            out.append("Address = ").append(Attribute.join(addresses)).append('\n');
         if (!dnsServers.isEmpty()) {
             final List<String> dnsServerStrings = dnsServers.stream().map(InetAddress::getHostAddress).collect(Collectors.toList());
             dnsServerStrings.addAll(dnsSearchDomains);
-            sb.append("DNS = ").append(Attribute.join(dnsServerStrings)).append('\n');
+            out.append("DNS = ").append(Attribute.join(dnsServerStrings)).append('\n');
         }
         if (!excludedApplications.isEmpty())
-            sb.append("ExcludedApplications = ").append(Attribute.join(excludedApplications)).append('\n');
+            out.append("ExcludedApplications = ").append(Attribute.join(excludedApplications)).append('\n');
         if (!includedApplications.isEmpty())
-            sb.append("IncludedApplications = ").append(Attribute.join(includedApplications)).append('\n');
-        listenPort.ifPresent(lp -> sb.append("ListenPort = ").append(lp).append('\n'));
-        mtu.ifPresent(m -> sb.append("MTU = ").append(m).append('\n'));
-        junkPacketCount.ifPresent(jc -> sb.append("Jc = ").append(jc).append('\n'));
-        junkPacketMinSize.ifPresent(jmin -> sb.append("Jmin = ").append(jmin).append('\n'));
-        junkPacketMaxSize.ifPresent(jmax -> sb.append("Jmax = ").append(jmax).append('\n'));
-        initPacketJunkSize.ifPresent(s1 -> sb.append("S1 = ").append(s1).append('\n'));
-        responsePacketJunkSize.ifPresent(s2 -> sb.append("S2 = ").append(s2).append('\n'));
-        cookieReplyPacketJunkSize.ifPresent(s3 -> sb.append("S3 = ").append(s3).append('\n'));
-        transportPacketJunkSize.ifPresent(s4 -> sb.append("S4 = ").append(s4).append('\n'));
-        initPacketMagicHeader.ifPresent(h1 -> sb.append("H1 = ").append(h1).append('\n'));
-        responsePacketMagicHeader.ifPresent(h2 -> sb.append("H2 = ").append(h2).append('\n'));
-        underloadPacketMagicHeader.ifPresent(h3 -> sb.append("H3 = ").append(h3).append('\n'));
-        transportPacketMagicHeader.ifPresent(h4 -> sb.append("H4 = ").append(h4).append('\n'));
-        specialJunkI1.ifPresent(i1 -> sb.append("I1 = ").append(i1).append('\n'));
-        specialJunkI2.ifPresent(i2 -> sb.append("I2 = ").append(i2).append('\n'));
-        specialJunkI3.ifPresent(i3 -> sb.append("I3 = ").append(i3).append('\n'));
-        specialJunkI4.ifPresent(i4 -> sb.append("I4 = ").append(i4).append('\n'));
-        specialJunkI5.ifPresent(i5 -> sb.append("I5 = ").append(i5).append('\n'));
-        headerProtectionKey.ifPresent(hpk -> sb.append("HeaderProtectionKey = ").append(hpk.toBase64()).append('\n'));
-        contentPaddingAddition.ifPresent(cpa -> sb.append("ContentPaddingAddition = ").append(cpa).append('\n'));
-        rekeyAfterTime.ifPresent(rat -> sb.append("RekeyAfterTime = ").append(rat).append('\n'));
-        rekeyTimeout.ifPresent(rt -> sb.append("RekeyTimeout = ").append(rt).append('\n'));
-        rejectAfterTime.ifPresent(rjat -> sb.append("RejectAfterTime = ").append(rjat).append('\n'));
-        keepaliveTimeout.ifPresent(kt -> sb.append("KeepaliveTimeout = ").append(kt).append('\n'));
-        maxHandshakeAttempts.ifPresent(mha -> sb.append("MaxHandshakeAttempts = ").append(mha).append('\n'));
-        randomTrailers.ifPresent(rt -> sb.append("RandomTrailers = ").append(rt).append('\n'));
-        disableCookies.ifPresent(dc -> sb.append("DisableCookies = ").append(dc).append('\n'));
-        sb.append("PrivateKey = ").append(keyPair.getPrivateKey().toBase64()).append('\n');
-        return sb.toString();
+            out.append("IncludedApplications = ").append(Attribute.join(includedApplications)).append('\n');
+        appendQuickLine(out, "ListenPort", listenPort);
+        appendQuickLine(out, "MTU", mtu);
+        appendQuickLine(out, "Jc", junkPacketCount);
+        appendQuickLine(out, "Jmin", junkPacketMinSize);
+        appendQuickLine(out, "Jmax", junkPacketMaxSize);
+        appendQuickLine(out, "S1", initPacketJunkSize);
+        appendQuickLine(out, "S2", responsePacketJunkSize);
+        appendQuickLine(out, "S3", cookieReplyPacketJunkSize);
+        appendQuickLine(out, "S4", transportPacketJunkSize);
+        appendQuickLine(out, "H1", initPacketMagicHeader);
+        appendQuickLine(out, "H2", responsePacketMagicHeader);
+        appendQuickLine(out, "H3", underloadPacketMagicHeader);
+        appendQuickLine(out, "H4", transportPacketMagicHeader);
+        appendQuickLine(out, "I1", specialJunkI1);
+        appendQuickLine(out, "I2", specialJunkI2);
+        appendQuickLine(out, "I3", specialJunkI3);
+        appendQuickLine(out, "I4", specialJunkI4);
+        appendQuickLine(out, "I5", specialJunkI5);
+        appendQuickLine(out, "HeaderProtectionKey", headerProtectionKey.map(Key::toBase64));
+        appendQuickLine(out, "ContentPaddingAddition", contentPaddingAddition);
+        appendQuickLine(out, "RekeyAfterTime", rekeyAfterTime);
+        appendQuickLine(out, "RekeyTimeout", rekeyTimeout);
+        appendQuickLine(out, "RejectAfterTime", rejectAfterTime);
+        appendQuickLine(out, "KeepaliveTimeout", keepaliveTimeout);
+        appendQuickLine(out, "MaxHandshakeAttempts", maxHandshakeAttempts);
+        appendQuickLine(out, "RandomTrailers", randomTrailers);
+        appendQuickLine(out, "DisableCookies", disableCookies);
+        out.append("PrivateKey = ");
+        keyPair.getPrivateKey().appendBase64(out);
+        out.append('\n');
+    }
+
+    private static void appendQuickLine(final Appendable out, final String key, final Optional<?> value)
+            throws IOException {
+        if (value.isPresent())
+            out.append(key).append(" = ").append(String.valueOf(value.get())).append('\n');
     }
 
     /**
@@ -681,36 +720,112 @@ public final class Interface {
      */
     public String toAwgUserspaceString() {
         final StringBuilder sb = new StringBuilder();
-        sb.append("private_key=").append(keyPair.getPrivateKey().toHex()).append('\n');
-        listenPort.ifPresent(lp -> sb.append("listen_port=").append(lp).append('\n'));
-        junkPacketCount.ifPresent(jc -> sb.append("jc=").append(jc).append('\n'));
-        junkPacketMinSize.ifPresent(jmin -> sb.append("jmin=").append(jmin).append('\n'));
-        junkPacketMaxSize.ifPresent(jmax -> sb.append("jmax=").append(jmax).append('\n'));
-        initPacketJunkSize.ifPresent(s1 -> sb.append("s1=").append(s1).append('\n'));
-        responsePacketJunkSize.ifPresent(s2 -> sb.append("s2=").append(s2).append('\n'));
-        cookieReplyPacketJunkSize.ifPresent(s3 -> sb.append("s3=").append(s3).append('\n'));
-        transportPacketJunkSize.ifPresent(s4 -> sb.append("s4=").append(s4).append('\n'));
-        initPacketMagicHeader.ifPresent(h1 -> sb.append("h1=").append(h1).append('\n'));
-        responsePacketMagicHeader.ifPresent(h2 -> sb.append("h2=").append(h2).append('\n'));
-        underloadPacketMagicHeader.ifPresent(h3 -> sb.append("h3=").append(h3).append('\n'));
-        transportPacketMagicHeader.ifPresent(h4 -> sb.append("h4=").append(h4).append('\n'));
-        specialJunkI1.ifPresent(i1 -> sb.append("i1=").append(i1).append('\n'));
-        specialJunkI2.ifPresent(i2 -> sb.append("i2=").append(i2).append('\n'));
-        specialJunkI3.ifPresent(i3 -> sb.append("i3=").append(i3).append('\n'));
-        specialJunkI4.ifPresent(i4 -> sb.append("i4=").append(i4).append('\n'));
-        specialJunkI5.ifPresent(i5 -> sb.append("i5=").append(i5).append('\n'));
-        headerProtectionKey.ifPresent(hpk -> sb.append("header_protection_key=").append(hpk.toHex()).append('\n'));
-        contentPaddingAddition.ifPresent(cpa -> sb.append("content_padding_addition=").append(cpa).append('\n'));
-        rekeyAfterTime.ifPresent(rat -> sb.append("rekey_after_time=").append(rat).append('\n'));
-        rekeyTimeout.ifPresent(rt -> sb.append("rekey_timeout=").append(rt).append('\n'));
-        rejectAfterTime.ifPresent(rjat -> sb.append("reject_after_time=").append(rjat).append('\n'));
-        keepaliveTimeout.ifPresent(kt -> sb.append("keepalive_timeout=").append(kt).append('\n'));
-        maxHandshakeAttempts.ifPresent(mha -> sb.append("max_handshake_attempts=").append(mha).append('\n'));
-        randomTrailers.ifPresent(rt -> sb.append("random_trailers=").append(toUapiBool(rt)).append('\n'));
-        disableCookies.ifPresent(dc -> sb.append("disable_cookies=").append(toUapiBool(dc)).append('\n'));
+        try {
+            appendAwgUserspaceString(sb);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
         return sb.toString();
     }
 
+    /**
+     * Serializes the {@code Interface} for use with the AmneziaWG cross-platform userspace API,
+     * like {@link #toAwgUserspaceString()}. The private key is written to {@code out} character
+     * by character, so that it never exists as a {@link String}.
+     *
+     * @param out where to append the "key=value" lines
+     */
+    public void appendAwgUserspaceString(final Appendable out) throws IOException {
+        out.append("private_key=");
+        keyPair.getPrivateKey().appendHex(out);
+        out.append('\n');
+        appendUapiAttributes(out);
+    }
+
+    /**
+     * Appends every userspace API line of {@link #appendAwgUserspaceString(Appendable)} but the
+     * private key.
+     */
+    private void appendUapiAttributes(final Appendable out) throws IOException {
+        appendUapiLine(out, "listen_port", listenPort);
+        appendUapiLine(out, "jc", junkPacketCount);
+        appendUapiLine(out, "jmin", junkPacketMinSize);
+        appendUapiLine(out, "jmax", junkPacketMaxSize);
+        appendUapiLine(out, "s1", initPacketJunkSize);
+        appendUapiLine(out, "s2", responsePacketJunkSize);
+        appendUapiLine(out, "s3", cookieReplyPacketJunkSize);
+        appendUapiLine(out, "s4", transportPacketJunkSize);
+        appendUapiLine(out, "h1", initPacketMagicHeader);
+        appendUapiLine(out, "h2", responsePacketMagicHeader);
+        appendUapiLine(out, "h3", underloadPacketMagicHeader);
+        appendUapiLine(out, "h4", transportPacketMagicHeader);
+        appendUapiLine(out, "i1", specialJunkI1);
+        appendUapiLine(out, "i2", specialJunkI2);
+        appendUapiLine(out, "i3", specialJunkI3);
+        appendUapiLine(out, "i4", specialJunkI4);
+        appendUapiLine(out, "i5", specialJunkI5);
+        if (headerProtectionKey.isPresent()) {
+            out.append("header_protection_key=");
+            headerProtectionKey.get().appendHex(out);
+            out.append('\n');
+        }
+        appendUapiLine(out, "content_padding_addition", contentPaddingAddition);
+        appendUapiLine(out, "rekey_after_time", rekeyAfterTime);
+        appendUapiLine(out, "rekey_timeout", rekeyTimeout);
+        appendUapiLine(out, "reject_after_time", rejectAfterTime);
+        appendUapiLine(out, "keepalive_timeout", keepaliveTimeout);
+        appendUapiLine(out, "max_handshake_attempts", maxHandshakeAttempts);
+        appendUapiLine(out, "random_trailers", randomTrailers.map(Interface::toUapiBool));
+        appendUapiLine(out, "disable_cookies", disableCookies.map(Interface::toUapiBool));
+    }
+
+    private static void appendUapiLine(final Appendable out, final String key, final Optional<?> value)
+            throws IOException {
+        if (value.isPresent())
+            out.append(key).append('=').append(String.valueOf(value.get())).append('\n');
+    }
+
+    /**
+     * Serializes the device attributes that differ from {@code previous} for use with the
+     * AmneziaWG cross-platform userspace API. The listen port is only included when it changed,
+     * since setting it rebinds the device's sockets.
+     *
+     * A changed private key is not sent this way, so that it never ends up in a {@link String};
+     * the device is recreated instead.
+     *
+     * @param previous the {@code Interface} currently applied to the device
+     * @return the changed attributes as "KEY=VALUE" lines, or {@code Optional.empty()} if the
+     * private key changed or an attribute was removed, which cannot be applied without
+     * recreating the device
+     */
+    Optional<String> toAwgUserspaceUpdateString(final Interface previous) {
+        if (!keyPair.getPrivateKey().equals(previous.keyPair.getPrivateKey()))
+            return Optional.empty();
+        final StringBuilder previousAttributes = new StringBuilder();
+        final StringBuilder attributes = new StringBuilder();
+        try {
+            previous.appendUapiAttributes(previousAttributes);
+            appendUapiAttributes(attributes);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        final Map<String, String> previousLines = new HashMap<>();
+        for (final String line : previousAttributes.toString().split("\n")) {
+            if (!line.isEmpty())
+                previousLines.put(line.substring(0, line.indexOf('=')), line);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final String line : attributes.toString().split("\n")) {
+            if (line.isEmpty())
+                continue;
+            if (!line.equals(previousLines.remove(line.substring(0, line.indexOf('=')))))
+                sb.append(line).append('\n');
+        }
+        if (!previousLines.isEmpty())
+            return Optional.empty();
+        return Optional.of(sb.toString());
+    }
+
     /**
      * Converts awg-quick on/off (and 0/1/true/false) to UAPI 1/0.
      * amneziawg-go uses {@code strconv.ParseBool} and rejects "on"/"off".
@@ -733,8 +848,8 @@ public final class Interface {
 
     @SuppressWarnings("UnusedReturnValue")
     public static final class Builder {
-        // Defaults to an empty set.
-        private final Set<InetNetwork> addresses = new LinkedHashSet<>();
+        // Defaults to an empty set. Duplicates are dropped when the Interface is built.
+        private Collection<InetNetwork> addresses = new ArrayList<>();
         // Defaults to an empty set.
         private final Set<InetAddress> dnsServers = new LinkedHashSet<>();
         // Defaults to an empty set.
@@ -801,12 +916,12 @@ public final class Interface {
         private Optional<String> disableCookies = Optional.empty();
 
         public Builder addAddress(final InetNetwork address) {
-            addresses.add(address);
+            addresses = InetNetworkSet.addAll(addresses, Collections.singletonList(address));
             return this;
         }
 
         public Builder addAddresses(final Collection<InetNetwork> addresses) {
-            this.addresses.addAll(addresses);
+            this.addresses = InetNetworkSet.addAll(this.addresses, addresses);
             return this;
         }
 
@@ -12,10 +12,10 @@ import org.amnezia.awg.crypto.Key;
 import org.amnezia.awg.crypto.KeyFormatException;
 import org.amnezia.awg.util.NonNullForAll;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
@@ -30,16 +30,25 @@ import androidx.annotation.Nullable;
  */
 @NonNullForAll
 public final class Peer {
+    private static final String ZERO_KEY_HEX =
+            "0000000000000000000000000000000000000000000000000000000000000000";
     private final Set<InetNetwork> allowedIps;
     private final Optional<InetEndpoint> endpoint;
+    private final Set<InetNetwork> excludedIps;
     private final Optional<String> persistentKeepalive;
     private final Optional<Key> preSharedKey;
     private final Key publicKey;
+    // Computed on first use. Instances are immutable, so racing threads compute the same values.
+    // Serialized forms are not kept, as they hold the pre-shared key. The effective allowed IPs
+    // are packed, so that their final fields publish them safely to racing threads.
+    @Nullable private InetNetworkSet effectiveAllowedIps;
+    private int hashCode;
 
     private Peer(final Builder builder) {
         // Defensively copy to ensure immutability even if the Builder is reused.
-        allowedIps = Collections.unmodifiableSet(new LinkedHashSet<>(builder.allowedIps));
+        allowedIps = InetNetworkSet.copyOf(builder.allowedIps);
         endpoint = builder.endpoint;
+        excludedIps = InetNetworkSet.copyOf(builder.excludedIps);
         persistentKeepalive = builder.persistentKeepalive;
         preSharedKey = builder.preSharedKey;
         publicKey = Objects.requireNonNull(builder.publicKey, "Peers must have a public key");
@@ -59,13 +68,16 @@ public final class Peer {
             final Attribute attribute = Attribute.parse(line).orElseThrow(() ->
                     new BadConfigException(Section.PEER, Location.TOP_LEVEL,
                             Reason.SYNTAX_ERROR, line));
-            switch (attribute.getKey().toLowerCase(Locale.ENGLISH)) {
+            switch (attribute.getLowerCaseKey()) {
                 case "allowedips":
                     builder.parseAllowedIPs(attribute.getValue());
                     break;
                 case "endpoint":
                     builder.parseEndpoint(attribute.getValue());
                     break;
+                case "excludedips":
+                    builder.parseExcludedIPs(attribute.getValue());
+                    break;
                 case "persistentkeepalive":
                     builder.parsePersistentKeepalive(attribute.getValue());
                     break;
@@ -90,6 +102,7 @@ public final class Peer {
         final Peer other = (Peer) obj;
         return allowedIps.equals(other.allowedIps)
                 && endpoint.equals(other.endpoint)
+                && excludedIps.equals(other.excludedIps)
                 && persistentKeepalive.equals(other.persistentKeepalive)
                 && preSharedKey.equals(other.preSharedKey)
                 && publicKey.equals(other.publicKey);
@@ -105,6 +118,26 @@ public final class Peer {
         return allowedIps;
     }
 
+    /**
+     * Returns the peer's allowed IPs without its excluded IPs. This is what the backends route
+     * to the peer.
+     *
+     * @return the fewest networks that cover the allowed IPs but none of the excluded IPs, or
+     * the allowed IPs as they are if nothing is excluded
+     */
+    public Collection<InetNetwork> getEffectiveAllowedIps() {
+        if (excludedIps.isEmpty())
+            return allowedIps;
+        InetNetworkSet networks = effectiveAllowedIps;
+        if (networks == null) {
+            final PrefixTrie trie = new PrefixTrie(allowedIps);
+            trie.removeAll(excludedIps);
+            networks = InetNetworkSet.copyOf(trie.toList());
+            effectiveAllowedIps = networks;
+        }
+        return networks;
+    }
+
     /**
      * Returns the peer's endpoint.
      *
@@ -114,6 +147,16 @@ public final class Peer {
         return endpoint;
     }
 
+    /**
+     * Returns the peer's set of excluded IPs, which are carved out of its allowed IPs.
+     *
+     * @return the set of excluded IPs
+     */
+    public Set<InetNetwork> getExcludedIps() {
+        // The collection is already immutable.
+        return excludedIps;
+    }
+
     /**
      * Returns the peer's persistent keepalive. This may be a single value (e.g. {@code "25"}) or
      * a range (e.g. {@code "22-30"}).
@@ -144,9 +187,19 @@ public final class Peer {
 
     @Override
     public int hashCode() {
+        int hash = hashCode;
+        if (hash == 0) {
+            hash = computeHashCode();
+            hashCode = hash;
+        }
+        return hash;
+    }
+
+    private int computeHashCode() {
         int hash = 1;
         hash = 31 * hash + allowedIps.hashCode();
         hash = 31 * hash + endpoint.hashCode();
+        hash = 31 * hash + excludedIps.hashCode();
         hash = 31 * hash + persistentKeepalive.hashCode();
         hash = 31 * hash + preSharedKey.hashCode();
         hash = 31 * hash + publicKey.hashCode();
@@ -175,16 +228,56 @@ public final class Peer {
      * @return the {@code Peer} represented as a series of "Key = Value" lines
      */
     public String toAwgQuickString() {
+        return toAwgQuickString(false);
+    }
+
+    /**
+     * Converts the {@code Peer} into a string suitable for inclusion in a {@code awg-quick}
+     * configuration file, optionally for a {@code awg-quick} that does not know ExcludedIPs.
+     *
+     * @param applyExcludedIps whether to write the effective allowed IPs instead of both lists
+     * @return the {@code Peer} represented as a series of "Key = Value" lines
+     */
+    String toAwgQuickString(final boolean applyExcludedIps) {
         final StringBuilder sb = new StringBuilder();
-        if (!allowedIps.isEmpty())
-            sb.append("AllowedIPs = ").append(Attribute.join(allowedIps)).append('\n');
-        endpoint.ifPresent(ep -> sb.append("Endpoint = ").append(ep).append('\n'));
-        persistentKeepalive.ifPresent(pk -> sb.append("PersistentKeepalive = ").append(pk).append('\n'));
-        preSharedKey.ifPresent(psk -> sb.append("PreSharedKey = ").append(psk.toBase64()).append('\n'));
-        sb.append("PublicKey = ").append(publicKey.toBase64()).append('\n');
+        try {
+            appendAwgQuickString(sb, applyExcludedIps);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
         return sb.toString();
     }
 
+    /**
+     * Converts the {@code Peer} into lines of a {@code awg-quick} configuration file, like
+     * {@link #toAwgQuickString(boolean)}, appending them to {@code out}.
+     */
+    void appendAwgQuickString(final Appendable out, final boolean applyExcludedIps) throws IOException {
+        final Collection<InetNetwork> allowedIps = applyExcludedIps ? getEffectiveAllowedIps() : this.allowedIps;
+        if (!allowedIps.isEmpty()) {
+            out.append("AllowedIPs = ");
+            Attribute.appendJoined(out, allowedIps);
+            out.append('\n');
+        }
+        if (!applyExcludedIps && !excludedIps.isEmpty()) {
+            out.append("ExcludedIPs = ");
+            Attribute.appendJoined(out, excludedIps);
+            out.append('\n');
+        }
+        if (endpoint.isPresent())
+            out.append("Endpoint = ").append(endpoint.get().toString()).append('\n');
+        if (persistentKeepalive.isPresent())
+            out.append("PersistentKeepalive = ").append(persistentKeepalive.get()).append('\n');
+        if (preSharedKey.isPresent()) {
+            out.append("PreSharedKey = ");
+            preSharedKey.get().appendBase64(out);
+            out.append('\n');
+        }
+        out.append("PublicKey = ");
+        publicKey.appendBase64(out);
+        out.append('\n');
+    }
+
     /**
      * Serializes the {@code Peer} for use with the AmneziaWG cross-platform userspace API. Note
      * that not all attributes are included in this representation.
@@ -192,23 +285,80 @@ public final class Peer {
      * @return the {@code Peer} represented as a series of "key=value" lines
      */
     public String toAwgUserspaceString() {
+        return toAwgUserspaceString(getEffectiveAllowedIps());
+    }
+
+    /**
+     * Serializes the {@code Peer} for use with the userspace API, with {@code allowedIps} in place
+     * of its own, which must cover the same addresses as {@link #getEffectiveAllowedIps()}.
+     */
+    String toAwgUserspaceString(final Collection<InetNetwork> allowedIps) {
         final StringBuilder sb = new StringBuilder();
+        try {
+            appendAwgUserspaceString(sb, allowedIps);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Serializes the {@code Peer} for use with the userspace API into {@code out}, writing the
+     * pre-shared key character by character so that it never exists as a {@link String}.
+     */
+    void appendAwgUserspaceString(final Appendable out, final Collection<InetNetwork> allowedIps)
+            throws IOException {
         // The order here is important: public_key signifies the beginning of a new peer.
-        sb.append("public_key=").append(publicKey.toHex()).append('\n');
+        out.append("public_key=");
+        publicKey.appendHex(out);
+        out.append('\n');
         for (final InetNetwork allowedIp : allowedIps)
-            sb.append("allowed_ip=").append(allowedIp).append('\n');
-        endpoint.flatMap(InetEndpoint::getResolved).ifPresent(ep -> sb.append("endpoint=").append(ep).append('\n'));
-        persistentKeepalive.ifPresent(pk -> sb.append("persistent_keepalive_interval=").append(pk).append('\n'));
-        preSharedKey.ifPresent(psk -> sb.append("preshared_key=").append(psk.toHex()).append('\n'));
+            out.append("allowed_ip=").append(allowedIp.toString()).append('\n');
+        final Optional<InetEndpoint> resolved = endpoint.flatMap(InetEndpoint::getResolved);
+        if (resolved.isPresent())
+            out.append("endpoint=").append(resolved.get().toString()).append('\n');
+        if (persistentKeepalive.isPresent())
+            out.append("persistent_keepalive_interval=").append(persistentKeepalive.get()).append('\n');
+        if (preSharedKey.isPresent()) {
+            out.append("preshared_key=");
+            preSharedKey.get().appendHex(out);
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Serializes the {@code Peer} as an update to a running device that currently knows it as
+     * {@code previous}. Allowed IPs are replaced rather than merged, and a pre-shared key or
+     * persistent keepalive that is no longer present is reset to its default.
+     *
+     * @param previous   the {@code Peer} currently applied to the device, or null if it is new
+     * @param allowedIps the allowed IPs to send in place of the peer's own, see
+     *                   {@link #toAwgUserspaceString(Collection)}
+     * @return the {@code Peer} represented as a series of "key=value" lines
+     */
+    String toAwgUserspaceUpdateString(@Nullable final Peer previous, final Collection<InetNetwork> allowedIps) {
+        final String lines = toAwgUserspaceString(allowedIps);
+        final int firstLineEnd = lines.indexOf('\n') + 1;
+        final StringBuilder sb = new StringBuilder(lines.substring(0, firstLineEnd));
+        if (previous != null) {
+            sb.append("replace_allowed_ips=true\n");
+            if (previous.preSharedKey.isPresent() && !preSharedKey.isPresent())
+                sb.append("preshared_key=").append(ZERO_KEY_HEX).append('\n');
+            if (previous.persistentKeepalive.isPresent() && !persistentKeepalive.isPresent())
+                sb.append("persistent_keepalive_interval=0\n");
+        }
+        sb.append(lines, firstLineEnd, lines.length());
         return sb.toString();
     }
 
     @SuppressWarnings("UnusedReturnValue")
     public static final class Builder {
-        // Defaults to an empty set.
-        private final Set<InetNetwork> allowedIps = new LinkedHashSet<>();
+        // Defaults to an empty set. Duplicates are dropped when the Peer is built.
+        private Collection<InetNetwork> allowedIps = new ArrayList<>();
         // Defaults to not present.
         private Optional<InetEndpoint> endpoint = Optional.empty();
+        // Defaults to an empty set. Duplicates are dropped when the Peer is built.
+        private Collection<InetNetwork> excludedIps = new ArrayList<>();
         // Defaults to not present.
         private Optional<String> persistentKeepalive = Optional.empty();
         // Defaults to not present.
@@ -217,12 +367,22 @@ public final class Peer {
         @Nullable private Key publicKey;
 
         public Builder addAllowedIp(final InetNetwork allowedIp) {
-            allowedIps.add(allowedIp);
+            allowedIps = InetNetworkSet.addAll(allowedIps, Collections.singletonList(allowedIp));
             return this;
         }
 
         public Builder addAllowedIps(final Collection<InetNetwork> allowedIps) {
-            this.allowedIps.addAll(allowedIps);
+            this.allowedIps = InetNetworkSet.addAll(this.allowedIps, allowedIps);
+            return this;
+        }
+
+        public Builder addExcludedIp(final InetNetwork excludedIp) {
+            excludedIps = InetNetworkSet.addAll(excludedIps, Collections.singletonList(excludedIp));
+            return this;
+        }
+
+        public Builder addExcludedIps(final Collection<InetNetwork> excludedIps) {
+            this.excludedIps = InetNetworkSet.addAll(this.excludedIps, excludedIps);
             return this;
         }
 
@@ -251,6 +411,16 @@ public final class Peer {
             }
         }
 
+        public Builder parseExcludedIPs(final CharSequence excludedIps) throws BadConfigException {
+            try {
+                for (final String excludedIp : Attribute.split(excludedIps))
+                    addExcludedIp(InetNetwork.parse(excludedIp));
+                return this;
+            } catch (final ParseException e) {
+                throw new BadConfigException(Section.PEER, Location.EXCLUDED_IPS, e);
+            }
+        }
+
         public Builder parsePersistentKeepalive(final String persistentKeepalive)
                 throws BadConfigException {
             return setPersistentKeepalive(persistentKeepalive);
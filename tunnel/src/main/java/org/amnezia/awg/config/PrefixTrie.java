@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of IPv4 and IPv6 addresses, built from {@link InetNetwork}s and stored as a binary trie
+ * on a primitive array. Adjacent and overlapping networks are merged as they are added, and split
+ * as networks are removed, so that {@link #toList()} returns the smallest list of networks that
+ * covers exactly the same addresses.
+ */
+@NonNullForAll
+public final class PrefixTrie {
+    // Marks a node whose whole prefix is in the set, in place of its left child.
+    private static final int FULL = -1;
+    private static final int ROOT_V4 = 0;
+    private static final int ROOT_V6 = 1;
+
+    private final int[] path = new int[129];
+    // Two slots per node, holding the indices of its children; 0 means no child.
+    private int[] children = new int[64];
+    private int nodes = 2;
+
+    public PrefixTrie() {
+    }
+
+    public PrefixTrie(final Iterable<InetNetwork> networks) {
+        addAll(networks);
+    }
+
+    /**
+     * Compute the smallest list of networks that covers exactly the addresses of
+     * {@code networks}.
+     *
+     * @param networks The networks to merge.
+     * @return The merged networks, IPv4 before IPv6, each in ascending order.
+     */
+    public static List<InetNetwork> compact(final Iterable<InetNetwork> networks) {
+        return new PrefixTrie(networks).toList();
+    }
+
+    private static int bit(final byte[] address, final int index) {
+        return (address[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    private static int root(final InetAddress address) {
+        return address instanceof Inet4Address ? ROOT_V4 : ROOT_V6;
+    }
+
+    public void add(final InetNetwork network) {
+        final byte[] address = network.getAddress().getAddress();
+        final int mask = network.getMask();
+        int node = root(network.getAddress());
+        path[0] = node;
+        for (int depth = 0; depth < mask; ++depth) {
+            if (isFull(node))
+                return;
+            final int slot = 2 * node + bit(address, depth);
+            if (children[slot] == 0) {
+                final int child = allocate();
+                children[slot] = child;
+            }
+            node = children[slot];
+            path[depth + 1] = node;
+        }
+        if (isFull(node))
+            return;
+        // Anything below is now covered; the orphaned nodes are not reused.
+        children[2 * node] = FULL;
+        children[2 * node + 1] = 0;
+        for (int depth = mask; depth > 0; --depth) {
+            final int parent = path[depth - 1];
+            final int left = children[2 * parent];
+            final int right = children[2 * parent + 1];
+            if (left == 0 || right == 0 || !isFull(left) || !isFull(right))
+                break;
+            children[2 * parent] = FULL;
+            children[2 * parent + 1] = 0;
+        }
+    }
+
+    public void addAll(final Iterable<InetNetwork> networks) {
+        for (final InetNetwork network : networks)
+            add(network);
+    }
+
+    /**
+     * Remove the addresses of a network from the set. Networks that only partly overlap it are
+     * split into the fewest networks that cover what remains.
+     *
+     * @param network The network to remove.
+     */
+    public void remove(final InetNetwork network) {
+        final byte[] address = network.getAddress().getAddress();
+        final int mask = network.getMask();
+        int node = root(network.getAddress());
+        path[0] = node;
+        for (int depth = 0; depth < mask; ++depth) {
+            if (isFull(node)) {
+                // Split the covering network in halves, one of which gets carved further.
+                final int left = allocate();
+                final int right = allocate();
+                children[2 * left] = FULL;
+                children[2 * right] = FULL;
+                children[2 * node] = left;
+                children[2 * node + 1] = right;
+            }
+            node = children[2 * node + bit(address, depth)];
+            if (node == 0)
+                return;
+            path[depth + 1] = node;
+        }
+        children[2 * node] = 0;
+        children[2 * node + 1] = 0;
+        // Unlink the emptied node and every ancestor left without children, but keep the roots.
+        for (int depth = mask; depth > 0; --depth) {
+            final int parent = path[depth - 1];
+            children[2 * parent + bit(address, depth - 1)] = 0;
+            if (children[2 * parent] != 0 || children[2 * parent + 1] != 0)
+                break;
+        }
+    }
+
+    public void removeAll(final Iterable<InetNetwork> networks) {
+        for (final InetNetwork network : networks)
+            remove(network);
+    }
+
+    private int allocate() {
+        if (2 * nodes == children.length)
+            children = Arrays.copyOf(children, children.length * 2);
+        return nodes++;
+    }
+
+    /**
+     * Check whether an address is in the set.
+     *
+     * @param address The address to look for.
+     * @return true if one of the networks added so far contains the address.
+     */
+    public boolean contains(final InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        int node = root(address);
+        for (int depth = 0; depth < bytes.length * 8; ++depth) {
+            if (isFull(node))
+                return true;
+            node = children[2 * node + bit(bytes, depth)];
+            if (node == 0)
+                return false;
+        }
+        return isFull(node);
+    }
+
+    private boolean isFull(final int node) {
+        return children[2 * node] == FULL;
+    }
+
+    /**
+     * Check whether a network shares any address with the set.
+     *
+     * @param network The network to look for.
+     * @return true if at least one address of {@code network} is in the set.
+     */
+    public boolean overlaps(final InetNetwork network) {
+        final byte[] address = network.getAddress().getAddress();
+        int node = root(network.getAddress());
+        for (int depth = 0; depth < network.getMask(); ++depth) {
+            if (isFull(node))
+                return true;
+            node = children[2 * node + bit(address, depth)];
+            if (node == 0)
+                return false;
+        }
+        // Every node other than an empty root leads to at least one network.
+        return isFull(node) || children[2 * node] != 0 || children[2 * node + 1] != 0;
+    }
+
+    /**
+     * Get the networks of the set.
+     *
+     * @return The smallest list of networks that covers the set, IPv4 before IPv6, each in
+     * ascending order.
+     */
+    public List<InetNetwork> toList() {
+        final List<InetNetwork> networks = new ArrayList<>();
+        collect(ROOT_V4, 0, new byte[4], networks);
+        collect(ROOT_V6, 0, new byte[16], networks);
+        return networks;
+    }
+
+    private void collect(final int node, final int depth, final byte[] prefix, final List<InetNetwork> networks) {
+        if (isFull(node)) {
+            try {
+                final InetAddress address = prefix.length == 4 ? InetAddress.getByAddress(prefix.clone())
+                        : Inet6Address.getByAddress(null, prefix.clone(), null);
+                networks.add(new InetNetwork(address, depth));
+            } catch (final UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+            return;
+        }
+        final int left = children[2 * node];
+        final int right = children[2 * node + 1];
+        if (left != 0)
+            collect(left, depth + 1, prefix, networks);
+        if (right != 0) {
+            prefix[depth >>> 3] |= (byte) (0x80 >>> (depth & 7));
+            collect(right, depth + 1, prefix, networks);
+            prefix[depth >>> 3] &= (byte) ~(0x80 >>> (depth & 7));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import android.net.DnsResolver;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * The default {@link HostResolver}. On Android 10 and later it queries the system's DNS resolver
+ * directly for A and AAAA records, which reports the records' TTL; otherwise, or if that fails, it
+ * falls back to {@link InetAddress#getAllByName(String)}, whose answers carry no TTL.
+ */
+@NonNullForAll
+final class SystemHostResolver implements HostResolver {
+    // Answers from getAllByName are kept as long as InetEndpoint used to keep them.
+    private static final long FALLBACK_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long QUERY_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+
+    @Override
+    public Result resolve(final String host) throws UnknownHostException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                final Result result = query(host);
+                if (!result.addresses().isEmpty())
+                    return result;
+            } catch (final Exception ignored) {
+                // Fall back to the platform resolver, which also consults the hosts file.
+            }
+        }
+        return new Result(Arrays.asList(InetAddress.getAllByName(host)), FALLBACK_TTL_MILLIS);
+    }
+
+    /**
+     * Parse the answer section of a DNS response, appending A and AAAA records to
+     * {@code addresses}.
+     *
+     * @return the smallest TTL of any answer record in seconds, or -1 if there were none
+     */
+    static long parseAnswers(final String host, final byte[] message, final List<InetAddress> addresses)
+            throws UnknownHostException {
+        final int questions = readShort(message, 4);
+        final int answers = readShort(message, 6);
+        int offset = 12;
+        for (int i = 0; i < questions; ++i)
+            offset = skipName(message, offset) + 4;
+        long minTtl = -1;
+        for (int i = 0; i < answers; ++i) {
+            offset = skipName(message, offset);
+            final int type = readShort(message, offset);
+            final long ttl = ((long) readShort(message, offset + 4) << 16) | readShort(message, offset + 6);
+            final int length = readShort(message, offset + 8);
+            offset += 10;
+            if (offset + length > message.length)
+                throw new ArrayIndexOutOfBoundsException(offset + length);
+            if ((type == TYPE_A && length == 4) || (type == TYPE_AAAA && length == 16))
+                addresses.add(InetAddress.getByAddress(host, Arrays.copyOfRange(message, offset, offset + length)));
+            minTtl = minTtl < 0 ? ttl : Math.min(minTtl, ttl);
+            offset += length;
+        }
+        return minTtl;
+    }
+
+    private static int readShort(final byte[] message, final int offset) {
+        return ((message[offset] & 0xff) << 8) | (message[offset + 1] & 0xff);
+    }
+
+    private static int skipName(final byte[] message, int offset) {
+        while (true) {
+            final int length = message[offset] & 0xff;
+            if (length == 0)
+                return offset + 1;
+            if ((length & 0xc0) == 0xc0)
+                return offset + 2;
+            offset += length + 1;
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private static Result query(final String host) throws Exception {
+        final CancellationSignal cancellation = new CancellationSignal();
+        final CompletableFuture<byte[]> v4 = rawQuery(host, DnsResolver.TYPE_A, cancellation);
+        final CompletableFuture<byte[]> v6 = rawQuery(host, DnsResolver.TYPE_AAAA, cancellation);
+        final List<InetAddress> addresses = new ArrayList<>();
+        long ttl = -1;
+        try {
+            for (final CompletableFuture<byte[]> answer : Arrays.asList(v4, v6)) {
+                final byte[] message;
+                try {
+                    message = answer.get(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (final Exception ignored) {
+                    continue;
+                }
+                final long answerTtl = parseAnswers(host, message, addresses);
+                if (answerTtl >= 0)
+                    ttl = ttl < 0 ? answerTtl : Math.min(ttl, answerTtl);
+            }
+        } finally {
+            cancellation.cancel();
+        }
+        return new Result(addresses, TimeUnit.SECONDS.toMillis(Math.max(ttl, 0)));
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private static CompletableFuture<byte[]> rawQuery(final String host, final int type,
+                                                      final CancellationSignal cancellation) {
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        DnsResolver.getInstance().rawQuery(null, host, DnsResolver.CLASS_IN, type, DnsResolver.FLAG_EMPTY,
+                Runnable::run, cancellation, new DnsResolver.Callback<byte[]>() {
+                    @Override
+                    public void onAnswer(final byte[] answer, final int rcode) {
+                        future.complete(answer);
+                    }
+
+                    @Override
+                    public void onError(final DnsResolver.DnsException error) {
+                        future.completeExceptionally(error);
+                    }
+                });
+        return future;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A growable buffer of userspace API text in native memory, which the native library can read in
+ * place. Characters are encoded the way JNI encodes strings (modified UTF-8), although the API only
+ * uses ASCII. Whatever the buffer held is wiped when it grows and when it is closed, so that
+ * private keys appended to it do not linger in memory.
+ */
+@NonNullForAll
+public final class UapiBuffer implements Appendable, AutoCloseable {
+    private static final byte[] ZEROS = new byte[4096];
+    private ByteBuffer buffer;
+
+    public UapiBuffer(final int initialCapacity) {
+        buffer = ByteBuffer.allocateDirect(Math.max(initialCapacity, 64));
+    }
+
+    private static void wipe(final ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining())
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+        buffer.clear();
+    }
+
+    @Override
+    public UapiBuffer append(final CharSequence csq) {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public UapiBuffer append(final CharSequence csq, final int start, final int end) {
+        ensureRemaining(end - start);
+        for (int i = start; i < end; ++i)
+            append(csq.charAt(i));
+        return this;
+    }
+
+    @Override
+    public UapiBuffer append(final char c) {
+        if (c != 0 && c < 0x80) {
+            ensureRemaining(1);
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            ensureRemaining(2);
+            buffer.put((byte) (0xc0 | c >> 6));
+            buffer.put((byte) (0x80 | (c & 0x3f)));
+        } else {
+            ensureRemaining(3);
+            buffer.put((byte) (0xe0 | c >> 12));
+            buffer.put((byte) (0x80 | (c >> 6 & 0x3f)));
+            buffer.put((byte) (0x80 | (c & 0x3f)));
+        }
+        return this;
+    }
+
+    /**
+     * Wipe the contents. The buffer may be reused afterwards.
+     */
+    @Override
+    public void close() {
+        wipe(buffer);
+    }
+
+    private void ensureRemaining(final int count) {
+        if (buffer.remaining() >= count)
+            return;
+        final ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + count));
+        final ByteBuffer previous = buffer;
+        previous.flip();
+        grown.put(previous);
+        wipe(previous);
+        buffer = grown;
+    }
+
+    /**
+     * Get the direct buffer that holds the text, which starts at index 0 and is {@link #length()}
+     * bytes long. The buffer changes when the text grows.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the length of the encoded text in bytes.
+     */
+    public int length() {
+        return buffer.position();
+    }
+}
@@ -8,9 +8,13 @@ package org.amnezia.awg.crypto;
 
 import org.amnezia.awg.util.NonNullForAll;
 
+import android.os.Build;
+import android.os.Process;
+
 import java.util.Arrays;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 /**
  * Implementation of Curve25519 ECDH.
@@ -24,11 +28,17 @@ import androidx.annotation.Nullable;
  * Differences in this version are due to using 26-bit limbs for the
  * representation instead of the 8/16/32-bit limbs in the original.
  * <p>
+ * 64-bit processes on Android 12 and later use {@link Curve25519Radix51}
+ * instead, which does the same work with 51-bit limbs in a quarter as many
+ * limb products.
+ * <p>
  * References: http://cr.yp.to/ecdh.html, RFC 7748
  */
 @SuppressWarnings({"MagicNumber", "NonConstantFieldWithUpperCaseName", "SuspiciousNameCombination"})
 @NonNullForAll
 public final class Curve25519 {
+    private static final boolean USE_RADIX_51 =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && Process.is64Bit();
     // Numbers modulo 2^255 - 19 are broken up into ten 26-bit words.
     private static final int NUM_LIMBS_255BIT = 10;
     private static final int NUM_LIMBS_510BIT = 20;
@@ -100,6 +110,18 @@ public final class Curve25519 {
      */
     public static void eval(final byte[] result, final int offset,
                             final byte[] privateKey, @Nullable final byte[] publicKey) {
+        if (USE_RADIX_51)
+            Curve25519Radix51.eval(result, offset, privateKey, publicKey);
+        else
+            eval26(result, offset, privateKey, publicKey);
+    }
+
+    /**
+     * Evaluates the Curve25519 curve with 26-bit limbs, whatever the platform.
+     */
+    @VisibleForTesting
+    static void eval26(final byte[] result, final int offset,
+                       final byte[] privateKey, @Nullable final byte[] publicKey) {
         final Curve25519 state = new Curve25519();
         try {
             // Unpack the public key value.  If null, use 9 as the base point.
@@ -119,6 +141,9 @@ public final class Curve25519 {
                     }
                 }
 
+                // RFC 7748 requires the top bit of the u-coordinate to be ignored.
+                state.x_1[NUM_LIMBS_255BIT - 1] &= 0x001FFFFF;
+
                 // Just in case, we reduce the number modulo 2^255 - 19 to
                 // make sure that it is in range of the field before we start.
                 // This eliminates values between 2^255 - 19 and 2^256 - 1.
@@ -0,0 +1,322 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import android.os.Build;
+
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+/**
+ * Curve25519 ECDH on numbers broken up into five 51-bit limbs, for 64-bit processors. Products
+ * of limbs take up to 115 bits, of which {@link Math#multiplyHigh(long, long)} provides the upper
+ * half; that is an intrinsic on arm64 and x86-64, but only exists on Android 12 and later, so
+ * {@link Curve25519} falls back to its 26-bit limbs elsewhere.
+ * <p>
+ * Like {@link Curve25519}, this evaluates the Montgomery ladder of RFC 7748 without branches or
+ * memory accesses that depend on secret data.
+ */
+@SuppressWarnings({"MagicNumber", "SuspiciousNameCombination"})
+@NonNullForAll
+@RequiresApi(Build.VERSION_CODES.S)
+final class Curve25519Radix51 {
+    private static final int LIMBS = 5;
+    private static final long MASK = (1L << 51) - 1;
+    private static final long[] A24 = {121665, 0, 0, 0, 0};
+
+    private final long[] a = new long[LIMBS];
+    private final long[] aa = new long[LIMBS];
+    private final long[] b = new long[LIMBS];
+    private final long[] bb = new long[LIMBS];
+    private final long[] c = new long[LIMBS];
+    private final long[] cb = new long[LIMBS];
+    private final long[] d = new long[LIMBS];
+    private final long[] da = new long[LIMBS];
+    private final long[] e = new long[LIMBS];
+    private final long[] t = new long[LIMBS];
+    private final long[] x1 = new long[LIMBS];
+    private final long[] x2 = new long[LIMBS];
+    private final long[] x3 = new long[LIMBS];
+    private final long[] z2 = new long[LIMBS];
+    private final long[] z3 = new long[LIMBS];
+
+    private Curve25519Radix51() {
+    }
+
+    /**
+     * Adds two numbers without reducing them; limbs grow by at most one bit.
+     */
+    private static void add(final long[] result, final long[] x, final long[] y) {
+        for (int i = 0; i < LIMBS; ++i)
+            result[i] = x[i] + y[i];
+    }
+
+    /**
+     * Swaps two numbers if {@code select} is 1, in constant time.
+     */
+    private static void cswap(final long select, final long[] x, final long[] y) {
+        final long mask = -select;
+        for (int i = 0; i < LIMBS; ++i) {
+            final long dummy = mask & (x[i] ^ y[i]);
+            x[i] ^= dummy;
+            y[i] ^= dummy;
+        }
+    }
+
+    /**
+     * Evaluates the Curve25519 curve.
+     *
+     * @param result     Buffer to place the result of the evaluation into.
+     * @param offset     Offset into the result buffer.
+     * @param privateKey The private key to use in the evaluation.
+     * @param publicKey  The public key to use in the evaluation, or null
+     *                   if the base point of the curve should be used.
+     */
+    static void eval(final byte[] result, final int offset, final byte[] privateKey, @Nullable final byte[] publicKey) {
+        final Curve25519Radix51 state = new Curve25519Radix51();
+        try {
+            if (publicKey != null)
+                unpack(state.x1, publicKey);
+            else
+                state.x1[0] = 9;
+            state.ladder(privateKey);
+            state.invert(state.t, state.z2);
+            mul(state.x2, state.x2, state.t);
+            pack(result, offset, state.x2);
+        } finally {
+            state.destroy();
+        }
+    }
+
+    /**
+     * Multiplies two numbers, whose limbs may have up to 53 bits, leaving limbs of at most 51 bits
+     * but for a few extra in the second.
+     */
+    private static void mul(final long[] result, final long[] x, final long[] y) {
+        final long x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3], x4 = x[4];
+        final long y0 = y[0], y1 = y[1], y2 = y[2], y3 = y[3], y4 = y[4];
+        final long y1_19 = 19 * y1, y2_19 = 19 * y2, y3_19 = 19 * y3, y4_19 = 19 * y4;
+        // Each sum of products is kept as its bits below 2^51 and its bits above, so that five
+        // products of up to 115 bits add up without carrying between 64-bit halves.
+        long low;
+        long high;
+        final long[] r = result;
+
+        low = (x0 * y0 & MASK) + (x1 * y4_19 & MASK) + (x2 * y3_19 & MASK) + (x3 * y2_19 & MASK) + (x4 * y1_19 & MASK);
+        high = upper(x0, y0) + upper(x1, y4_19) + upper(x2, y3_19) + upper(x3, y2_19) + upper(x4, y1_19);
+        final long r0 = low & MASK;
+        long carry = high + (low >>> 51);
+
+        low = (x0 * y1 & MASK) + (x1 * y0 & MASK) + (x2 * y4_19 & MASK) + (x3 * y3_19 & MASK) + (x4 * y2_19 & MASK);
+        high = upper(x0, y1) + upper(x1, y0) + upper(x2, y4_19) + upper(x3, y3_19) + upper(x4, y2_19);
+        low += carry & MASK;
+        final long r1 = low & MASK;
+        carry = high + (carry >>> 51) + (low >>> 51);
+
+        low = (x0 * y2 & MASK) + (x1 * y1 & MASK) + (x2 * y0 & MASK) + (x3 * y4_19 & MASK) + (x4 * y3_19 & MASK);
+        high = upper(x0, y2) + upper(x1, y1) + upper(x2, y0) + upper(x3, y4_19) + upper(x4, y3_19);
+        low += carry & MASK;
+        final long r2 = low & MASK;
+        carry = high + (carry >>> 51) + (low >>> 51);
+
+        low = (x0 * y3 & MASK) + (x1 * y2 & MASK) + (x2 * y1 & MASK) + (x3 * y0 & MASK) + (x4 * y4_19 & MASK);
+        high = upper(x0, y3) + upper(x1, y2) + upper(x2, y1) + upper(x3, y0) + upper(x4, y4_19);
+        low += carry & MASK;
+        final long r3 = low & MASK;
+        carry = high + (carry >>> 51) + (low >>> 51);
+
+        low = (x0 * y4 & MASK) + (x1 * y3 & MASK) + (x2 * y2 & MASK) + (x3 * y1 & MASK) + (x4 * y0 & MASK);
+        high = upper(x0, y4) + upper(x1, y3) + upper(x2, y2) + upper(x3, y1) + upper(x4, y0);
+        low += carry & MASK;
+        final long r4 = low & MASK;
+        carry = high + (carry >>> 51) + (low >>> 51);
+
+        // 2^255 = 19 modulo p; fold the carry back in two parts so that 19 times it cannot overflow.
+        final long folded = r0 + 19 * (carry & MASK);
+        r[0] = folded & MASK;
+        r[1] = r1 + 19 * (carry >>> 51) + (folded >>> 51);
+        r[2] = r2;
+        r[3] = r3;
+        r[4] = r4;
+    }
+
+    /**
+     * Converts a number to its canonical little-endian form, reduced modulo 2^255 - 19.
+     */
+    private static void pack(final byte[] result, final int offset, final long[] x) {
+        long h0 = x[0], h1 = x[1], h2 = x[2], h3 = x[3], h4 = x[4];
+        // Bring every limb below 2^51, which leaves a number below 2^255 + 19 * 2^13.
+        for (int round = 0; round < 2; ++round) {
+            h1 += h0 >>> 51;
+            h0 &= MASK;
+            h2 += h1 >>> 51;
+            h1 &= MASK;
+            h3 += h2 >>> 51;
+            h2 &= MASK;
+            h4 += h3 >>> 51;
+            h3 &= MASK;
+            h0 += 19 * (h4 >>> 51);
+            h4 &= MASK;
+        }
+        // Subtract p once if the number is at least p: q is 1 exactly when it is.
+        long q = (h0 + 19) >>> 51;
+        q = (h1 + q) >>> 51;
+        q = (h2 + q) >>> 51;
+        q = (h3 + q) >>> 51;
+        q = (h4 + q) >>> 51;
+        h0 += 19 * q;
+        h1 += h0 >>> 51;
+        h0 &= MASK;
+        h2 += h1 >>> 51;
+        h1 &= MASK;
+        h3 += h2 >>> 51;
+        h2 &= MASK;
+        h4 += h3 >>> 51;
+        h3 &= MASK;
+        h4 &= MASK;
+        writeLong(result, offset, h0 | h1 << 51);
+        writeLong(result, offset + 8, h1 >>> 13 | h2 << 38);
+        writeLong(result, offset + 16, h2 >>> 26 | h3 << 25);
+        writeLong(result, offset + 24, h3 >>> 39 | h4 << 12);
+    }
+
+    private static long readLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; --i)
+            value = value << 8 | (bytes[offset + i] & 0xff);
+        return value;
+    }
+
+    /**
+     * Squares a number {@code count} times.
+     */
+    private static void square(final long[] result, final long[] x, final int count) {
+        mul(result, x, x);
+        for (int i = 1; i < count; ++i)
+            mul(result, result, result);
+    }
+
+    /**
+     * Subtracts two numbers, with limbs of at most 52 bits, by adding 2p first so that no limb
+     * goes negative.
+     */
+    private static void sub(final long[] result, final long[] x, final long[] y) {
+        result[0] = x[0] + 0xFFFFFFFFFFFDAL - y[0];
+        for (int i = 1; i < LIMBS; ++i)
+            result[i] = x[i] + 0xFFFFFFFFFFFFEL - y[i];
+    }
+
+    /**
+     * Converts a little-endian public key into limbs, ignoring its top bit as RFC 7748 requires.
+     */
+    private static void unpack(final long[] result, final byte[] bytes) {
+        final long u0 = readLong(bytes, 0);
+        final long u1 = readLong(bytes, 8);
+        final long u2 = readLong(bytes, 16);
+        final long u3 = readLong(bytes, 24) & Long.MAX_VALUE;
+        result[0] = u0 & MASK;
+        result[1] = (u0 >>> 51 | u1 << 13) & MASK;
+        result[2] = (u1 >>> 38 | u2 << 26) & MASK;
+        result[3] = (u2 >>> 25 | u3 << 39) & MASK;
+        result[4] = u3 >>> 12;
+    }
+
+    /**
+     * Returns the bits of {@code x * y} from 2^51 up, for products below 2^115.
+     */
+    private static long upper(final long x, final long y) {
+        return Math.multiplyHigh(x, y) << 13 | (x * y) >>> 51;
+    }
+
+    private static void writeLong(final byte[] bytes, final int offset, final long value) {
+        for (int i = 0; i < 8; ++i)
+            bytes[offset + i] = (byte) (value >>> (8 * i));
+    }
+
+    private void destroy() {
+        for (final long[] number : new long[][]{a, aa, b, bb, c, cb, d, da, e, t, x1, x2, x3, z2, z3})
+            Arrays.fill(number, 0);
+    }
+
+    /**
+     * Computes {@code x^(p - 2)}, the reciprocal of x, with the usual chain of 254 squarings and
+     * 11 multiplications.
+     */
+    private void invert(final long[] result, final long[] x) {
+        final long[] z2 = a, z9 = b, z11 = c, z2_5_0 = d, z2_10_0 = e, z2_20_0 = aa, z2_50_0 = bb, z2_100_0 = cb;
+        final long[] scratch = da;
+        square(z2, x, 1);                       // 2
+        square(scratch, z2, 2);                 // 8
+        mul(z9, scratch, x);                    // 9
+        mul(z11, z9, z2);                       // 11
+        square(scratch, z11, 1);                // 22
+        mul(z2_5_0, scratch, z9);               // 2^5 - 2^0
+        square(scratch, z2_5_0, 5);
+        mul(z2_10_0, scratch, z2_5_0);          // 2^10 - 2^0
+        square(scratch, z2_10_0, 10);
+        mul(z2_20_0, scratch, z2_10_0);         // 2^20 - 2^0
+        square(scratch, z2_20_0, 20);
+        mul(scratch, scratch, z2_20_0);         // 2^40 - 2^0
+        square(scratch, scratch, 10);
+        mul(z2_50_0, scratch, z2_10_0);         // 2^50 - 2^0
+        square(scratch, z2_50_0, 50);
+        mul(z2_100_0, scratch, z2_50_0);        // 2^100 - 2^0
+        square(scratch, z2_100_0, 100);
+        mul(scratch, scratch, z2_100_0);        // 2^200 - 2^0
+        square(scratch, scratch, 50);
+        mul(scratch, scratch, z2_50_0);         // 2^250 - 2^0
+        square(scratch, scratch, 5);            // 2^255 - 2^5
+        mul(result, scratch, z11);              // 2^255 - 21
+    }
+
+    /**
+     * Runs the Montgomery ladder over the clamped bits of a private key, leaving the result in
+     * x2 and z2.
+     */
+    private void ladder(final byte[] privateKey) {
+        x2[0] = 1;
+        z3[0] = 1;
+        System.arraycopy(x1, 0, x3, 0, LIMBS);
+        long swap = 0;
+        for (int bit = 254; bit >= 0; --bit) {
+            long k = (privateKey[bit >>> 3] >>> (bit & 7)) & 1;
+            // Clamping: bit 254 is always set, and bits 0 to 2 are always clear.
+            if (bit == 254)
+                k = 1;
+            else if (bit < 3)
+                k = 0;
+            swap ^= k;
+            cswap(swap, x2, x3);
+            cswap(swap, z2, z3);
+            swap = k;
+
+            add(a, x2, z2);                     // A = x_2 + z_2
+            mul(aa, a, a);                      // AA = A^2
+            sub(b, x2, z2);                     // B = x_2 - z_2
+            mul(bb, b, b);                      // BB = B^2
+            sub(e, aa, bb);                     // E = AA - BB
+            add(c, x3, z3);                     // C = x_3 + z_3
+            sub(d, x3, z3);                     // D = x_3 - z_3
+            mul(da, d, a);                      // DA = D * A
+            mul(cb, c, b);                      // CB = C * B
+            add(x3, da, cb);                    // x_3 = (DA + CB)^2
+            mul(x3, x3, x3);
+            sub(z3, da, cb);                    // z_3 = x_1 * (DA - CB)^2
+            mul(z3, z3, z3);
+            mul(z3, z3, x1);
+            mul(x2, aa, bb);                    // x_2 = AA * BB
+            mul(t, e, A24);                     // z_2 = E * (AA + a24 * E)
+            add(t, t, aa);
+            mul(z2, t, e);
+        }
+        cswap(swap, x2, x3);
+        cswap(swap, z2, z3);
+    }
+}
@@ -8,6 +8,7 @@ package org.amnezia.awg.crypto;
 import org.amnezia.awg.crypto.KeyFormatException.Type;
 import org.amnezia.awg.util.NonNullForAll;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
@@ -35,117 +36,103 @@ public final class Key {
     }
 
     /**
-     * Decodes a single 4-character base64 chunk to an integer in constant time.
+     * Decodes a single base64 character to its 6-bit value in constant time.
      *
-     * @param src       an array of at least 4 characters in base64 format
-     * @param srcOffset the offset of the beginning of the chunk in {@code src}
-     * @return the decoded 3-byte integer, or some arbitrary integer value if the input was not
-     * valid base64
+     * @param c a character in base64 format
+     * @return the decoded value, or -1 if the character was not valid base64
      */
-    private static int decodeBase64(final char[] src, final int srcOffset) {
-        int val = 0;
-        for (int i = 0; i < 4; ++i) {
-            final char c = src[i + srcOffset];
-            val |= (-1
-                    + ((((('A' - 1) - c) & (c - ('Z' + 1))) >>> 8) & (c - 64))
-                    + ((((('a' - 1) - c) & (c - ('z' + 1))) >>> 8) & (c - 70))
-                    + ((((('0' - 1) - c) & (c - ('9' + 1))) >>> 8) & (c + 5))
-                    + ((((('+' - 1) - c) & (c - ('+' + 1))) >>> 8) & 63)
-                    + ((((('/' - 1) - c) & (c - ('/' + 1))) >>> 8) & 64)
-            ) << (18 - 6 * i);
-        }
-        return val;
+    private static int decodeBase64(final int c) {
+        return -1
+                + ((((('A' - 1) - c) & (c - ('Z' + 1))) >>> 8) & (c - 64))
+                + ((((('a' - 1) - c) & (c - ('z' + 1))) >>> 8) & (c - 70))
+                + ((((('0' - 1) - c) & (c - ('9' + 1))) >>> 8) & (c + 5))
+                + ((((('+' - 1) - c) & (c - ('+' + 1))) >>> 8) & 63)
+                + ((((('/' - 1) - c) & (c - ('/' + 1))) >>> 8) & 64);
     }
 
     /**
-     * Encodes a single 4-character base64 chunk from 3 consecutive bytes in constant time.
+     * Decodes a base64 chunk of up to 4 characters to an integer in constant time. Missing
+     * characters at the end of the chunk decode as zero bits.
      *
-     * @param src        an array of at least 3 bytes
-     * @param srcOffset  the offset of the beginning of the chunk in {@code src}
-     * @param dest       an array of at least 4 characters
-     * @param destOffset the offset of the beginning of the chunk in {@code dest}
+     * @param src       characters in base64 format
+     * @param srcOffset the offset of the beginning of the chunk in {@code src}
+     * @param count     how many characters the chunk has
+     * @return the decoded 3-byte integer, or some negative value if the input was not valid base64
      */
-    private static void encodeBase64(final byte[] src, final int srcOffset,
-                                     final char[] dest, final int destOffset) {
-        final byte[] input = {
-                (byte) ((src[srcOffset] >>> 2) & 63),
-                (byte) ((src[srcOffset] << 4 | ((src[1 + srcOffset] & 0xff) >>> 4)) & 63),
-                (byte) ((src[1 + srcOffset] << 2 | ((src[2 + srcOffset] & 0xff) >>> 6)) & 63),
-                (byte) ((src[2 + srcOffset]) & 63),
-        };
-        for (int i = 0; i < 4; ++i) {
-            dest[i + destOffset] = (char) (input[i] + 'A'
-                    + (((25 - input[i]) >>> 8) & 6)
-                    - (((51 - input[i]) >>> 8) & 75)
-                    - (((61 - input[i]) >>> 8) & 15)
-                    + (((62 - input[i]) >>> 8) & 3));
-        }
+    private static int decodeBase64(final CharSequence src, final int srcOffset, final int count) {
+        int val = 0;
+        for (int i = 0; i < count; ++i)
+            val |= decodeBase64(src.charAt(i + srcOffset)) << (18 - 6 * i);
+        return val;
     }
 
     /**
-     * Decodes an AmneziaWG public or private key from its base64 string representation. This
-     * function throws a {@link KeyFormatException} if the source string is not well-formed.
+     * Decodes an AmneziaWG key from base64 into a caller-provided buffer, without allocating, in
+     * constant time. This function throws a {@link KeyFormatException} if the source characters
+     * are not well-formed, in which case the contents of the destination are unspecified.
      *
-     * @param str the base64 string representation of an AmneziaWG key
-     * @return the decoded key encapsulated in an immutable container
+     * @param src        characters holding the base64 representation of a key
+     * @param srcOffset  the offset of the 44 characters of the key in {@code src}
+     * @param dest       an array to decode the key into
+     * @param destOffset the offset in {@code dest} to write the 32 bytes of the key at
      */
-    public static Key fromBase64(final String str) throws KeyFormatException {
-        final char[] input = str.toCharArray();
-        if (input.length != Format.BASE64.length || input[Format.BASE64.length - 1] != '=')
+    public static void decodeBase64(final CharSequence src, final int srcOffset,
+                                    final byte[] dest, final int destOffset) throws KeyFormatException {
+        if (src.length() - srcOffset < Format.BASE64.length
+                || src.charAt(srcOffset + Format.BASE64.length - 1) != '=')
             throw new KeyFormatException(Format.BASE64, Type.LENGTH);
-        final byte[] key = new byte[Format.BINARY.length];
         int i;
         int ret = 0;
-        for (i = 0; i < key.length / 3; ++i) {
-            final int val = decodeBase64(input, i * 4);
+        for (i = 0; i < Format.BINARY.length / 3; ++i) {
+            final int val = decodeBase64(src, srcOffset + i * 4, 4);
             ret |= val >>> 31;
-            key[i * 3] = (byte) ((val >>> 16) & 0xff);
-            key[i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
-            key[i * 3 + 2] = (byte) (val & 0xff);
+            dest[destOffset + i * 3] = (byte) ((val >>> 16) & 0xff);
+            dest[destOffset + i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
+            dest[destOffset + i * 3 + 2] = (byte) (val & 0xff);
         }
-        final char[] endSegment = {
-                input[i * 4],
-                input[i * 4 + 1],
-                input[i * 4 + 2],
-                'A',
-        };
-        final int val = decodeBase64(endSegment, 0);
+        final int val = decodeBase64(src, srcOffset + i * 4, 3);
         ret |= (val >>> 31) | (val & 0xff);
-        key[i * 3] = (byte) ((val >>> 16) & 0xff);
-        key[i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
+        dest[destOffset + i * 3] = (byte) ((val >>> 16) & 0xff);
+        dest[destOffset + i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
 
         if (ret != 0)
             throw new KeyFormatException(Format.BASE64, Type.CONTENTS);
-        return new Key(key);
     }
 
     /**
-     * Wraps an AmneziaWG public or private key in an immutable container. This function throws a
-     * {@link KeyFormatException} if the source data is not the correct length.
+     * Decodes several AmneziaWG keys from base64 into one caller-provided buffer, back to back.
+     * Each key is decoded in constant time as by {@link #decodeBase64(CharSequence, int, byte[], int)}.
      *
-     * @param bytes an array of bytes containing an AmneziaWG key in binary format
-     * @return the key encapsulated in an immutable container
+     * @param src        the base64 representations of the keys
+     * @param dest       an array to decode the keys into
+     * @param destOffset the offset in {@code dest} to write the 32 bytes of the first key at
      */
-    public static Key fromBytes(final byte[] bytes) throws KeyFormatException {
-        if (bytes.length != Format.BINARY.length)
-            throw new KeyFormatException(Format.BINARY, Type.LENGTH);
-        return new Key(bytes);
+    public static void decodeBase64(final CharSequence[] src, final byte[] dest, final int destOffset)
+            throws KeyFormatException {
+        for (int i = 0; i < src.length; ++i) {
+            if (src[i].length() != Format.BASE64.length)
+                throw new KeyFormatException(Format.BASE64, Type.LENGTH);
+            decodeBase64(src[i], 0, dest, destOffset + i * Format.BINARY.length);
+        }
     }
 
     /**
-     * Decodes an AmneziaWG public or private key from its hexadecimal string representation. This
-     * function throws a {@link KeyFormatException} if the source string is not well-formed.
+     * Decodes an AmneziaWG key from hexadecimal into a caller-provided buffer, without
+     * allocating, in constant time. This function throws a {@link KeyFormatException} if the
+     * source characters are not well-formed, in which case the contents of the destination are
+     * unspecified.
      *
-     * @param str the hexadecimal string representation of an AmneziaWG key
-     * @return the decoded key encapsulated in an immutable container
+     * @param src        characters holding the hexadecimal representation of a key
+     * @param srcOffset  the offset of the 64 characters of the key in {@code src}
+     * @param dest       an array to decode the key into
+     * @param destOffset the offset in {@code dest} to write the 32 bytes of the key at
      */
-    public static Key fromHex(final String str) throws KeyFormatException {
-        final char[] input = str.toCharArray();
-        if (input.length != Format.HEX.length)
+    public static void decodeHex(final CharSequence src, final int srcOffset,
+                                 final byte[] dest, final int destOffset) throws KeyFormatException {
+        if (src.length() - srcOffset < Format.HEX.length)
             throw new KeyFormatException(Format.HEX, Type.LENGTH);
-        final byte[] key = new byte[Format.BINARY.length];
         int ret = 0;
-        for (int i = 0; i < key.length; ++i) {
+        for (int i = 0; i < Format.BINARY.length; ++i) {
             int c;
             int cNum;
             int cNum0;
@@ -154,7 +141,7 @@ public final class Key {
             int cVal;
             final int cAcc;
 
-            c = input[i * 2];
+            c = src.charAt(srcOffset + i * 2);
             cNum = c ^ 48;
             cNum0 = ((cNum - 10) >>> 8) & 0xff;
             cAlpha = (c & ~32) - 55;
@@ -163,18 +150,105 @@ public final class Key {
             cVal = (cNum0 & cNum) | (cAlpha0 & cAlpha);
             cAcc = cVal * 16;
 
-            c = input[i * 2 + 1];
+            c = src.charAt(srcOffset + i * 2 + 1);
             cNum = c ^ 48;
             cNum0 = ((cNum - 10) >>> 8) & 0xff;
             cAlpha = (c & ~32) - 55;
             cAlpha0 = (((cAlpha - 10) ^ (cAlpha - 16)) >>> 8) & 0xff;
             ret |= ((cNum0 | cAlpha0) - 1) >>> 8;
             cVal = (cNum0 & cNum) | (cAlpha0 & cAlpha);
-            key[i] = (byte) (cAcc | cVal);
+            dest[destOffset + i] = (byte) (cAcc | cVal);
         }
         if (ret != 0)
             throw new KeyFormatException(Format.HEX, Type.CONTENTS);
-        return new Key(key);
+    }
+
+    /**
+     * Encodes a 6-bit value as a base64 character in constant time.
+     *
+     * @param value a value from 0 to 63
+     * @return the base64 character for the value
+     */
+    private static char encodeBase64(final int value) {
+        return (char) (value + 'A'
+                + (((25 - value) >>> 8) & 6)
+                - (((51 - value) >>> 8) & 75)
+                - (((61 - value) >>> 8) & 15)
+                + (((62 - value) >>> 8) & 3));
+    }
+
+    /**
+     * Encodes several keys to base64 into one caller-provided buffer, back to back, without
+     * allocating.
+     *
+     * @param keys       the keys to encode
+     * @param dest       an array to encode the keys into
+     * @param destOffset the offset in {@code dest} to write the 44 characters of the first key at
+     */
+    public static void encodeBase64(final Key[] keys, final char[] dest, final int destOffset) {
+        for (int i = 0; i < keys.length; ++i)
+            keys[i].encodeBase64(dest, destOffset + i * Format.BASE64.length);
+    }
+
+    /**
+     * Encodes a 4-bit value as a lowercase hexadecimal character in constant time.
+     *
+     * @param value a value from 0 to 15
+     * @return the hexadecimal character for the value
+     */
+    private static char encodeHex(final int value) {
+        return (char) (87 + value + (((value - 10) >> 8) & ~38));
+    }
+
+    /**
+     * Decodes an AmneziaWG public or private key from its base64 string representation. This
+     * function throws a {@link KeyFormatException} if the source string is not well-formed.
+     *
+     * @param str the base64 string representation of an AmneziaWG key
+     * @return the decoded key encapsulated in an immutable container
+     */
+    public static Key fromBase64(final String str) throws KeyFormatException {
+        if (str.length() != Format.BASE64.length)
+            throw new KeyFormatException(Format.BASE64, Type.LENGTH);
+        final byte[] key = new byte[Format.BINARY.length];
+        try {
+            decodeBase64(str, 0, key, 0);
+            return new Key(key);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Wraps an AmneziaWG public or private key in an immutable container. This function throws a
+     * {@link KeyFormatException} if the source data is not the correct length.
+     *
+     * @param bytes an array of bytes containing an AmneziaWG key in binary format
+     * @return the key encapsulated in an immutable container
+     */
+    public static Key fromBytes(final byte[] bytes) throws KeyFormatException {
+        if (bytes.length != Format.BINARY.length)
+            throw new KeyFormatException(Format.BINARY, Type.LENGTH);
+        return new Key(bytes);
+    }
+
+    /**
+     * Decodes an AmneziaWG public or private key from its hexadecimal string representation. This
+     * function throws a {@link KeyFormatException} if the source string is not well-formed.
+     *
+     * @param str the hexadecimal string representation of an AmneziaWG key
+     * @return the decoded key encapsulated in an immutable container
+     */
+    public static Key fromHex(final String str) throws KeyFormatException {
+        if (str.length() != Format.HEX.length)
+            throw new KeyFormatException(Format.HEX, Type.LENGTH);
+        final byte[] key = new byte[Format.BINARY.length];
+        try {
+            decodeHex(str, 0, key, 0);
+            return new Key(key);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
     }
 
     /**
@@ -224,12 +298,88 @@ public final class Key {
         return Arrays.copyOf(key, key.length);
     }
 
+    /**
+     * Reads eight bytes of the key as a big-endian long.
+     *
+     * @param index which eight bytes to read, from 0 to 3
+     */
+    long getLong(final int index) {
+        long value = 0;
+        for (int i = index * 8; i < index * 8 + 8; ++i)
+            value = value << 8 | (key[i] & 0xff);
+        return value;
+    }
+
     @Override
     public int hashCode() {
-        int ret = 0;
-        for (int i = 0; i < key.length / 4; ++i)
-            ret ^= (key[i * 4 + 0] >> 0) + (key[i * 4 + 1] >> 8) + (key[i * 4 + 2] >> 16) + (key[i * 4 + 3] >> 24);
-        return ret;
+        // Keys are uniformly random, so folding every bit in keeps them evenly spread.
+        final long folded = getLong(0) ^ getLong(1) ^ getLong(2) ^ getLong(3);
+        return (int) (folded ^ (folded >>> 32));
+    }
+
+    /**
+     * Encodes the key to base64, appending each character to {@code out} as it is produced so
+     * that no {@link String} holds the encoded key.
+     *
+     * @param out where to append the base64 characters
+     */
+    public void appendBase64(final Appendable out) throws IOException {
+        int i;
+        for (i = 0; i < key.length / 3; ++i) {
+            final int val = (key[i * 3] & 0xff) << 16 | (key[i * 3 + 1] & 0xff) << 8 | (key[i * 3 + 2] & 0xff);
+            for (int j = 0; j < 4; ++j)
+                out.append(encodeBase64((val >>> (18 - 6 * j)) & 63));
+        }
+        final int val = (key[i * 3] & 0xff) << 16 | (key[i * 3 + 1] & 0xff) << 8;
+        for (int j = 0; j < 3; ++j)
+            out.append(encodeBase64((val >>> (18 - 6 * j)) & 63));
+        out.append('=');
+    }
+
+    /**
+     * Encodes the key to hexadecimal, appending each character to {@code out} as it is produced so
+     * that no {@link String} holds the encoded key.
+     *
+     * @param out where to append the hexadecimal characters
+     */
+    public void appendHex(final Appendable out) throws IOException {
+        for (final byte b : key) {
+            out.append(encodeHex(b >> 4 & 0xf));
+            out.append(encodeHex(b & 0xf));
+        }
+    }
+
+    /**
+     * Encodes the key to base64 into a caller-provided buffer, without allocating.
+     *
+     * @param dest       an array to encode the key into
+     * @param destOffset the offset in {@code dest} to write the 44 characters of the key at
+     */
+    public void encodeBase64(final char[] dest, final int destOffset) {
+        int i;
+        for (i = 0; i < key.length / 3; ++i) {
+            final int val = (key[i * 3] & 0xff) << 16 | (key[i * 3 + 1] & 0xff) << 8 | (key[i * 3 + 2] & 0xff);
+            for (int j = 0; j < 4; ++j)
+                dest[destOffset + i * 4 + j] = encodeBase64((val >>> (18 - 6 * j)) & 63);
+        }
+        final int val = (key[i * 3] & 0xff) << 16 | (key[i * 3 + 1] & 0xff) << 8;
+        for (int j = 0; j < 3; ++j)
+            dest[destOffset + i * 4 + j] = encodeBase64((val >>> (18 - 6 * j)) & 63);
+        dest[destOffset + Format.BASE64.length - 1] = '=';
+    }
+
+    /**
+     * Encodes the key to hexadecimal ASCII characters into a caller-provided buffer, without
+     * allocating.
+     *
+     * @param dest       an array to encode the key into
+     * @param destOffset the offset in {@code dest} to write the 64 characters of the key at
+     */
+    public void encodeHex(final char[] dest, final int destOffset) {
+        for (int i = 0; i < key.length; ++i) {
+            dest[destOffset + i * 2] = encodeHex(key[i] >> 4 & 0xf);
+            dest[destOffset + i * 2 + 1] = encodeHex(key[i] & 0xf);
+        }
     }
 
     /**
@@ -239,16 +389,7 @@ public final class Key {
      */
     public String toBase64() {
         final char[] output = new char[Format.BASE64.length];
-        int i;
-        for (i = 0; i < key.length / 3; ++i)
-            encodeBase64(key, i * 3, output, i * 4);
-        final byte[] endSegment = {
-                key[i * 3],
-                key[i * 3 + 1],
-                0,
-        };
-        encodeBase64(endSegment, 0, output, i * 4);
-        output[Format.BASE64.length - 1] = '=';
+        encodeBase64(output, 0);
         return new String(output);
     }
 
@@ -259,12 +400,7 @@ public final class Key {
      */
     public String toHex() {
         final char[] output = new char[Format.HEX.length];
-        for (int i = 0; i < key.length; ++i) {
-            output[i * 2] = (char) (87 + (key[i] >> 4 & 0xf)
-                    + ((((key[i] >> 4 & 0xf) - 10) >> 8) & ~38));
-            output[i * 2 + 1] = (char) (87 + (key[i] & 0xf)
-                    + ((((key[i] & 0xf) - 10) >> 8) & ~38));
-        }
+        encodeHex(output, 0);
         return new String(output);
     }
 
@@ -21,17 +21,21 @@ public class KeyPair {
      * Creates a key pair using a newly-generated private key.
      */
     public KeyPair() {
-        this(Key.generatePrivateKey());
+        // A fresh private key cannot be cached yet, and is unlikely to be parsed again soon.
+        privateKey = Key.generatePrivateKey();
+        publicKey = Key.generatePublicKey(privateKey);
     }
 
     /**
      * Creates a key pair using an existing private key.
+     * <p>
+     * The public key is looked up in {@link PublicKeyCache} before it is derived.
      *
      * @param privateKey a private key, used to derive the public key
      */
     public KeyPair(final Key privateKey) {
         this.privateKey = privateKey;
-        publicKey = Key.generatePublicKey(privateKey);
+        publicKey = PublicKeyCache.get(privateKey);
     }
 
     /**
@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+/**
+ * An open-addressed hash table of {@link Key}s, which numbers them 0, 1, 2… in the order they
+ * were added, so that values can be kept in parallel primitive arrays indexed by that number.
+ * The bytes of each key are stored inline, four longs to a slot, and looking a key up compares
+ * those longs without touching any {@link Key} object; keys can even be looked up straight from
+ * a buffer of raw bytes.
+ * <p>
+ * Keys are compared in variable time, so the table is meant for public keys. Keys cannot be
+ * removed, only cleared all at once. This class is not thread-safe.
+ */
+@NonNullForAll
+public final class KeyTable {
+    private static final int LONGS = Key.Format.BINARY.getLength() / 8;
+
+    private Key[] keys;
+    // The number plus one of the key in each slot, or 0 for an empty slot.
+    private int[] numbers;
+    private int size;
+    private long[] slots;
+
+    public KeyTable() {
+        this(8);
+    }
+
+    /**
+     * @param expected how many keys to make room for before growing
+     */
+    public KeyTable(final int expected) {
+        int capacity = 16;
+        while (capacity < 2 * expected)
+            capacity *= 2;
+        keys = new Key[capacity / 2];
+        numbers = new int[capacity];
+        slots = new long[capacity * LONGS];
+    }
+
+    private static int slotOf(final long a, final long b, final long c, final long d, final int mask) {
+        final long folded = a ^ b ^ c ^ d;
+        // Keys are uniformly random; the multiply only guards against crafted ones clustering.
+        return (int) ((folded * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+    }
+
+    /**
+     * Adds a key if it is not in the table yet.
+     *
+     * @param key the key to add
+     * @return the number of the key
+     */
+    public int add(final Key key) {
+        final int existing = indexOf(key);
+        if (existing >= 0)
+            return existing;
+        if (2 * (size + 1) > numbers.length)
+            grow();
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        keys[size] = key;
+        insert(size, key.getLong(0), key.getLong(1), key.getLong(2), key.getLong(3));
+        return size++;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(numbers, 0);
+        size = 0;
+    }
+
+    /**
+     * Returns the key with a number.
+     *
+     * @param number a number returned by {@link #add(Key)}, less than {@link #size()}
+     * @return the key
+     */
+    public Key get(final int number) {
+        if (number < 0 || number >= size)
+            throw new IndexOutOfBoundsException(String.valueOf(number));
+        return keys[number];
+    }
+
+    private void grow() {
+        final long[] oldSlots = slots;
+        final int[] oldNumbers = numbers;
+        numbers = new int[oldNumbers.length * 2];
+        slots = new long[numbers.length * LONGS];
+        for (int slot = 0; slot < oldNumbers.length; ++slot) {
+            if (oldNumbers[slot] != 0) {
+                final int base = slot * LONGS;
+                insert(oldNumbers[slot] - 1, oldSlots[base], oldSlots[base + 1], oldSlots[base + 2], oldSlots[base + 3]);
+            }
+        }
+    }
+
+    /**
+     * Looks a key up.
+     *
+     * @param key the key to look up
+     * @return the number of the key, or -1 if it is not in the table
+     */
+    public int indexOf(@Nullable final Key key) {
+        if (key == null)
+            return -1;
+        return lookUp(key.getLong(0), key.getLong(1), key.getLong(2), key.getLong(3));
+    }
+
+    /**
+     * Looks a key up by its raw bytes, without creating a {@link Key}.
+     *
+     * @param buffer a buffer holding the key
+     * @param offset where in {@code buffer} the 32 bytes of the key start
+     * @return the number of the key, or -1 if it is not in the table
+     */
+    public int indexOf(final ByteBuffer buffer, final int offset) {
+        final long a = buffer.getLong(offset);
+        final long b = buffer.getLong(offset + 8);
+        final long c = buffer.getLong(offset + 16);
+        final long d = buffer.getLong(offset + 24);
+        if (buffer.order() == ByteOrder.BIG_ENDIAN)
+            return lookUp(a, b, c, d);
+        return lookUp(Long.reverseBytes(a), Long.reverseBytes(b), Long.reverseBytes(c), Long.reverseBytes(d));
+    }
+
+    private void insert(final int number, final long a, final long b, final long c, final long d) {
+        final int mask = numbers.length - 1;
+        int slot = slotOf(a, b, c, d, mask);
+        while (numbers[slot] != 0)
+            slot = (slot + 1) & mask;
+        numbers[slot] = number + 1;
+        final int base = slot * LONGS;
+        slots[base] = a;
+        slots[base + 1] = b;
+        slots[base + 2] = c;
+        slots[base + 3] = d;
+    }
+
+    private int lookUp(final long a, final long b, final long c, final long d) {
+        final int mask = numbers.length - 1;
+        for (int slot = slotOf(a, b, c, d, mask); numbers[slot] != 0; slot = (slot + 1) & mask) {
+            final int base = slot * LONGS;
+            if (slots[base] == a && slots[base + 1] == b && slots[base + 2] == c && slots[base + 3] == d)
+                return numbers[slot] - 1;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Remembers the public keys derived from recently used private keys, so that parsing the same
+ * configuration again does not repeat a Curve25519 evaluation.
+ * <p>
+ * Private keys are never stored: entries are looked up by a SHA-256 digest of the private key,
+ * salted with a secret chosen at random when the process starts. Digests are zeroed when their
+ * entries are evicted or cleared. The cache holds at most {@link #CAPACITY} entries and evicts
+ * the least recently used one first.
+ */
+@NonNullForAll
+public final class PublicKeyCache {
+    static final int CAPACITY = 256;
+    private static final Map<ByteBuffer, Key> CACHE = new LinkedHashMap<ByteBuffer, Key>(CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Key> eldest) {
+            if (size() <= CAPACITY)
+                return false;
+            // Zeroing a digest changes its hash, so it has to leave the map first.
+            final ByteBuffer digest = eldest.getKey();
+            remove(digest);
+            Arrays.fill(digest.array(), (byte) 0);
+            return false;
+        }
+    };
+    private static final byte[] SALT = new byte[32];
+
+    static {
+        new SecureRandom().nextBytes(SALT);
+    }
+
+    private PublicKeyCache() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Forgets every cached public key, zeroing the digests of their private keys.
+     */
+    public static void clear() {
+        synchronized (CACHE) {
+            for (final ByteBuffer digest : CACHE.keySet())
+                Arrays.fill(digest.array(), (byte) 0);
+            CACHE.clear();
+        }
+    }
+
+    private static byte[] digest(final Key privateKey) {
+        final MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        sha256.update(SALT);
+        final byte[] bytes = privateKey.getBytes();
+        sha256.update(bytes);
+        Arrays.fill(bytes, (byte) 0);
+        return sha256.digest();
+    }
+
+    /**
+     * Returns the public key for a private key, deriving it only if it is not cached.
+     *
+     * @param privateKey a private key
+     * @return the public key that corresponds to the private key
+     */
+    static Key get(final Key privateKey) {
+        final ByteBuffer digest = ByteBuffer.wrap(digest(privateKey));
+        synchronized (CACHE) {
+            final Key publicKey = CACHE.get(digest);
+            if (publicKey != null) {
+                Arrays.fill(digest.array(), (byte) 0);
+                return publicKey;
+            }
+        }
+        final Key publicKey = Key.generatePublicKey(privateKey);
+        synchronized (CACHE) {
+            @Nullable final Key raced = CACHE.putIfAbsent(digest, publicKey);
+            if (raced != null)
+                Arrays.fill(digest.array(), (byte) 0);
+        }
+        return publicKey;
+    }
+
+    static int size() {
+        synchronized (CACHE) {
+            return CACHE.size();
+        }
+    }
+}
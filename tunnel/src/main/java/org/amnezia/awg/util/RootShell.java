@@ -17,8 +17,16 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.Nullable;
 
@@ -31,10 +39,20 @@ public class RootShell {
     private static final String SU = "su";
     private static final String TAG = "AmneziaWG/RootShell";
 
+    private final AtomicLong commandCount = new AtomicLong();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "RootShellQueue");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final File localBinaryDir;
     private final File localTemporaryDir;
     private final Object lock = new Object();
+    private final AtomicLong maxNanos = new AtomicLong();
     private final String preamble;
+    private final List<QueuedCommand> queue = new ArrayList<>();
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
     @Nullable private Process process;
     @Nullable private BufferedReader stderr;
     @Nullable private OutputStreamWriter stdin;
@@ -60,6 +78,13 @@ public class RootShell {
         return false;
     }
 
+    /**
+     * Returns how many round trips to the root shell were made so far and how long they took.
+     */
+    public Metrics getMetrics() {
+        return new Metrics(roundTrips.get(), commandCount.get(), totalNanos.get(), maxNanos.get());
+    }
+
     private boolean isRunning() {
         synchronized (lock) {
             try {
@@ -84,49 +109,141 @@ public class RootShell {
      */
     public int run(@Nullable final Collection<String> output, final String command)
             throws IOException, RootShellException {
+        return run(output == null ? null : Collections.singletonList(output),
+                Collections.singletonList(command))[0];
+    }
+
+    /**
+     * Run several commands in a root shell, one after another, in a single round trip. The
+     * commands are written to the shell all at once, and their output is told apart by markers.
+     *
+     * @param outputs  Lines each command writes to stdout are appended to the collection at the
+     *                 same index. Pass null if the output from the shell is not important.
+     * @param commands Commands to run as root.
+     * @return The exit values of the commands.
+     * @throws IOException        if the shell could not be written to or read from; like any
+     *                            other failure, this stops the shell, and the next call starts a
+     *                            new one.
+     */
+    public int[] run(@Nullable final List<? extends Collection<String>> outputs, final List<String> commands)
+            throws IOException, RootShellException {
+        if (outputs != null && outputs.size() != commands.size())
+            throw new IllegalArgumentException("Expected one output per command");
+        final int count = commands.size();
+        final int[] exitValues = new int[count];
+        if (count == 0)
+            return exitValues;
         synchronized (lock) {
             /* Start inside synchronized block to prevent a concurrent call to stop(). */
             start();
-            final String marker = UUID.randomUUID().toString();
-            final String script = "echo " + marker + "; echo " + marker + " >&2; (" + command +
-                    "); ret=$?; echo " + marker + " $ret; echo " + marker + " $ret >&2\n";
-            Log.v(TAG, "executing: " + command);
-            stdin.write(script);
-            stdin.flush();
-            String line;
-            int errnoStdout = Integer.MIN_VALUE;
-            int errnoStderr = Integer.MAX_VALUE;
-            int markersSeen = 0;
-            while ((line = stdout.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStdout = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
+            try {
+                final long startNanos = System.nanoTime();
+                final String[] markers = new String[count];
+                final StringBuilder script = new StringBuilder();
+                for (int i = 0; i < count; ++i) {
+                    markers[i] = UUID.randomUUID().toString();
+                    script.append("echo ").append(markers[i]).append("; echo ").append(markers[i])
+                            .append(" >&2; (").append(commands.get(i)).append("); ret=$?; echo ")
+                            .append(markers[i]).append(" $ret; echo ").append(markers[i]).append(" $ret >&2\n");
+                    Log.v(TAG, "executing: " + commands.get(i));
+                }
+                stdin.write(script.toString());
+                stdin.flush();
+                String line;
+                int markersSeen = 0;
+                // Each command prints a start and an end marker on stdout, then the same on stderr.
+                int index = 0;
+                boolean started = false;
+                while (index < count && (line = stdout.readLine()) != null) {
+                    if (line.startsWith(markers[index])) {
+                        ++markersSeen;
+                        if (line.length() > markers[index].length() + 1) {
+                            exitValues[index] = Integer.parseInt(line.substring(markers[index].length() + 1));
+                            ++index;
+                            started = false;
+                        } else {
+                            started = true;
+                        }
+                    } else if (started) {
+                        if (outputs != null)
+                            outputs.get(index).add(line);
+                        Log.v(TAG, "stdout: " + line);
                     }
-                } else if (markersSeen > 0) {
-                    if (output != null)
-                        output.add(line);
-                    Log.v(TAG, "stdout: " + line);
                 }
-            }
-            while ((line = stderr.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStderr = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
+                index = 0;
+                started = false;
+                while (index < count && (line = stderr.readLine()) != null) {
+                    if (line.startsWith(markers[index])) {
+                        ++markersSeen;
+                        if (line.length() > markers[index].length() + 1) {
+                            if (exitValues[index] != Integer.parseInt(line.substring(markers[index].length() + 1)))
+                                throw new RootShellException(Reason.SHELL_EXIT_STATUS_READ_ERROR);
+                            ++index;
+                            started = false;
+                        } else {
+                            started = true;
+                        }
+                    } else if (started) {
+                        Log.v(TAG, "stderr: " + line);
                     }
-                } else if (markersSeen > 2) {
-                    Log.v(TAG, "stderr: " + line);
                 }
+                if (markersSeen != 4 * count)
+                    throw new RootShellException(Reason.SHELL_MARKER_COUNT_ERROR, markersSeen);
+                final long nanos = System.nanoTime() - startNanos;
+                roundTrips.incrementAndGet();
+                commandCount.addAndGet(count);
+                totalNanos.addAndGet(nanos);
+                maxNanos.accumulateAndGet(nanos, Math::max);
+                Log.v(TAG, "exit: " + Arrays.toString(exitValues) + " after " + nanos / 1000 + "us");
+                return exitValues;
+            } catch (final IOException | RootShellException | RuntimeException e) {
+                // The shell may be left mid-command, with output that would be taken for the next.
+                stop();
+                throw e;
             }
-            if (markersSeen != 4)
-                throw new RootShellException(Reason.SHELL_MARKER_COUNT_ERROR, markersSeen);
-            if (errnoStdout != errnoStderr)
-                throw new RootShellException(Reason.SHELL_EXIT_STATUS_READ_ERROR);
-            Log.v(TAG, "exit: " + errnoStdout);
-            return errnoStdout;
+        }
+    }
+
+    /**
+     * Queue a command to run in a root shell. Commands queued while the shell is busy are run
+     * together, in the order they were queued, in a single round trip once it is free.
+     *
+     * @param output  Lines read from stdout are appended to this list before the result
+     *                completes. Pass null if the output from the shell is not important.
+     * @param command Command to run as root.
+     * @return The exit value of the command, once it has run.
+     */
+    public CompletableFuture<Integer> runAsync(@Nullable final Collection<String> output, final String command) {
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        final boolean idle;
+        synchronized (queue) {
+            idle = queue.isEmpty();
+            queue.add(new QueuedCommand(output, command, result));
+        }
+        if (idle)
+            executor.execute(this::runQueue);
+        return result;
+    }
+
+    private void runQueue() {
+        final List<QueuedCommand> batch;
+        synchronized (queue) {
+            batch = new ArrayList<>(queue);
+            queue.clear();
+        }
+        final List<Collection<String>> outputs = new ArrayList<>(batch.size());
+        final List<String> commands = new ArrayList<>(batch.size());
+        for (final QueuedCommand queued : batch) {
+            outputs.add(queued.output == null ? new ArrayList<>() : queued.output);
+            commands.add(queued.command);
+        }
+        try {
+            final int[] exitValues = run(outputs, commands);
+            for (int i = 0; i < batch.size(); ++i)
+                batch.get(i).result.complete(exitValues[i]);
+        } catch (final Exception e) {
+            for (final QueuedCommand queued : batch)
+                queued.result.completeExceptionally(e);
         }
     }
 
@@ -189,6 +306,29 @@ public class RootShell {
         }
     }
 
+    /**
+     * Round trips made to the root shell by a {@link RootShell}.
+     *
+     * @param roundTrips Number of times commands were written to the shell and read back.
+     * @param commands   Number of commands run over those round trips.
+     * @param totalNanos Time spent on all round trips, from writing the commands to reading
+     *                   their last marker.
+     * @param maxNanos   Longest of those round trips.
+     */
+    public record Metrics(long roundTrips, long commands, long totalNanos, long maxNanos) {
+        @Override
+        public String toString() {
+            return "round_trips=" + roundTrips +
+                    " commands=" + commands +
+                    " mean=" + (roundTrips == 0 ? 0 : totalNanos / roundTrips / 1000) + "us" +
+                    " max=" + maxNanos / 1000 + "us";
+        }
+    }
+
+    private record QueuedCommand(@Nullable Collection<String> output, String command,
+                                 CompletableFuture<Integer> result) {
+    }
+
     public static class RootShellException extends Exception {
         private final Object[] format;
         private final Reason reason;
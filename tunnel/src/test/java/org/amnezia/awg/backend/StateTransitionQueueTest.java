@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.backend.Tunnel.State;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StateTransitionQueueTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final class TestTunnel implements Tunnel {
+        private final String name;
+
+        TestTunnel(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void onStateChange(final State newState) {
+        }
+    }
+
+    /**
+     * Wait for the queue to forget every transition, which it does just after completing each one,
+     * so a moment after whoever waits on the future may see it complete.
+     */
+    private static void assertEmptied(final StateTransitionQueue queue) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (queue.pendingCount() != 0 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(0, queue.pendingCount());
+    }
+
+    @Test
+    public void superseded_transitions_that_have_not_started_never_run() throws Exception {
+        final StateTransitionQueue queue = new StateTransitionQueue();
+        final Tunnel tunnel = new TestTunnel("tunnel");
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean();
+        // Keeps the one thread of the queue busy, so the transitions below wait their turn.
+        final CompletableFuture<State> blocker = queue.submit(new TestTunnel("blocker"), () -> {
+            release.await();
+            return State.UP;
+        });
+        final CompletableFuture<State> first = queue.submit(tunnel, () -> {
+            ran.set(true);
+            return State.UP;
+        });
+        final CompletableFuture<State> second = queue.submit(tunnel, () -> State.DOWN);
+        assertTrue(first.isCancelled());
+
+        release.countDown();
+        assertEquals(State.UP, blocker.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(State.DOWN, second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertEmptied(queue);
+    }
+
+    @Test
+    public void superseded_transitions_that_are_running_are_interrupted() throws Exception {
+        final StateTransitionQueue queue = new StateTransitionQueue();
+        final Tunnel tunnel = new TestTunnel("tunnel");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CompletableFuture<State> first = queue.submit(tunnel, () -> {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (final InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return State.UP;
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final CompletableFuture<State> second = queue.submit(tunnel, () -> State.DOWN);
+        assertTrue(first.isCancelled());
+        assertTrue(interrupted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(State.DOWN, second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEmptied(queue);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AttributeTest {
+    // The expressions the parser used to be built on, which it must keep agreeing with.
+    private static final Pattern LINE_PATTERN = Pattern.compile("(\\w+)\\s*=\\s*(.*?)\\s*$");
+    private static final Pattern LIST_SEPARATOR = Pattern.compile("\\s*,\\s*");
+    private static final char[] ALPHABET = "aZ_9 \t=,=,/.:-é \r".toCharArray();
+
+    private static String randomString(final Random random) {
+        final char[] chars = new char[random.nextInt(12)];
+        for (int i = 0; i < chars.length; ++i)
+            chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        return new String(chars);
+    }
+
+    @Test
+    public void parse_agrees_with_regular_expression() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 200000; ++i) {
+            final String line = randomString(random);
+            final Matcher matcher = LINE_PATTERN.matcher(line);
+            final Optional<Attribute> attribute = Attribute.parse(line);
+            assertEquals(line, matcher.matches(), attribute.isPresent());
+            if (attribute.isPresent()) {
+                assertEquals(line, matcher.group(1), attribute.get().getKey());
+                assertEquals(line, matcher.group(1).toLowerCase(Locale.ENGLISH), attribute.get().getLowerCaseKey());
+                assertEquals(line, matcher.group(2), attribute.get().getValue());
+            }
+        }
+    }
+
+    @Test
+    public void split_agrees_with_regular_expression() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 200000; ++i) {
+            final String value = randomString(random);
+            assertArrayEquals(value, LIST_SEPARATOR.split(value), Attribute.split(value));
+        }
+        assertEquals(Arrays.asList("10.0.0.0/8", "::/0"), Arrays.asList(Attribute.split("10.0.0.0/8 ,\t::/0, ,")));
+    }
+}
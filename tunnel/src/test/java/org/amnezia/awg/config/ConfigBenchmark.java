@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Times parsing and serializing configurations. Run with -Pbenchmarks.
+ */
+public class ConfigBenchmark {
+    @Test
+    public void parsing() throws IOException, BadConfigException {
+        final String config = TestNetworks.manyAllowedIps(20000);
+        final int rounds = 10;
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            Config.parse(new BufferedReader(new StringReader(config)));
+        final long micros = (System.nanoTime() - start) / 1000 / rounds;
+        System.out.println("Parsed a config with 20000 allowed IPs in " + micros + "us");
+    }
+
+    @Test
+    public void serializing() throws IOException, BadConfigException {
+        final StringBuilder text = new StringBuilder("[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n" +
+                "Jc = 4\nJmin = 40\nJmax = 70\nS1 = 15\nS2 = 56\nH1 = 1\nH2 = 2\nH3 = 3\nH4 = 4\n");
+        for (int i = 0; i < 20; ++i) {
+            text.append("[Peer]\nPublicKey = ").append((char) ('A' + i)).append("BN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\nAllowedIPs = ");
+            for (int j = 0; j < 50; ++j)
+                text.append(j == 0 ? "" : ", ").append("10.").append(i).append('.').append(j).append(".0/24");
+            text.append('\n');
+        }
+        final Config[] configs = new Config[100];
+        for (int i = 0; i < configs.length; ++i)
+            configs[i] = Config.parse(new BufferedReader(new StringReader(text.toString())));
+        for (final Config config : configs)
+            config.toAwgQuickString();
+        // Stores stream configurations to their files through an Appendable, as timed second.
+        long start = System.nanoTime();
+        for (final Config config : configs)
+            config.toAwgQuickString();
+        final long stringNanos = (System.nanoTime() - start) / configs.length;
+        final StringBuilder out = new StringBuilder();
+        start = System.nanoTime();
+        for (final Config config : configs) {
+            out.setLength(0);
+            config.appendAwgQuickString(out, false);
+        }
+        final long appendNanos = (System.nanoTime() - start) / configs.length;
+        System.out.println("Serialized a 20 peer config in " + stringNanos / 1000 + "us to a String and in " +
+                appendNanos / 1000 + "us to a reused Appendable");
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Compares loading a configuration from its binary cache and from its text. Run with -Pbenchmarks.
+ */
+public class ConfigCodecBenchmark {
+    @Test
+    public void reading_and_parsing() throws IOException, BadConfigException {
+        final String config = TestNetworks.manyAllowedIps(2000);
+        final byte[] bytes = ConfigCodecTest.write(Config.parse(new BufferedReader(new StringReader(config))));
+        final int rounds = 200;
+        for (int i = 0; i < rounds; ++i) {
+            Config.parse(new BufferedReader(new StringReader(config)));
+            ConfigCodecTest.read(bytes);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            Config.parse(new BufferedReader(new StringReader(config)));
+        final long parseNanos = (System.nanoTime() - start) / rounds;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            ConfigCodecTest.read(bytes);
+        final long readNanos = (System.nanoTime() - start) / rounds;
+        System.out.println("Loaded a config with 2000 allowed IPs in " + parseNanos / 1000 + "us from text and " +
+                readNanos / 1000 + "us from " + bytes.length + " cached bytes");
+    }
+}
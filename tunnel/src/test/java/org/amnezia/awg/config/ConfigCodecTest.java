@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ConfigCodecTest {
+    private static final String TEXT = "[Interface]\n" +
+            "Address = 10.8.0.2/32, fd00::2/128\n" +
+            "DNS = 1.1.1.1, 2606:4700:4700::1111, example.com\n" +
+            "ExcludedApplications = com.example.a, com.example.b\n" +
+            "ListenPort = 51820\n" +
+            "MTU = 1280\n" +
+            "PrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n" +
+            "Jc = 4\nJmin = 40\nJmax = 70\nS1 = 15\nS2 = 56\nH1 = 1\nH2 = 2\nH3 = 3\nH4 = 4\n" +
+            "I1 = <b 0x0102>\n\n" +
+            "[Peer]\n" +
+            "AllowedIPs = 0.0.0.0/0, ::/0\n" +
+            "ExcludedIPs = 10.0.0.0/8\n" +
+            "Endpoint = [2001:db8::1]:51820\n" +
+            "PersistentKeepalive = 25\n" +
+            "PreSharedKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n" +
+            "PublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n\n" +
+            "[Peer]\n" +
+            "AllowedIPs = 192.168.0.0/16\n" +
+            "Endpoint = vpn.example.com:443\n" +
+            "PublicKey = ABN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n";
+
+    static Config read(final byte[] bytes) throws IOException, BadConfigException {
+        return ConfigCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    static byte[] write(final Config config) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ConfigCodec.write(config, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void round_trips_every_attribute() throws IOException, BadConfigException {
+        final Config config = Config.parse(new BufferedReader(new StringReader(TEXT)));
+        final Config copy = read(write(config));
+        assertEquals(config.toAwgQuickString(), copy.toAwgQuickString());
+        assertEquals(config.getInterface().toAwgUserspaceString(), copy.getInterface().toAwgUserspaceString());
+        assertEquals(config.getInterface().getKeyPair().getPublicKey(), copy.getInterface().getKeyPair().getPublicKey());
+        assertEquals(config.getPeers(), copy.getPeers());
+    }
+
+    @Test
+    public void round_trips_long_allowed_ips_lists() throws IOException, BadConfigException {
+        final Config config = Config.parse(new BufferedReader(new StringReader(TestNetworks.manyAllowedIps(2000))));
+        assertEquals(config.getPeers(), read(write(config)).getPeers());
+    }
+
+    @Test
+    public void rejects_truncated_and_foreign_data() throws IOException, BadConfigException {
+        final byte[] bytes = write(Config.parse(new BufferedReader(new StringReader(TEXT))));
+        for (final int length : new int[]{0, 4, 8, bytes.length / 2, bytes.length - 1}) {
+            try {
+                read(Arrays.copyOf(bytes, length));
+                fail("Reading " + length + " of " + bytes.length + " bytes must fail");
+            } catch (final IOException ignored) {
+            }
+        }
+        bytes[7] ^= 1;
+        try {
+            read(bytes);
+            fail("Reading another version must fail");
+        } catch (final IOException ignored) {
+        }
+    }
+
+}
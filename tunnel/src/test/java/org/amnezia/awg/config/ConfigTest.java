@@ -7,20 +7,46 @@ package org.amnezia.awg.config;
 
 import org.junit.Test;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Objects;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ConfigTest {
 
+    @Test
+    public void excluded_ips_are_carved_out_of_allowed_ips() throws IOException, BadConfigException, ParseException {
+        final String text = "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n\n" +
+                "[Peer]\nAllowedIPs = 0.0.0.0/0\nExcludedIPs = 128.0.0.0/1, 10.0.0.0/8\n" +
+                "PublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n";
+        final Config config = Config.parse(new BufferedReader(new StringReader(text)));
+        final Peer peer = config.getPeers().get(0);
+        assertEquals(Arrays.asList(InetNetwork.parse("0.0.0.0/5"), InetNetwork.parse("8.0.0.0/7"),
+                        InetNetwork.parse("11.0.0.0/8"), InetNetwork.parse("12.0.0.0/6"), InetNetwork.parse("16.0.0.0/4"),
+                        InetNetwork.parse("32.0.0.0/3"), InetNetwork.parse("64.0.0.0/2")),
+                new ArrayList<>(peer.getEffectiveAllowedIps()));
+        assertSame(peer.getEffectiveAllowedIps(), peer.getEffectiveAllowedIps());
+        assertEquals(text, config.toAwgQuickString());
+        assertEquals(config.getPeers(), Config.parse(new BufferedReader(new StringReader(config.toAwgQuickString()))).getPeers());
+        assertFalse(config.toAwgQuickString(true).contains("ExcludedIPs"));
+        assertTrue(config.toAwgUserspaceString().contains("allowed_ip=64.0.0.0/2\n"));
+        assertFalse(config.toAwgUserspaceString().contains("allowed_ip=0.0.0.0/0\n"));
+    }
+
     @Test(expected = BadConfigException.class)
     public void invalid_config_throws() throws IOException, BadConfigException {
         try (final InputStream is = Objects.requireNonNull(getClass().getClassLoader()).getResourceAsStream("broken.conf")) {
@@ -46,4 +72,53 @@ public class ConfigTest {
         assertEquals("Test config's allowed IPs are 0.0.0.0/0 and ::0/0", config.getPeers().get(0).getAllowedIps(), expectedAllowedIps);
         assertEquals("Test config has one DNS server", 1, config.getInterface().getDnsServers().size());
     }
+
+    @Test
+    public void update_string_contains_only_changes() throws IOException, BadConfigException {
+        final String base = "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\nJc = 4\n" +
+                "[Peer]\nAllowedIPs = 0.0.0.0/0\nPublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n" +
+                "[Peer]\nAllowedIPs = 10.0.0.0/8\nPresharedKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n" +
+                "PublicKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n";
+        final Config previous = Config.parse(new BufferedReader(new StringReader(base)));
+        final Config next = Config.parse(new BufferedReader(new StringReader(base
+                .replace("Jc = 4", "Jc = 5")
+                .replace("PresharedKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n", ""))));
+        assertEquals("", previous.toAwgUserspaceUpdateString(previous).orElse(null));
+        assertEquals("jc=5\n" +
+                "public_key=4c5966984502ed5ed5b620d82cab1b3f9af249328b219ab5ca7f2532a2bcdf0a\n" +
+                "replace_allowed_ips=true\n" +
+                "preshared_key=0000000000000000000000000000000000000000000000000000000000000000\n" +
+                "allowed_ip=10.0.0.0/8\n", next.toAwgUserspaceUpdateString(previous).orElse(null));
+        final Config withoutJc = Config.parse(new BufferedReader(new StringReader(base.replace("Jc = 4\n", ""))));
+        assertFalse("Removed device attributes require recreating the device",
+                withoutJc.toAwgUserspaceUpdateString(previous).isPresent());
+        final Config rekeyed = Config.parse(new BufferedReader(new StringReader(base.replace(
+                "PrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=", "PrivateKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg="))));
+        assertFalse("A new private key requires recreating the device",
+                rekeyed.toAwgUserspaceUpdateString(previous).isPresent());
+    }
+
+    @Test
+    public void only_hash_codes_are_memoized() throws IOException, BadConfigException {
+        final Config config;
+        try (final InputStream is = Objects.requireNonNull(getClass().getClassLoader()).getResourceAsStream("working.conf")) {
+            config = Config.parse(is);
+        }
+        final StringWriter writer = new StringWriter();
+        config.appendAwgQuickString(writer, false);
+        assertEquals(writer.toString(), config.toAwgQuickString());
+        // Serialized forms hold keys, so each call builds them anew.
+        final Peer peer = config.getPeers().get(0);
+        assertNotSame(peer.toAwgQuickString(), peer.toAwgQuickString());
+        assertNotSame(config.toAwgQuickString(), config.toAwgQuickString());
+        assertNotSame(config.getInterface().toAwgUserspaceString(), config.getInterface().toAwgUserspaceString());
+        final Config reparsed = Config.parse(new BufferedReader(new StringReader(writer.toString())));
+        assertEquals(config.getPeers().get(0).hashCode(), reparsed.getPeers().get(0).hashCode());
+    }
+
+    @Test
+    public void long_allowed_ips_lists_are_parsed() throws IOException, BadConfigException {
+        final Config parsed = Config.parse(new BufferedReader(new StringReader(TestNetworks.manyAllowedIps(20000))));
+        assertEquals(20000, parsed.getPeers().get(0).getAllowedIps().size());
+    }
 }
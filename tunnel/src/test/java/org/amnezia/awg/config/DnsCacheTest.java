@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class DnsCacheTest {
+    private static InetAddress address(final String numeric) throws UnknownHostException {
+        return InetAddress.getByName(numeric);
+    }
+
+    @Test
+    public void answers_are_cached_for_their_ttl_and_prefetched() throws UnknownHostException {
+        final AtomicLong now = new AtomicLong();
+        final AtomicInteger queries = new AtomicInteger();
+        final List<InetAddress> answer = Arrays.asList(address("2001:db8::1"), address("192.0.2.1"), address("192.0.2.2"));
+        final DnsCache cache = new DnsCache(host -> {
+            queries.incrementAndGet();
+            return new HostResolver.Result(answer, 100000);
+        }, now::get, Runnable::run);
+
+        assertEquals(Arrays.asList(address("192.0.2.1"), address("2001:db8::1"), address("192.0.2.2")),
+                cache.lookup("example.com"));
+        now.set(50000);
+        cache.lookup("example.com");
+        assertEquals("Fresh answers come from the cache", 1, queries.get());
+        now.set(95000);
+        cache.lookup("example.com");
+        assertEquals("Answers close to expiry are refreshed", 2, queries.get());
+        now.set(150000);
+        cache.lookup("example.com");
+        assertEquals("The refreshed answer carries its own TTL", 2, queries.get());
+        now.set(200000);
+        cache.lookup("example.com");
+        assertEquals("Expired answers are resolved again", 3, queries.get());
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void failures_are_not_cached() throws UnknownHostException {
+        final DnsCache cache = new DnsCache(host -> {
+            throw new UnknownHostException(host);
+        }, () -> 0, Runnable::run);
+        cache.lookup("example.com");
+    }
+
+    @Test
+    public void dns_answers_are_parsed_with_their_ttl() throws UnknownHostException {
+        final byte[] message = {
+                0, 1, (byte) 0x81, (byte) 0x80, 0, 1, 0, 2, 0, 0, 0, 0,
+                // Question: example.com IN A
+                7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1,
+                // Answer: CNAME to a.example.com, TTL 300
+                (byte) 0xc0, 12, 0, 5, 0, 1, 0, 0, 1, 44, 0, 4, 1, 'a', (byte) 0xc0, 12,
+                // Answer: a.example.com A 192.0.2.7, TTL 60
+                (byte) 0xc0, 41, 0, 1, 0, 1, 0, 0, 0, 60, 0, 4, (byte) 192, 0, 2, 7,
+        };
+        final List<InetAddress> addresses = new ArrayList<>();
+        assertEquals(60, SystemHostResolver.parseAnswers("example.com", message, addresses));
+        assertEquals(1, addresses.size());
+        assertEquals(address("192.0.2.7"), addresses.get(0));
+    }
+}
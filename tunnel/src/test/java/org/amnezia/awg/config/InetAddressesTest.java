@@ -0,0 +1,229 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the hand-written parsers against the regular expressions, resolver and URI parser they
+ * replaced, on random mutations of valid input.
+ */
+public class InetAddressesTest {
+    private static final Pattern WONT_TOUCH_RESOLVER = Pattern.compile("^(((([0-9A-Fa-f]{1,4}:){7}([0-9A-Fa-f]{1,4}|:))|(([0-9A-Fa-f]{1,4}:){6}(:[0-9A-Fa-f]{1,4}|((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3})|:))|(([0-9A-Fa-f]{1,4}:){5}(((:[0-9A-Fa-f]{1,4}){1,2})|:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3})|:))|(([0-9A-Fa-f]{1,4}:){4}(((:[0-9A-Fa-f]{1,4}){1,3})|((:[0-9A-Fa-f]{1,4})?:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:){3}(((:[0-9A-Fa-f]{1,4}){1,4})|((:[0-9A-Fa-f]{1,4}){0,2}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:){2}(((:[0-9A-Fa-f]{1,4}){1,5})|((:[0-9A-Fa-f]{1,4}){0,3}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:){1}(((:[0-9A-Fa-f]{1,4}){1,6})|((:[0-9A-Fa-f]{1,4}){0,4}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(:(((:[0-9A-Fa-f]{1,4}){1,7})|((:[0-9A-Fa-f]{1,4}){0,5}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:)))(%.+)?)|((?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))$");
+    private static final Pattern VALID_HOSTNAME = Pattern.compile("^(?=.{1,255}$)[0-9A-Za-z](?:(?:[0-9A-Za-z]|-){0,61}[0-9A-Za-z])?(?:\\.[0-9A-Za-z](?:(?:[0-9A-Za-z]|-){0,61}[0-9A-Za-z])?)*\\.?$");
+    // Octal-looking IPv4 parts, which the expression allowed but inet_pton() rejects.
+    private static final Pattern LEADING_ZERO = Pattern.compile("(^|[.:\\[])0[0-9]{1,2}\\.|\\.0[0-9]");
+    private static final char[] ALPHABET = "0123456789abcdefABCDEF::..%[]/gz- ".toCharArray();
+
+    @Nullable
+    private static InetAddress referenceParse(final String address) {
+        String literal = address;
+        if (literal.startsWith("[") && literal.endsWith("]") && literal.indexOf(':') >= 0)
+            literal = literal.substring(1, literal.length() - 1);
+        if (!WONT_TOUCH_RESOLVER.matcher(literal).matches())
+            return null;
+        try {
+            return InetAddress.getByName(literal);
+        } catch (final UnknownHostException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static InetAddress parse(final String address) {
+        try {
+            return InetAddresses.parse(address);
+        } catch (final ParseException e) {
+            assertEquals(InetAddress.class, e.getParsingClass());
+            return null;
+        }
+    }
+
+    private static String randomAddress(final Random random) throws UnknownHostException {
+        final byte[] bytes = new byte[random.nextBoolean() ? 4 : 16];
+        random.nextBytes(bytes);
+        // Runs of zeros, so that there is something to compress.
+        for (int i = random.nextInt(bytes.length); i < bytes.length && random.nextInt(4) != 0; ++i)
+            bytes[i] = 0;
+        String address = InetAddress.getByAddress(bytes).getHostAddress();
+        if (bytes.length == 16)
+            address = address.replaceFirst("(^|:)0(:0)+(:|$)", "::");
+        return address;
+    }
+
+    private static String mutate(final Random random, final String input) {
+        final StringBuilder sb = new StringBuilder(input);
+        for (int mutations = random.nextInt(3); mutations > 0; --mutations) {
+            final int position = random.nextInt(sb.length() + 1);
+            final char c = ALPHABET[random.nextInt(ALPHABET.length)];
+            switch (random.nextInt(3)) {
+                case 0:
+                    sb.insert(position, c);
+                    break;
+                case 1:
+                    if (position < sb.length())
+                        sb.deleteCharAt(position);
+                    break;
+                default:
+                    if (position < sb.length())
+                        sb.setCharAt(position, c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void parse_agrees_with_previous_parser() throws UnknownHostException {
+        final Random random = new Random(42);
+        for (int i = 0; i < 3000; ++i) {
+            final String address = mutate(random, randomAddress(random));
+            final InetAddress expected = referenceParse(address);
+            final InetAddress actual = parse(address);
+            if (expected != null && LEADING_ZERO.matcher(address).find()) {
+                assertNull(address, actual);
+                continue;
+            }
+            assertEquals(address, expected, actual);
+            if (expected != null) {
+                assertEquals(address, expected.getClass(), actual.getClass());
+                if (expected instanceof Inet6Address)
+                    assertEquals(address, ((Inet6Address) expected).getScopeId(), ((Inet6Address) actual).getScopeId());
+            }
+        }
+    }
+
+    @Test
+    public void parse_handles_special_forms() throws ParseException {
+        assertEquals("::", InetAddresses.parse("::").getHostAddress().replace("0:0:0:0:0:0:0:0", "::"));
+        assertEquals("1.2.3.4", InetAddresses.parse("::ffff:1.2.3.4").getHostAddress());
+        assertEquals(3, ((Inet6Address) InetAddresses.parse("fe80::1%3")).getScopeId());
+        assertNotNull(InetAddresses.parse("[2001:db8::1]"));
+        assertNull(parse("1.2.3"));
+        assertNull(parse("010.1.1.1"));
+        assertNull(parse("1:2:3:4:5:6:7::8"));
+        assertNull(parse(":1::"));
+    }
+
+    @Test
+    public void hostname_check_agrees_with_previous_expression() {
+        final Random random = new Random(42);
+        final String[] seeds = {"example.com", "a-b.c", "vpn.example.org.", "x", "1.2.3.4", "a--b.example"};
+        for (int i = 0; i < 3000; ++i) {
+            final String name = mutate(random, seeds[random.nextInt(seeds.length)]);
+            assertEquals(name, VALID_HOSTNAME.matcher(name).matches(), InetAddresses.isHostname(name));
+        }
+        final StringBuilder longLabel = new StringBuilder();
+        for (int i = 0; i < 64; ++i)
+            longLabel.append('a');
+        assertFalse(InetAddresses.isHostname(longLabel));
+        assertTrue(InetAddresses.isHostname(longLabel.substring(1)));
+    }
+
+    @Nullable
+    private static InetNetwork referenceParseNetwork(final String network) {
+        final int slash = network.lastIndexOf('/');
+        final int rawMask;
+        final String rawAddress;
+        if (slash >= 0) {
+            try {
+                rawMask = Integer.parseInt(network.substring(slash + 1), 10);
+            } catch (final NumberFormatException ignored) {
+                return null;
+            }
+            rawAddress = network.substring(0, slash);
+        } else {
+            rawMask = -1;
+            rawAddress = network;
+        }
+        final InetAddress address = referenceParse(rawAddress);
+        if (address == null)
+            return null;
+        final int maxMask = address.getAddress().length == 4 ? 32 : 128;
+        if (rawMask > maxMask)
+            return null;
+        return new InetNetwork(address, rawMask >= 0 ? rawMask : maxMask);
+    }
+
+    @Test
+    public void network_parse_agrees_with_previous_parser() throws UnknownHostException {
+        final Random random = new Random(42);
+        for (int i = 0; i < 3000; ++i) {
+            final String network = mutate(random, randomAddress(random) + '/' + random.nextInt(130));
+            // Signed masks used to be read as numbers; a negative one was taken for no mask.
+            if (LEADING_ZERO.matcher(network).find() || network.matches(".*/[-+].*"))
+                continue;
+            InetNetwork actual;
+            try {
+                actual = InetNetwork.parse(network);
+            } catch (final ParseException e) {
+                actual = null;
+            }
+            assertEquals(network, referenceParseNetwork(network), actual);
+        }
+    }
+
+    @Nullable
+    private static InetEndpoint referenceParseEndpoint(final String endpoint) {
+        if (Pattern.compile("[/?#]").matcher(endpoint).find())
+            return null;
+        final URI uri;
+        try {
+            uri = new URI("awg://" + endpoint);
+        } catch (final URISyntaxException e) {
+            return null;
+        }
+        if (uri.getPort() < 0 || uri.getPort() > 65535)
+            return null;
+        try {
+            return InetEndpoint.parse(uri.getHost() + ':' + uri.getPort());
+        } catch (final ParseException e) {
+            throw new AssertionError(endpoint, e);
+        }
+    }
+
+    @Test
+    public void endpoint_parse_agrees_with_previous_parser() throws UnknownHostException {
+        final Random random = new Random(42);
+        final String[] hosts = {"vpn.example.com", "a-1.b2", "example.com.", "host", "123"};
+        for (int i = 0; i < 3000; ++i) {
+            String host = random.nextBoolean() ? hosts[random.nextInt(hosts.length)] : randomAddress(random);
+            if (host.indexOf(':') >= 0)
+                host = '[' + host + ']';
+            final String endpoint = mutate(random, host + ':' + random.nextInt(70000));
+            // User information used to be accepted, and octal-looking addresses or addresses
+            // scoped to an unknown interface taken for names.
+            if (endpoint.indexOf('@') >= 0 || LEADING_ZERO.matcher(endpoint).find() || endpoint.indexOf('%') >= 0)
+                continue;
+            InetEndpoint actual;
+            try {
+                actual = InetEndpoint.parse(endpoint);
+            } catch (final ParseException e) {
+                assertTrue(e.getParsingClass() == InetEndpoint.class || e.getParsingClass() == InetAddress.class);
+                actual = null;
+            }
+            final InetEndpoint expected = referenceParseEndpoint(endpoint);
+            assertEquals(endpoint, expected, actual);
+            if (expected != null)
+                assertEquals(endpoint, referenceParse(expected.getHost()) != null, actual.isResolved());
+        }
+    }
+}
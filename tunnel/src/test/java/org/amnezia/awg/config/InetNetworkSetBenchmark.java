@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the memory taken by a packed set of networks and by a {@link LinkedHashSet}, and times
+ * comparing packed sets. Run with -Pbenchmarks.
+ */
+public class InetNetworkSetBenchmark {
+    private static long usedMemory() {
+        // Collect until the heap stops shrinking, as garbage left by earlier tests can take more than one cycle.
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 20; ++i) {
+            System.gc();
+            try {
+                Thread.sleep(10);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used)
+                break;
+            used = now;
+        }
+        return used;
+    }
+
+    @Test
+    public void memory() throws UnknownHostException {
+        final List<InetNetwork> networks = new ArrayList<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; ++i) {
+            final byte[] address = new byte[i % 4 == 0 ? 16 : 4];
+            random.nextBytes(address);
+            networks.add(new InetNetwork(InetAddress.getByAddress(address), address.length == 4 ? 24 : 64));
+        }
+        // Measure copies, as parsing leaves each network in exactly one set.
+        final long before = usedMemory();
+        final Set<InetNetwork> linked = new LinkedHashSet<>();
+        for (final InetNetwork network : networks)
+            linked.add(new InetNetwork(InetAddress.getByAddress(network.getAddress().getAddress()), network.getMask()));
+        final long linkedBytes = usedMemory() - before;
+        final Set<InetNetwork> packed = InetNetworkSet.copyOf(linked);
+        final long packedBytes = usedMemory() - before - linkedBytes;
+        System.out.println("20000 networks take " + linkedBytes / 1024 + "KiB in a LinkedHashSet and " +
+                packedBytes / 1024 + "KiB packed");
+
+        final Set<InetNetwork> other = InetNetworkSet.copyOf(networks);
+        final int rounds = 100;
+        boolean equal = true;
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            equal &= packed.equals(other);
+        System.out.println("Compared two sets of 20000 networks in " + (System.nanoTime() - start) / 1000 / rounds +
+                "us" + (equal ? "" : ", which differ"));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InetNetworkSetTest {
+    @Test
+    public void behaves_like_linked_hash_set() throws UnknownHostException {
+        final Random random = new Random(42);
+        for (int round = 0; round < 200; ++round) {
+            final List<InetNetwork> networks = TestNetworks.repetitive(random, random.nextInt(40));
+            final Set<InetNetwork> expected = new LinkedHashSet<>(networks);
+            final Set<InetNetwork> actual = InetNetworkSet.copyOf(networks);
+            assertEquals(new ArrayList<>(expected), new ArrayList<>(actual));
+            assertEquals(expected, actual);
+            assertEquals(actual, expected);
+            assertEquals(expected.hashCode(), actual.hashCode());
+            final List<InetNetwork> shuffled = new ArrayList<>(networks);
+            Collections.shuffle(shuffled, random);
+            assertEquals(actual, InetNetworkSet.copyOf(shuffled));
+            for (final InetNetwork network : TestNetworks.repetitive(random, 20))
+                assertEquals(expected.contains(network), actual.contains(network));
+        }
+        assertTrue(InetNetworkSet.copyOf(new ArrayList<>()).isEmpty());
+        assertFalse(InetNetworkSet.copyOf(TestNetworks.repetitive(random, 3)).contains("10.0.0.0/8"));
+    }
+
+    @Test
+    public void networks_are_packed_without_slack() throws UnknownHostException {
+        final Random random = new Random(42);
+        for (final int count : new int[]{1, 8, 9, 100, 20000}) {
+            final InetNetworkSet set = InetNetworkSet.copyOf(TestNetworks.repetitive(random, count));
+            // Two longs for the address, a short for the mask and an int in the sorted index.
+            assertEquals(22L * set.size(), set.packedBytes());
+        }
+        assertEquals(0, InetNetworkSet.of().packedBytes());
+    }
+}
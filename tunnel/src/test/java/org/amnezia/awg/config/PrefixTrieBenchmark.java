@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times compacting and subtracting lists of networks the size of geographic lists. Run with
+ * -Pbenchmarks.
+ */
+public class PrefixTrieBenchmark {
+    @Test
+    public void compacting_fifty_thousand_networks() throws UnknownHostException {
+        final List<InetNetwork> networks = TestNetworks.clustered(new Random(50000), 50000);
+        // Warm up the JIT before measuring.
+        for (int i = 0; i < 5; ++i)
+            PrefixTrie.compact(networks);
+        final int rounds = 10;
+        List<InetNetwork> compacted = null;
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            compacted = PrefixTrie.compact(networks);
+        final long micros = (System.nanoTime() - start) / 1000 / rounds;
+        System.out.println("Compacted " + networks.size() + " networks into " + compacted.size() + " in " + micros + "us");
+    }
+
+    @Test
+    public void removing_five_thousand_networks() throws UnknownHostException {
+        final Random random = new Random(5000);
+        final List<InetNetwork> networks = TestNetworks.clustered(random, 50000);
+        final List<InetNetwork> exclusions = TestNetworks.clustered(random, 5000);
+        for (int i = 0; i < 5; ++i)
+            new PrefixTrie(networks).removeAll(exclusions);
+        final int rounds = 10;
+        long nanos = 0;
+        List<InetNetwork> remaining = null;
+        for (int i = 0; i < rounds; ++i) {
+            final PrefixTrie trie = new PrefixTrie(networks);
+            final long start = System.nanoTime();
+            trie.removeAll(exclusions);
+            remaining = trie.toList();
+            nanos += System.nanoTime() - start;
+        }
+        System.out.println("Removed " + exclusions.size() + " networks leaving " + remaining.size() + " in " + nanos / 1000 / rounds + "us");
+    }
+}
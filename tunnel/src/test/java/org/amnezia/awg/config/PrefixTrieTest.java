@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrefixTrieTest {
+    private static List<InetNetwork> networks(final String... networks) throws ParseException {
+        final List<InetNetwork> list = new ArrayList<>();
+        for (final String network : networks)
+            list.add(InetNetwork.parse(network));
+        return list;
+    }
+
+    private static boolean containedByAny(final List<InetNetwork> networks, final InetAddress address) {
+        for (final InetNetwork network : networks) {
+            if (new PrefixTrie(Arrays.asList(network)).contains(address))
+                return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void adjacent_and_overlapping_networks_are_merged() throws ParseException {
+        assertEquals(networks("10.0.0.0/23", "192.168.0.0/24", "::/0"),
+                PrefixTrie.compact(networks("8000::/1", "10.0.1.0/24", "192.168.0.7/24", "10.0.0.128/25",
+                        "::/1", "192.168.0.64/26", "10.0.0.0/25")));
+        assertEquals(networks("0.0.0.0/0"), PrefixTrie.compact(networks("128.0.0.0/1", "0.0.0.0/1", "10.0.0.1")));
+        assertEquals(networks("10.0.0.1/32", "10.0.0.2/31"), PrefixTrie.compact(networks("10.0.0.3", "10.0.0.2", "10.0.0.1")));
+    }
+
+    @Test
+    public void removed_networks_are_carved_out() throws ParseException {
+        final PrefixTrie trie = new PrefixTrie(networks("0.0.0.0/0", "10.0.0.0/8", "::/0"));
+        trie.removeAll(networks("128.0.0.0/1", "10.0.0.0/8", "192.168.0.0/16", "::/1", "8000::/1"));
+        assertEquals(networks("0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4", "32.0.0.0/3", "64.0.0.0/2"),
+                trie.toList());
+        assertFalse(trie.overlaps(InetNetwork.parse("::/0")));
+        trie.add(InetNetwork.parse("10.0.0.0/8"));
+        assertEquals(networks("0.0.0.0/1"), trie.toList());
+    }
+
+    @Test
+    public void removal_matches_address_by_address_subtraction() throws UnknownHostException {
+        final Random random = new Random(9);
+        final List<InetNetwork> networks = TestNetworks.clustered(random, 500);
+        final List<InetNetwork> exclusions = TestNetworks.clustered(random, 500);
+        final PrefixTrie trie = new PrefixTrie(networks);
+        trie.removeAll(exclusions);
+        assertFalse(trie.toList().isEmpty());
+        final PrefixTrie recompacted = new PrefixTrie(trie.toList());
+        assertEquals(trie.toList(), recompacted.toList());
+        for (int i = 0; i < 2000; ++i) {
+            final List<InetNetwork> source = random.nextBoolean() ? networks : exclusions;
+            final byte[] address = source.get(random.nextInt(source.size())).getAddress().getAddress();
+            address[address.length - 1 - random.nextInt(3)] ^= (byte) (1 << random.nextInt(8));
+            final InetAddress probe = InetAddress.getByAddress(address);
+            assertEquals(probe.toString(), containedByAny(networks, probe) && !containedByAny(exclusions, probe),
+                    trie.contains(probe));
+        }
+    }
+
+    @Test
+    public void overlaps_reports_shared_addresses() throws ParseException {
+        final PrefixTrie trie = new PrefixTrie(networks("10.0.0.0/24", "2001:db8::/32"));
+        assertTrue(trie.overlaps(InetNetwork.parse("10.0.0.0/8")));
+        assertTrue(trie.overlaps(InetNetwork.parse("10.0.0.7/32")));
+        assertTrue(trie.overlaps(InetNetwork.parse("::/0")));
+        assertFalse(trie.overlaps(InetNetwork.parse("10.0.1.0/24")));
+        assertFalse(trie.overlaps(InetNetwork.parse("2001:db9::/32")));
+        assertFalse(new PrefixTrie().overlaps(InetNetwork.parse("0.0.0.0/0")));
+    }
+
+    @Test
+    public void compacted_networks_cover_the_same_addresses() throws UnknownHostException {
+        final Random random = new Random(7);
+        final List<InetNetwork> networks = TestNetworks.clustered(random, 2000);
+        final PrefixTrie trie = new PrefixTrie(networks);
+        final List<InetNetwork> compacted = trie.toList();
+        assertTrue(compacted.size() < networks.size());
+        final PrefixTrie recompacted = new PrefixTrie(compacted);
+        assertEquals(compacted, recompacted.toList());
+        for (int i = 0; i < 2000; ++i) {
+            // Probe next to the listed networks, where a wrong merge would show.
+            final InetNetwork near = networks.get(random.nextInt(networks.size()));
+            final byte[] address = near.getAddress().getAddress();
+            address[address.length - 1 - random.nextInt(3)] ^= (byte) (1 << random.nextInt(8));
+            final InetAddress probe = InetAddress.getByAddress(address);
+            assertEquals(probe.toString(), containedByAny(networks, probe), recompacted.contains(probe));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Networks for tests and benchmarks of network collections and of configurations that hold many.
+ */
+final class TestNetworks {
+    private TestNetworks() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Mostly IPv4 networks with masks typical of geographic lists, clustered so that many merge.
+     */
+    static List<InetNetwork> clustered(final Random random, final int count) throws UnknownHostException {
+        final List<InetNetwork> networks = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final boolean v6 = random.nextInt(8) == 0;
+            final byte[] address = new byte[v6 ? 16 : 4];
+            random.nextBytes(address);
+            address[0] = (byte) (v6 ? 0x20 : 1 + random.nextInt(32));
+            final int mask = v6 ? 24 + random.nextInt(41) : 12 + random.nextInt(21);
+            networks.add(new InetNetwork(InetAddress.getByAddress(address), mask));
+        }
+        return networks;
+    }
+
+    /**
+     * Networks drawn from few distinct values, so that there are duplicates.
+     */
+    static List<InetNetwork> repetitive(final Random random, final int count) throws UnknownHostException {
+        final List<InetNetwork> networks = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final boolean v6 = random.nextInt(4) == 0;
+            final byte[] address = new byte[v6 ? 16 : 4];
+            address[random.nextInt(address.length)] = (byte) random.nextInt(4);
+            networks.add(new InetNetwork(InetAddress.getByAddress(address), random.nextInt(v6 ? 129 : 33)));
+        }
+        return networks;
+    }
+
+    /**
+     * A configuration with one peer that has {@code count} allowed networks.
+     */
+    static String manyAllowedIps(final int count) {
+        final StringBuilder text = new StringBuilder("[Interface]\n# Imported\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n" +
+                "Address = 10.8.0.2/32\nDNS = 1.1.1.1\nJc = 4\nJmin = 40\nJmax = 70\nS1 = 15\nS2 = 56\n" +
+                "H1 = 1\nH2 = 2\nH3 = 3\nH4 = 4\n\n[Peer]\nPublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n" +
+                "Endpoint = 192.0.2.1:51820\nPersistentKeepalive = 25\nAllowedIPs = ");
+        for (int i = 0; i < count; ++i)
+            text.append(i == 0 ? "" : ", ").append(i >> 8).append('.').append(i & 0xff).append(".0.0/16");
+        return text.append('\n').toString();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UapiBufferTest {
+    private static byte[] contents(final UapiBuffer buffer) {
+        final ByteBuffer view = buffer.getBuffer().duplicate();
+        view.flip();
+        final byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void buffer_holds_the_same_bytes_as_the_string() throws Exception {
+        final Config config;
+        try (final InputStream is = Objects.requireNonNull(getClass().getClassLoader()).getResourceAsStream("working.conf")) {
+            config = Config.parse(is);
+        }
+        // Start small so that the buffer has to grow a few times.
+        try (final UapiBuffer buffer = new UapiBuffer(0)) {
+            config.appendAwgUserspaceString(buffer);
+            assertEquals(config.toAwgUserspaceString(), new String(contents(buffer), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void close_wipes_the_buffer() {
+        final UapiBuffer buffer = new UapiBuffer(16);
+        buffer.append("private_key=0123456789abcdef0123456789abcdef\n").append('é').append('€');
+        final ByteBuffer backing = buffer.getBuffer();
+        buffer.close();
+        assertEquals(0, buffer.length());
+        for (int i = 0; i < backing.capacity(); ++i)
+            assertTrue(backing.get(i) == 0);
+    }
+}
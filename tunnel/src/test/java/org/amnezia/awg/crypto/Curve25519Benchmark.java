@@ -0,0 +1,46 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares how fast the two Curve25519 implementations generate key pairs. Run with -Pbenchmarks.
+ */
+public class Curve25519Benchmark {
+    private static long timeKeyPairs(final boolean radix51, final byte[][] privateKeys, final byte[] publicKey) {
+        final long start = System.nanoTime();
+        for (final byte[] privateKey : privateKeys) {
+            if (radix51)
+                Curve25519Radix51.eval(publicKey, 0, privateKey, null);
+            else
+                Curve25519.eval26(publicKey, 0, privateKey, null);
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void key_pairs() {
+        final Random random = new Random(42);
+        final byte[][] privateKeys = new byte[2000][32];
+        for (final byte[] privateKey : privateKeys)
+            random.nextBytes(privateKey);
+        final byte[] publicKey26 = new byte[32];
+        final byte[] publicKey51 = new byte[32];
+        timeKeyPairs(false, privateKeys, publicKey26);
+        timeKeyPairs(true, privateKeys, publicKey51);
+        final long nanos26 = timeKeyPairs(false, privateKeys, publicKey26);
+        final long nanos51 = timeKeyPairs(true, privateKeys, publicKey51);
+        System.out.println("Generated " + privateKeys.length + " key pairs at " +
+                privateKeys.length * 1_000_000_000L / nanos26 + "/s with 26-bit limbs and " +
+                privateKeys.length * 1_000_000_000L / nanos51 + "/s with 51-bit limbs");
+        assertArrayEquals(publicKey26, publicKey51);
+    }
+}
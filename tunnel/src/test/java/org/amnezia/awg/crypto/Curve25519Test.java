@@ -0,0 +1,91 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class Curve25519Test {
+    private interface Implementation {
+        void eval(byte[] result, int offset, byte[] privateKey, byte[] publicKey);
+    }
+
+    private static final Implementation[] IMPLEMENTATIONS = {Curve25519::eval26, Curve25519Radix51::eval};
+
+    private static byte[] hex(final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+
+    private static byte[] eval(final Implementation implementation, final byte[] privateKey, final byte[] publicKey) {
+        final byte[] result = new byte[32];
+        implementation.eval(result, 0, privateKey, publicKey);
+        return result;
+    }
+
+    @Test
+    public void rfc7748_vectors() {
+        for (final Implementation implementation : IMPLEMENTATIONS) {
+            // RFC 7748 section 5.2; the second u-coordinate has its top bit set, which must be ignored.
+            assertArrayEquals(hex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"), eval(implementation,
+                    hex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"),
+                    hex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c")));
+            assertArrayEquals(hex("95cbde9476e8907d7aade45cb4b873f88b595a68799fa152e6f8f7647aac7957"), eval(implementation,
+                    hex("4b66e9d4d1b4673c5ad22691957d6af5c11b6421e0ea01d42ca4169e7918ba0d"),
+                    hex("e5210f12786811d3f4b7959d0538ae2c31dbe7106fc03c3efc4cd549c715a493")));
+
+            // RFC 7748 section 6.1.
+            final byte[] alicePrivate = hex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+            final byte[] bobPrivate = hex("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+            final byte[] alicePublic = eval(implementation, alicePrivate, null);
+            final byte[] bobPublic = eval(implementation, bobPrivate, null);
+            assertArrayEquals(hex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"), alicePublic);
+            assertArrayEquals(hex("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f"), bobPublic);
+            final byte[] shared = hex("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742");
+            assertArrayEquals(shared, eval(implementation, alicePrivate, bobPublic));
+            assertArrayEquals(shared, eval(implementation, bobPrivate, alicePublic));
+
+            // RFC 7748 section 5.2, iterated: k and u both start at 9, then k = X25519(k, u) and u = the old k.
+            byte[] k = new byte[32];
+            byte[] u = new byte[32];
+            k[0] = 9;
+            u[0] = 9;
+            for (int i = 1; i <= 1000; ++i) {
+                final byte[] next = eval(implementation, k, u);
+                u = k;
+                k = next;
+                if (i == 1)
+                    assertArrayEquals(hex("422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079"), k);
+            }
+            assertArrayEquals(hex("684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51"), k);
+        }
+    }
+
+    @Test
+    public void implementations_agree() {
+        final Random random = new Random(42);
+        final byte[] privateKey = new byte[32];
+        final byte[] publicKey = new byte[32];
+        for (int i = 0; i < 2000; ++i) {
+            random.nextBytes(privateKey);
+            random.nextBytes(publicKey);
+            // Include non-canonical u-coordinates, from p to 2^255 - 1.
+            if (i % 100 == 0) {
+                publicKey[0] = (byte) (0xed + i / 100 % 19);
+                for (int j = 1; j < 31; ++j)
+                    publicKey[j] = (byte) 0xff;
+                publicKey[31] = (byte) 0x7f;
+            }
+            assertArrayEquals(eval(IMPLEMENTATIONS[0], privateKey, publicKey), eval(IMPLEMENTATIONS[1], privateKey, publicKey));
+            assertArrayEquals(eval(IMPLEMENTATIONS[0], privateKey, null), eval(IMPLEMENTATIONS[1], privateKey, null));
+        }
+    }
+}
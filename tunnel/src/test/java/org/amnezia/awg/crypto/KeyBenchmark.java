@@ -0,0 +1,36 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Times parsing private keys into key pairs, with and without the {@link PublicKeyCache}. Run
+ * with -Pbenchmarks.
+ */
+public class KeyBenchmark {
+    @Test
+    public void key_pair_parsing() throws KeyFormatException {
+        final Key[] privateKeys = TestKeys.random(new Random(42), 200);
+        final String[] base64 = new String[privateKeys.length];
+        for (int i = 0; i < privateKeys.length; ++i)
+            base64[i] = privateKeys[i].toBase64();
+        PublicKeyCache.clear();
+        long start = System.nanoTime();
+        for (final String key : base64)
+            new KeyPair(Key.fromBase64(key));
+        final long coldNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (final String key : base64)
+            new KeyPair(Key.fromBase64(key));
+        final long warmNanos = System.nanoTime() - start;
+        System.out.println("Parsed " + base64.length + " private keys in " + coldNanos / 1000 + "us cold and " +
+                warmNanos / 1000 + "us from the public key cache");
+        PublicKeyCache.clear();
+    }
+}
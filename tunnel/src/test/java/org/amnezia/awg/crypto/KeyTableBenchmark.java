@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares looking up peers in a {@link KeyTable} and in a {@link HashMap}. Run with -Pbenchmarks.
+ */
+public class KeyTableBenchmark {
+    @Test
+    public void lookups() throws KeyFormatException {
+        final Key[] keys = TestKeys.random(new Random(42), 10000);
+        final Key[] lookups = new Key[keys.length];
+        for (int i = 0; i < keys.length; ++i)
+            lookups[i] = Key.fromBytes(keys[i].getBytes());
+        final KeyTable table = new KeyTable(keys.length);
+        final Map<Key, Integer> map = new HashMap<>();
+        for (final Key key : keys)
+            map.put(key, table.add(key));
+        final int rounds = 100;
+        // Summed and printed, so that the lookups are not optimized away.
+        long found = 0;
+        for (int round = 0; round < rounds; ++round) {
+            for (final Key key : lookups)
+                found += table.indexOf(key) + map.get(key);
+        }
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; ++round) {
+            for (final Key key : lookups)
+                found += map.get(key);
+        }
+        final long mapNanos = (System.nanoTime() - start) / rounds;
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; ++round) {
+            for (final Key key : lookups)
+                found += table.indexOf(key);
+        }
+        final long tableNanos = (System.nanoTime() - start) / rounds;
+        System.out.println("Looked up 10000 peers in " + mapNanos / 1000 + "us with a HashMap and " +
+                tableNanos / 1000 + "us with a KeyTable, adding up to " + found);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyTableTest {
+    @Test
+    public void hash_codes_are_spread() throws KeyFormatException {
+        final Key[] keys = TestKeys.random(new Random(42), 10000);
+        final Set<Integer> hashes = new HashSet<>();
+        final int[] buckets = new int[1024];
+        for (final Key key : keys) {
+            hashes.add(key.hashCode());
+            ++buckets[key.hashCode() & (buckets.length - 1)];
+        }
+        // Random 32-bit hashes of 10000 keys collide about once.
+        assertTrue(hashes.size() > 9990);
+        for (final int bucket : buckets)
+            assertTrue(bucket < 30);
+    }
+
+    @Test
+    public void numbers_keys_like_a_map() throws KeyFormatException {
+        final Random random = new Random(42);
+        final Key[] keys = TestKeys.random(random, 5000);
+        final Key[] strangers = TestKeys.random(random, 1000);
+        final KeyTable table = new KeyTable();
+        final Map<Key, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; ++i) {
+            final Key key = keys[random.nextInt(keys.length)];
+            final Integer number = expected.get(key);
+            final int added = table.add(Key.fromBytes(key.getBytes()));
+            if (number == null)
+                expected.put(key, added);
+            else
+                assertEquals((int) number, added);
+        }
+        assertEquals(expected.size(), table.size());
+        final ByteBuffer big = ByteBuffer.allocate(40);
+        final ByteBuffer little = ByteBuffer.allocateDirect(40).order(ByteOrder.LITTLE_ENDIAN);
+        for (final Map.Entry<Key, Integer> entry : expected.entrySet()) {
+            final int number = entry.getValue();
+            assertEquals(number, table.indexOf(entry.getKey()));
+            assertEquals(entry.getKey(), table.get(number));
+            big.clear();
+            big.position(8);
+            big.put(entry.getKey().getBytes());
+            little.clear();
+            little.position(8);
+            little.put(entry.getKey().getBytes());
+            assertEquals(number, table.indexOf(big, 8));
+            assertEquals(number, table.indexOf(little, 8));
+        }
+        for (final Key stranger : strangers)
+            assertEquals(-1, table.indexOf(stranger));
+        assertEquals(-1, table.indexOf((Key) null));
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.indexOf(keys[0]));
+        assertEquals(0, table.add(keys[1]));
+        assertSame(keys[1], table.get(0));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class KeyTest {
+    private static void assertRejected(final String base64, final KeyFormatException.Type type) {
+        try {
+            Key.fromBase64(base64);
+            fail("Decoding " + base64 + " must fail");
+        } catch (final KeyFormatException e) {
+            assertEquals(type, e.getType());
+        }
+    }
+
+    @Test
+    public void codecs_round_trip() throws Exception {
+        final Key[] keys = TestKeys.random(new Random(42), 1000);
+        final char[] base64 = new char[keys.length * Key.Format.BASE64.getLength()];
+        final char[] hex = new char[Key.Format.HEX.getLength()];
+        final byte[] decoded = new byte[keys.length * Key.Format.BINARY.getLength()];
+        Key.encodeBase64(keys, base64, 0);
+        final CharSequence[] strings = new CharSequence[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+            final Key key = keys[i];
+            final String expected = Base64.getEncoder().encodeToString(key.getBytes());
+            assertEquals(expected, key.toBase64());
+            strings[i] = new String(base64, i * Key.Format.BASE64.getLength(), Key.Format.BASE64.getLength());
+            assertEquals(expected, strings[i]);
+            final StringBuilder sb = new StringBuilder();
+            key.appendBase64(sb);
+            assertEquals(expected, sb.toString());
+            assertEquals(key, Key.fromBase64(expected));
+
+            key.encodeHex(hex, 0);
+            assertEquals(key.toHex(), new String(hex));
+            assertEquals(key, Key.fromHex(key.toHex().toUpperCase()));
+            Key.decodeHex(new String(hex), 0, decoded, 0);
+            assertArrayEquals(key.getBytes(), Key.fromBytes(Arrays.copyOf(decoded, 32)).getBytes());
+        }
+        Key.decodeBase64(strings, decoded, 0);
+        for (int i = 0; i < keys.length; ++i)
+            assertEquals(keys[i], Key.fromBytes(Arrays.copyOfRange(decoded, i * 32, i * 32 + 32)));
+    }
+
+    @Test
+    public void codecs_reject_malformed_keys() {
+        final String valid = "yAnz5TF+lXXJte14tji3zlMNq+hd2rYUIgJBgB3fBmk=";
+        assertRejected(valid.substring(1), KeyFormatException.Type.LENGTH);
+        assertRejected(valid.replace('=', 'A'), KeyFormatException.Type.LENGTH);
+        assertRejected(valid.replace('+', '-'), KeyFormatException.Type.CONTENTS);
+        // The last character before the padding only has room for 4 of its 6 bits.
+        assertRejected(valid.substring(0, 42) + "n=", KeyFormatException.Type.CONTENTS);
+        try {
+            Key.fromHex("z" + "0".repeat(63));
+            fail("Decoding hexadecimal with a z must fail");
+        } catch (final KeyFormatException e) {
+            assertEquals(KeyFormatException.Type.CONTENTS, e.getType());
+        }
+    }
+
+    @Test
+    public void public_keys_are_cached() throws KeyFormatException {
+        PublicKeyCache.clear();
+        final Key[] privateKeys = TestKeys.random(new Random(42), PublicKeyCache.CAPACITY + 50);
+        final Key first = new KeyPair(privateKeys[0]).getPublicKey();
+        assertEquals(Key.generatePublicKey(privateKeys[0]), first);
+        assertSame(first, new KeyPair(Key.fromBytes(privateKeys[0].getBytes())).getPublicKey());
+        assertEquals(1, PublicKeyCache.size());
+        for (final Key privateKey : privateKeys)
+            new KeyPair(privateKey);
+        assertEquals(PublicKeyCache.CAPACITY, PublicKeyCache.size());
+        // The first key was evicted to make room, so it is derived again.
+        final Key again = new KeyPair(privateKeys[0]).getPublicKey();
+        assertNotSame(first, again);
+        assertEquals(first, again);
+        PublicKeyCache.clear();
+        assertEquals(0, PublicKeyCache.size());
+    }
+}
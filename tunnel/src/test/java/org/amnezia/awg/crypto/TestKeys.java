@@ -0,0 +1,27 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.crypto;
+
+import java.util.Random;
+
+/**
+ * Random keys for tests and benchmarks.
+ */
+final class TestKeys {
+    private TestKeys() {
+        // Prevent instantiation.
+    }
+
+    static Key[] random(final Random random, final int count) throws KeyFormatException {
+        final Key[] keys = new Key[count];
+        final byte[] bytes = new byte[Key.Format.BINARY.getLength()];
+        for (int i = 0; i < count; ++i) {
+            random.nextBytes(bytes);
+            keys[i] = Key.fromBytes(bytes);
+        }
+        return keys;
+    }
+}
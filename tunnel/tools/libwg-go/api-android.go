@@ -7,9 +7,13 @@ package main
 
 // #cgo LDFLAGS: -llog
 // #include <android/log.h>
+// extern void awgNotifyPeerEvent(int handle, const unsigned char *public_key, int event);
 import "C"
 
 import (
+	"bytes"
+	"encoding/binary"
+	"encoding/hex"
 	"fmt"
 	"math"
 	"net"
@@ -17,9 +21,14 @@ import (
 	"os/signal"
 	"runtime"
 	"runtime/debug"
+	"runtime/metrics"
+	"strconv"
 	"strings"
+	"sync"
 	"unsafe"
 
+	androidbind "github.com/amnezia-vpn/amneziawg-android/bind"
+	"github.com/amnezia-vpn/amneziawg-android/peerevent"
 	"github.com/amnezia-vpn/amneziawg-go/v3/conn"
 	"github.com/amnezia-vpn/amneziawg-go/v3/device"
 	"github.com/amnezia-vpn/amneziawg-go/v3/ipc"
@@ -46,12 +55,110 @@ func (l AndroidLogger) Printf(format string, args ...interface{}) {
 }
 
 type TunnelHandle struct {
-	device *device.Device
-	uapi   net.Listener
+	device    *device.Device
+	bind      *androidbind.BatchLimited
+	uapi      net.Listener
+	logger    *device.Logger
+	peerKeys  *peerKeySet
+	stopEvent chan struct{}
+}
+
+type peerEvent struct {
+	peer  *device.Peer
+	event int
+}
+
+// peerKeySet tracks the public keys configured on a device, so that the *device.Peer carried by a
+// log line can be mapped back to a full key with device.LookupPeer.
+type peerKeySet struct {
+	sync.Mutex
+	keys map[device.NoisePublicKey]struct{}
+}
+
+func (s *peerKeySet) update(settings string) {
+	s.Lock()
+	defer s.Unlock()
+	if s.keys == nil {
+		s.keys = make(map[device.NoisePublicKey]struct{})
+	}
+	var current *device.NoisePublicKey
+	for _, line := range strings.Split(settings, "\n") {
+		key, value, ok := strings.Cut(line, "=")
+		if !ok {
+			continue
+		}
+		switch key {
+		case "replace_peers":
+			if value == "true" {
+				clear(s.keys)
+			}
+		case "public_key":
+			var pk device.NoisePublicKey
+			if len(value) != hex.EncodedLen(len(pk)) {
+				current = nil
+				continue
+			}
+			if _, err := hex.Decode(pk[:], []byte(value)); err != nil {
+				current = nil
+				continue
+			}
+			s.keys[pk] = struct{}{}
+			current = &pk
+		case "remove":
+			if value == "true" && current != nil {
+				delete(s.keys, *current)
+			}
+		}
+	}
+}
+
+func (s *peerKeySet) lookup(dev *device.Device, peer *device.Peer) (device.NoisePublicKey, bool) {
+	s.Lock()
+	defer s.Unlock()
+	for pk := range s.keys {
+		if dev.LookupPeer(pk) == peer {
+			return pk, true
+		}
+	}
+	return device.NoisePublicKey{}, false
+}
+
+// dispatchPeerEvents forwards peer events to Java. It runs apart from the device's goroutines,
+// which emit the events while holding their own locks.
+func dispatchPeerEvents(tunnelHandle int32, dev *device.Device, keys *peerKeySet, events <-chan peerEvent, stop <-chan struct{}) {
+	for {
+		select {
+		case <-stop:
+			return
+		case ev := <-events:
+			pk, ok := keys.lookup(dev, ev.peer)
+			if !ok {
+				continue
+			}
+			C.awgNotifyPeerEvent(C.int(tunnelHandle), (*C.uchar)(unsafe.Pointer(&pk[0])), C.int(ev.event))
+		}
+	}
 }
 
 var tunnelHandles map[int32]TunnelHandle
 
+// bindSettings removes the line meant for the bind rather than for the device, which would reject
+// it, and returns the requested send batch size, or -1 if there was none. GoBackend writes that
+// line first, so the rest is returned as a subslice of settings: copying it would leave another
+// copy of the private key on the heap that nothing wipes.
+func bindSettings(settings string) (string, int) {
+	line, rest, found := strings.Cut(settings, "\n")
+	value, ok := strings.CutPrefix(line, "batch_size=")
+	if !found || !ok {
+		return settings, -1
+	}
+	batchSize, err := strconv.Atoi(strings.TrimSpace(value))
+	if err != nil {
+		batchSize = -1
+	}
+	return rest, batchSize
+}
+
 func init() {
 	tunnelHandles = make(map[int32]TunnelHandle)
 	signals := make(chan os.Signal)
@@ -75,10 +182,18 @@ func init() {
 //export awgTurnOn
 func awgTurnOn(interfaceName string, tunFd int32, settings string) int32 {
 	tag := cstring("AmneziaWG/" + interfaceName)
+	verbosef := AndroidLogger{level: C.ANDROID_LOG_DEBUG, tag: tag}.Printf
+	events := make(chan peerEvent, 64)
 	logger := &device.Logger{
-		Verbosef: AndroidLogger{level: C.ANDROID_LOG_DEBUG, tag: tag}.Printf,
-		Errorf:   AndroidLogger{level: C.ANDROID_LOG_ERROR, tag: tag}.Printf,
+		Verbosef: peerevent.Verbosef(verbosef, func(peer *device.Peer, event int) {
+			select {
+			case events <- peerEvent{peer: peer, event: event}:
+			default:
+			}
+		}),
+		Errorf: AndroidLogger{level: C.ANDROID_LOG_ERROR, tag: tag}.Printf,
 	}
+	peerKeys := &peerKeySet{}
 
 	tun, name, err := tun.CreateUnmonitoredTUNFromFD(int(tunFd))
 	if err != nil {
@@ -88,7 +203,11 @@ func awgTurnOn(interfaceName string, tunFd int32, settings string) int32 {
 	}
 
 	logger.Verbosef("Attaching to interface %v", name)
-	device := device.NewDevice(tun, conn.NewStdNetBind(), logger)
+	settings, batchSize := bindSettings(settings)
+	bind := androidbind.NewBatchLimited(conn.NewStdNetBind())
+	bind.SetSendBatchSize(batchSize)
+	logger.Verbosef("Sending up to %d packets per batch", bind.SendBatchSize())
+	device := device.NewDevice(tun, bind, logger)
 
 	err = device.IpcSet(settings)
 	if err != nil {
@@ -96,6 +215,7 @@ func awgTurnOn(interfaceName string, tunFd int32, settings string) int32 {
 		logger.Errorf("IpcSet: %v", err)
 		return -1
 	}
+	peerKeys.update(settings)
 	device.DisableSomeRoamingForBrokenMobileSemantics()
 
 	var uapi net.Listener
@@ -142,7 +262,9 @@ func awgTurnOn(interfaceName string, tunFd int32, settings string) int32 {
 		device.Close()
 		return -1
 	}
-	tunnelHandles[i] = TunnelHandle{device: device, uapi: uapi}
+	stopEvent := make(chan struct{})
+	tunnelHandles[i] = TunnelHandle{device: device, bind: bind, uapi: uapi, logger: logger, peerKeys: peerKeys, stopEvent: stopEvent}
+	go dispatchPeerEvents(i, device, peerKeys, events, stopEvent)
 	return i
 }
 
@@ -153,19 +275,40 @@ func awgTurnOff(tunnelHandle int32) {
 		return
 	}
 	delete(tunnelHandles, tunnelHandle)
+	close(handle.stopEvent)
 	if handle.uapi != nil {
 		handle.uapi.Close()
 	}
 	handle.device.Close()
 }
 
+//export awgSetConfig
+func awgSetConfig(tunnelHandle int32, settings string) int32 {
+	handle, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return -1
+	}
+	settings, batchSize := bindSettings(settings)
+	if batchSize >= 0 {
+		handle.bind.SetSendBatchSize(batchSize)
+		handle.logger.Verbosef("Sending up to %d packets per batch", handle.bind.SendBatchSize())
+	}
+	err := handle.device.IpcSet(settings)
+	if err != nil {
+		handle.logger.Errorf("IpcSet: %v", err)
+		return -1
+	}
+	handle.peerKeys.update(settings)
+	return 0
+}
+
 //export awgGetSocketV4
 func awgGetSocketV4(tunnelHandle int32) int32 {
 	handle, ok := tunnelHandles[tunnelHandle]
 	if !ok {
 		return -1
 	}
-	bind, _ := handle.device.Bind().(conn.PeekLookAtSocketFd)
+	bind, _ := handle.bind.Bind.(conn.PeekLookAtSocketFd)
 	if bind == nil {
 		return -1
 	}
@@ -182,7 +325,7 @@ func awgGetSocketV6(tunnelHandle int32) int32 {
 	if !ok {
 		return -1
 	}
-	bind, _ := handle.device.Bind().(conn.PeekLookAtSocketFd)
+	bind, _ := handle.bind.Bind.(conn.PeekLookAtSocketFd)
 	if bind == nil {
 		return -1
 	}
@@ -206,6 +349,239 @@ func awgGetConfig(tunnelHandle int32) *C.char {
 	return C.CString(settings)
 }
 
+// Each peer is reported to awgGetStatistics as a fixed-size record in native byte order: the
+// 32-byte public key, then the rx and tx byte counters and the latest handshake time in epoch
+// milliseconds as 64-bit integers.
+const statsRecordSize = 32 + 3*8
+
+// statsWriter consumes the text produced by IpcGetOperation as it is written and fills one
+// record per peer into out, so that no string ever needs to cross the JNI boundary.
+type statsWriter struct {
+	out           []byte
+	peers         int
+	line          []byte
+	record        []byte
+	handshakeSec  int64
+	handshakeNsec int64
+}
+
+func parseDecimal(b []byte) int64 {
+	var v int64
+	for _, c := range b {
+		if c < '0' || c > '9' {
+			return 0
+		}
+		v = v*10 + int64(c-'0')
+	}
+	return v
+}
+
+func (w *statsWriter) finishPeer() {
+	if w.record != nil {
+		binary.NativeEndian.PutUint64(w.record[48:], uint64(w.handshakeSec*1000+w.handshakeNsec/1000000))
+	}
+	w.record = nil
+	w.handshakeSec = 0
+	w.handshakeNsec = 0
+}
+
+func (w *statsWriter) handleLine(line []byte) {
+	key, value, ok := bytes.Cut(line, []byte{'='})
+	if !ok {
+		return
+	}
+	if string(key) == "public_key" {
+		w.finishPeer()
+		w.peers++
+		if w.peers*statsRecordSize > len(w.out) {
+			return
+		}
+		record := w.out[(w.peers-1)*statsRecordSize : w.peers*statsRecordSize]
+		clear(record)
+		if len(value) == hex.EncodedLen(32) {
+			if _, err := hex.Decode(record[:32], value); err != nil {
+				clear(record[:32])
+			}
+		}
+		w.record = record
+		return
+	}
+	if w.record == nil {
+		return
+	}
+	switch string(key) {
+	case "rx_bytes":
+		binary.NativeEndian.PutUint64(w.record[32:], uint64(parseDecimal(value)))
+	case "tx_bytes":
+		binary.NativeEndian.PutUint64(w.record[40:], uint64(parseDecimal(value)))
+	case "last_handshake_time_sec":
+		w.handshakeSec = parseDecimal(value)
+	case "last_handshake_time_nsec":
+		w.handshakeNsec = parseDecimal(value)
+	}
+}
+
+func (w *statsWriter) Write(p []byte) (int, error) {
+	n := len(p)
+	for len(p) > 0 {
+		i := bytes.IndexByte(p, '\n')
+		if i < 0 {
+			w.line = append(w.line, p...)
+			break
+		}
+		if len(w.line) > 0 {
+			w.line = append(w.line, p[:i]...)
+			w.handleLine(w.line)
+			w.line = w.line[:0]
+		} else {
+			w.handleLine(p[:i])
+		}
+		p = p[i+1:]
+	}
+	return n, nil
+}
+
+//export awgGetStatistics
+func awgGetStatistics(tunnelHandle int32, buf unsafe.Pointer, bufLen int32) int32 {
+	handle, ok := tunnelHandles[tunnelHandle]
+	if !ok || buf == nil || bufLen < 0 {
+		return -1
+	}
+	w := statsWriter{out: unsafe.Slice((*byte)(buf), bufLen)}
+	err := handle.device.IpcGetOperation(&w)
+	if err != nil {
+		return -1
+	}
+	if len(w.line) > 0 {
+		w.handleLine(w.line)
+	}
+	w.finishPeer()
+	return int32(w.peers)
+}
+
+// These indices match the fields of org.amnezia.awg.backend.GoRuntimeStats.
+const (
+	runtimeStatHeapInUse = iota
+	runtimeStatHeapGoal
+	runtimeStatTotalMemory
+	runtimeStatGoroutines
+	runtimeStatGcCycles
+	runtimeStatGcPauseP50
+	runtimeStatGcPauseP90
+	runtimeStatGcPauseP99
+	runtimeStatGcPauseMax
+	runtimeStatMemoryLimit
+	runtimeStatGcPercent
+	runtimeStatBuffersPerPool
+	runtimeStatCount
+)
+
+func metricValue(sample metrics.Sample) int64 {
+	switch sample.Value.Kind() {
+	case metrics.KindUint64:
+		v := sample.Value.Uint64()
+		if v > math.MaxInt64 {
+			return math.MaxInt64
+		}
+		return int64(v)
+	case metrics.KindFloat64:
+		return int64(sample.Value.Float64())
+	default:
+		return -1
+	}
+}
+
+// pausePercentiles returns the upper bounds, in nanoseconds, of the histogram buckets holding
+// each of the given percentiles, followed by that of the highest non-empty bucket.
+func pausePercentiles(sample metrics.Sample, percentiles ...float64) []int64 {
+	out := make([]int64, len(percentiles)+1)
+	if sample.Value.Kind() != metrics.KindFloat64Histogram {
+		return out
+	}
+	h := sample.Value.Float64Histogram()
+	bound := func(i int) int64 {
+		upper := h.Buckets[i+1]
+		if math.IsInf(upper, 1) {
+			upper = h.Buckets[i]
+		}
+		return int64(upper * 1e9)
+	}
+	var total uint64
+	for _, c := range h.Counts {
+		total += c
+	}
+	if total == 0 {
+		return out
+	}
+	for p, percentile := range percentiles {
+		rank := uint64(math.Ceil(float64(total) * percentile / 100))
+		var seen uint64
+		for i, c := range h.Counts {
+			seen += c
+			if seen >= rank && seen > 0 {
+				out[p] = bound(i)
+				break
+			}
+		}
+	}
+	for i := len(h.Counts) - 1; i >= 0; i-- {
+		if h.Counts[i] > 0 {
+			out[len(percentiles)] = bound(i)
+			break
+		}
+	}
+	return out
+}
+
+//export awgGetRuntimeStats
+func awgGetRuntimeStats(buf unsafe.Pointer, bufLen int32) int32 {
+	if buf == nil || bufLen < runtimeStatCount*8 {
+		return -1
+	}
+	samples := []metrics.Sample{
+		{Name: "/memory/classes/heap/objects:bytes"},
+		{Name: "/gc/heap/goal:bytes"},
+		{Name: "/memory/classes/total:bytes"},
+		{Name: "/sched/goroutines:goroutines"},
+		{Name: "/gc/cycles/total:gc-cycles"},
+		{Name: "/sched/pauses/total/gc:seconds"},
+		{Name: "/gc/gomemlimit:bytes"},
+		{Name: "/gc/gogc:percent"},
+	}
+	metrics.Read(samples)
+	var stats [runtimeStatCount]int64
+	stats[runtimeStatHeapInUse] = metricValue(samples[0])
+	stats[runtimeStatHeapGoal] = metricValue(samples[1])
+	stats[runtimeStatTotalMemory] = metricValue(samples[2])
+	stats[runtimeStatGoroutines] = metricValue(samples[3])
+	stats[runtimeStatGcCycles] = metricValue(samples[4])
+	pauses := pausePercentiles(samples[5], 50, 90, 99)
+	copy(stats[runtimeStatGcPauseP50:runtimeStatGcPauseMax+1], pauses)
+	stats[runtimeStatMemoryLimit] = metricValue(samples[6])
+	stats[runtimeStatGcPercent] = metricValue(samples[7])
+	// The device's pools of message buffers and queue elements are capped at this many
+	// entries each; how many they hold at a time is not visible outside the device.
+	stats[runtimeStatBuffersPerPool] = device.PreallocatedBuffersPerPool
+	out := unsafe.Slice((*byte)(buf), bufLen)
+	for i, v := range stats {
+		binary.NativeEndian.PutUint64(out[i*8:], uint64(v))
+	}
+	return runtimeStatCount
+}
+
+// awgSetMemoryLimit sets the soft memory limit of the Go runtime, which is shared by every
+// tunnel of the process, along with its GC target. A limit of zero or less removes the limit, and
+// a negative GC percentage disables collection until the limit is reached.
+//
+//export awgSetMemoryLimit
+func awgSetMemoryLimit(limitBytes int64, gcPercent int32) {
+	if limitBytes <= 0 {
+		limitBytes = math.MaxInt64
+	}
+	debug.SetMemoryLimit(limitBytes)
+	debug.SetGCPercent(int(gcPercent))
+}
+
 //export awgVersion
 func awgVersion() *C.char {
 	info, ok := debug.ReadBuildInfo()
@@ -0,0 +1,58 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ */
+
+// Package bind adapts the UDP bind of amneziawg-go for Android.
+package bind
+
+import (
+	"sync/atomic"
+
+	"github.com/amnezia-vpn/amneziawg-go/v3/conn"
+)
+
+// BatchLimited wraps a conn.Bind so that each Send hands at most a configurable number of
+// packets to the kernel at once. The standard bind already uses sendmmsg/recvmmsg and, where the
+// kernel supports it, UDP GSO/GRO, falling back to single datagrams when a socket rejects them.
+// Smaller send batches trade throughput for latency and lower burst sizes, and a limit of 1
+// sends every packet on its own, for kernels or networks that misbehave with large bursts.
+//
+// Only sends are limited: the standard bind reads into as many buffers as its own batch size on
+// every receive, so the buffers handed to it must not be shortened.
+type BatchLimited struct {
+	conn.Bind
+	sendBatch atomic.Int32
+}
+
+// NewBatchLimited wraps inner, initially limiting sends to its own batch size.
+func NewBatchLimited(inner conn.Bind) *BatchLimited {
+	b := &BatchLimited{Bind: inner}
+	b.sendBatch.Store(int32(inner.BatchSize()))
+	return b
+}
+
+// SetSendBatchSize limits each send to n packets, or restores the inner bind's batch size if n is
+// zero or less. It may be called while the bind is in use.
+func (b *BatchLimited) SetSendBatchSize(n int) {
+	if n <= 0 || n > b.Bind.BatchSize() {
+		n = b.Bind.BatchSize()
+	}
+	b.sendBatch.Store(int32(n))
+}
+
+// SendBatchSize returns the current limit on the packets of each send.
+func (b *BatchLimited) SendBatchSize() int {
+	return int(b.sendBatch.Load())
+}
+
+func (b *BatchLimited) Send(bufs [][]byte, ep conn.Endpoint) error {
+	n := int(b.sendBatch.Load())
+	for len(bufs) > n {
+		if err := b.Bind.Send(bufs[:n], ep); err != nil {
+			return err
+		}
+		bufs = bufs[n:]
+	}
+	return b.Bind.Send(bufs, ep)
+}
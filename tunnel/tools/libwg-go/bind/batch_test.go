@@ -0,0 +1,116 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ */
+
+package bind
+
+import (
+	"fmt"
+	"net/netip"
+	"sync/atomic"
+	"testing"
+	"time"
+
+	"github.com/amnezia-vpn/amneziawg-go/v3/conn"
+)
+
+type countingBind struct {
+	conn.Bind
+	sends   int
+	packets int
+}
+
+func (c *countingBind) BatchSize() int {
+	return conn.IdealBatchSize
+}
+
+func (c *countingBind) Send(bufs [][]byte, ep conn.Endpoint) error {
+	c.sends++
+	c.packets += len(bufs)
+	return nil
+}
+
+func TestSendIsSplitIntoBatches(t *testing.T) {
+	inner := &countingBind{}
+	b := NewBatchLimited(inner)
+	b.SetSendBatchSize(10)
+	if err := b.Send(make([][]byte, 25), nil); err != nil {
+		t.Fatal(err)
+	}
+	if inner.sends != 3 || inner.packets != 25 {
+		t.Fatalf("got %d sends of %d packets, want 3 of 25", inner.sends, inner.packets)
+	}
+	b.SetSendBatchSize(0)
+	if b.SendBatchSize() != conn.IdealBatchSize {
+		t.Fatalf("got batch size %d after reset, want %d", b.SendBatchSize(), conn.IdealBatchSize)
+	}
+}
+
+// BenchmarkLoopback sends 1280-byte datagrams between two standard binds over IPv4 loopback and
+// reports the packets per second that arrive, for several send batch sizes. Run it on a Linux
+// host or device with: go test -bench Loopback ./bind
+func BenchmarkLoopback(b *testing.B) {
+	for _, batch := range []int{1, 8, 32, conn.IdealBatchSize} {
+		b.Run(fmt.Sprintf("batch=%d", batch), func(b *testing.B) {
+			benchmarkLoopback(b, batch)
+		})
+	}
+}
+
+func benchmarkLoopback(b *testing.B, batch int) {
+	receiver := conn.NewStdNetBind()
+	fns, port, err := receiver.Open(0)
+	if err != nil {
+		b.Skip(err)
+	}
+	defer receiver.Close()
+	sender := NewBatchLimited(conn.NewStdNetBind())
+	if _, _, err := sender.Open(0); err != nil {
+		b.Skip(err)
+	}
+	defer sender.Close()
+	sender.SetSendBatchSize(batch)
+	ep, err := sender.ParseEndpoint(netip.AddrPortFrom(netip.MustParseAddr("127.0.0.1"), port).String())
+	if err != nil {
+		b.Fatal(err)
+	}
+
+	var received atomic.Int64
+	for _, fn := range fns {
+		go func(fn conn.ReceiveFunc) {
+			bufs := make([][]byte, receiver.BatchSize())
+			for i := range bufs {
+				bufs[i] = make([]byte, 65536)
+			}
+			sizes := make([]int, len(bufs))
+			eps := make([]conn.Endpoint, len(bufs))
+			for {
+				n, err := fn(bufs, sizes, eps)
+				if err != nil {
+					return
+				}
+				received.Add(int64(n))
+			}
+		}(fn)
+	}
+
+	bufs := make([][]byte, conn.IdealBatchSize)
+	for i := range bufs {
+		bufs[i] = make([]byte, 1280)
+	}
+	b.SetBytes(int64(len(bufs) * 1280))
+	b.ResetTimer()
+	start := time.Now()
+	for i := 0; i < b.N; i++ {
+		if err := sender.Send(bufs, ep); err != nil {
+			b.Fatal(err)
+		}
+	}
+	elapsed := time.Since(start)
+	b.StopTimer()
+	// Give the receiver a moment to drain what is still queued.
+	time.Sleep(50 * time.Millisecond)
+	b.ReportMetric(float64(received.Load())/elapsed.Seconds(), "rx-pkts/s")
+	b.ReportMetric(float64(b.N*len(bufs))/elapsed.Seconds(), "tx-pkts/s")
+}
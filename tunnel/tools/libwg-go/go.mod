@@ -6,7 +6,7 @@ require golang.org/x/sys v0.36.0
 
 require (
 	github.com/amnezia-vpn/amneziawg-go/v3 v3.1.20260814
-	golang.org/x/crypto v0.42.0 // indirect
+	golang.org/x/crypto v0.42.0
 	golang.org/x/net v0.44.0 // indirect
 	golang.zx2c4.com/wintun v0.0.0-20230126152724-0fa3db229ce2 // indirect
 )
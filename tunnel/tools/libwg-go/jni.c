@@ -4,24 +4,86 @@
  */
 
 #include <jni.h>
+#include <limits.h>
 #include <stdlib.h>
 #include <string.h>
+#include <unistd.h>
 
 struct go_string { const char *str; long n; };
 extern int awgTurnOn(struct go_string ifname, int tun_fd, struct go_string settings);
 extern void awgTurnOff(int handle);
+extern int awgSetConfig(int handle, struct go_string settings);
 extern int awgGetSocketV4(int handle);
 extern int awgGetSocketV6(int handle);
 extern char *awgGetConfig(int handle);
+extern int awgGetStatistics(int handle, void *buf, int len);
+extern int awgGetRuntimeStats(void *buf, int len);
+extern void awgSetMemoryLimit(long long limit_bytes, int gc_percent);
 extern char *awgVersion();
 
-JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgTurnOn(JNIEnv *env, jclass c, jstring ifname, jint tun_fd, jstring settings)
+static JavaVM *java_vm;
+static jclass go_backend_class;
+static jmethodID on_peer_event_method;
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
 {
-	const char *ifname_str = (*env)->GetStringUTFChars(env, ifname, 0);
-	size_t ifname_len = (*env)->GetStringUTFLength(env, ifname);
-	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
-	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
-	int ret = awgTurnOn((struct go_string){
+	JNIEnv *env;
+	jclass c;
+
+	if ((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK)
+		return JNI_ERR;
+	c = (*env)->FindClass(env, "org/amnezia/awg/GoBackend");
+	if (!c)
+		return JNI_ERR;
+	on_peer_event_method = (*env)->GetStaticMethodID(env, c, "onPeerEvent", "(I[BI)V");
+	if (!on_peer_event_method)
+		return JNI_ERR;
+	go_backend_class = (*env)->NewGlobalRef(env, c);
+	java_vm = vm;
+	return JNI_VERSION_1_6;
+}
+
+void awgNotifyPeerEvent(int handle, const unsigned char *public_key, int event)
+{
+	JNIEnv *env;
+	jbyteArray key;
+	int attached = 0;
+
+	if (!java_vm)
+		return;
+	if ((*java_vm)->GetEnv(java_vm, (void **)&env, JNI_VERSION_1_6) == JNI_EDETACHED) {
+		if ((*java_vm)->AttachCurrentThread(java_vm, (void *)&env, NULL) != JNI_OK)
+			return;
+		attached = 1;
+	}
+	key = (*env)->NewByteArray(env, 32);
+	if (key) {
+		(*env)->SetByteArrayRegion(env, key, 0, 32, (const jbyte *)public_key);
+		(*env)->CallStaticVoidMethod(env, go_backend_class, on_peer_event_method, handle, key, event);
+		(*env)->DeleteLocalRef(env, key);
+	}
+	if ((*env)->ExceptionCheck(env))
+		(*env)->ExceptionClear(env);
+	if (attached)
+		(*java_vm)->DetachCurrentThread(java_vm);
+}
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgTurnOn(JNIEnv *env, jclass c, jstring ifname, jint tun_fd, jobject settings, jint settings_len)
+{
+	const char *settings_str = (*env)->GetDirectBufferAddress(env, settings);
+	jlong settings_cap = (*env)->GetDirectBufferCapacity(env, settings);
+	const char *ifname_str;
+	size_t ifname_len;
+	int ret;
+
+	if (!settings_str || settings_len < 0 || settings_len > settings_cap) {
+		close(tun_fd);
+		return -1;
+	}
+	ifname_str = (*env)->GetStringUTFChars(env, ifname, 0);
+	ifname_len = (*env)->GetStringUTFLength(env, ifname);
+	/* The settings are read in place from the caller's direct buffer, which it wipes afterwards. */
+	ret = awgTurnOn((struct go_string){
 		.str = ifname_str,
 		.n = ifname_len
 	}, tun_fd, (struct go_string){
@@ -29,7 +91,6 @@ JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgTurnOn(JNIEnv *env, jcl
 		.n = settings_len
 	});
 	(*env)->ReleaseStringUTFChars(env, ifname, ifname_str);
-	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
 	return ret;
 }
 
@@ -38,6 +99,18 @@ JNIEXPORT void JNICALL Java_org_amnezia_awg_GoBackend_awgTurnOff(JNIEnv *env, jc
 	awgTurnOff(handle);
 }
 
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgSetConfig(JNIEnv *env, jclass c, jint handle, jstring settings)
+{
+	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
+	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
+	int ret = awgSetConfig(handle, (struct go_string){
+		.str = settings_str,
+		.n = settings_len
+	});
+	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
+	return ret;
+}
+
 JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgGetSocketV4(JNIEnv *env, jclass c, jint handle)
 {
 	return awgGetSocketV4(handle);
@@ -59,6 +132,29 @@ JNIEXPORT jstring JNICALL Java_org_amnezia_awg_GoBackend_awgGetConfig(JNIEnv *en
 	return ret;
 }
 
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgGetStatistics(JNIEnv *env, jclass c, jint handle, jobject stats)
+{
+	void *buf = (*env)->GetDirectBufferAddress(env, stats);
+	jlong len = (*env)->GetDirectBufferCapacity(env, stats);
+	if (!buf || len < 0 || len > INT_MAX)
+		return -1;
+	return awgGetStatistics(handle, buf, (int)len);
+}
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgGetRuntimeStats(JNIEnv *env, jclass c, jobject stats)
+{
+	void *buf = (*env)->GetDirectBufferAddress(env, stats);
+	jlong len = (*env)->GetDirectBufferCapacity(env, stats);
+	if (!buf || len < 0 || len > INT_MAX)
+		return -1;
+	return awgGetRuntimeStats(buf, (int)len);
+}
+
+JNIEXPORT void JNICALL Java_org_amnezia_awg_GoBackend_awgSetMemoryLimit(JNIEnv *env, jclass c, jlong limit_bytes, jint gc_percent)
+{
+	awgSetMemoryLimit(limit_bytes, gc_percent);
+}
+
 JNIEXPORT jstring JNICALL Java_org_amnezia_awg_GoBackend_awgVersion(JNIEnv *env, jclass c)
 {
 	jstring ret;
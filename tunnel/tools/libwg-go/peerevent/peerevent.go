@@ -0,0 +1,54 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ */
+
+// Package peerevent recognizes changes in the sessions of a device's peers from the device's log.
+// It is kept apart from the JNI entry points so that it can be tested against a real device on the
+// build host.
+package peerevent
+
+import (
+	"strings"
+
+	"github.com/amnezia-vpn/amneziawg-go/v3/device"
+)
+
+// These values match the ordinals of org.amnezia.awg.backend.StatusCallback.Event.
+const (
+	HandshakeCompleted = iota
+	HandshakeFailed
+	Stale
+)
+
+// ForLog recognizes the device log lines that mark a change in a peer's session. The device has
+// no other hook for these, so this depends on its exact messages, which the tests check by running
+// a handshake between two devices.
+func ForLog(format string) (int, bool) {
+	switch {
+	case strings.HasSuffix(format, " - Received handshake response"),
+		strings.HasSuffix(format, " - Received handshake initiation"):
+		return HandshakeCompleted, true
+	case strings.HasSuffix(format, " attempts, giving up"):
+		return HandshakeFailed, true
+	case strings.Contains(format, " - Removing all keys, since we haven't received a new one"):
+		return Stale, true
+	}
+	return 0, false
+}
+
+// Verbosef wraps the verbose logger of a device so that each line that marks a change in a peer's
+// session is also passed to emit, with the peer it is about. emit is called on the device's
+// goroutines while they hold their own locks, so it must not block or call into the device.
+func Verbosef(verbosef func(format string, args ...interface{}), emit func(peer *device.Peer, event int)) func(format string, args ...interface{}) {
+	return func(format string, args ...interface{}) {
+		verbosef(format, args...)
+		event, ok := ForLog(format)
+		if !ok || len(args) == 0 {
+			return
+		}
+		if peer, ok := args[0].(*device.Peer); ok {
+			emit(peer, event)
+		}
+	}
+}
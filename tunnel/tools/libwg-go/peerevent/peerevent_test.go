@@ -0,0 +1,143 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ */
+
+package peerevent
+
+import (
+	"crypto/rand"
+	"encoding/hex"
+	"fmt"
+	"net/netip"
+	"strconv"
+	"strings"
+	"testing"
+	"time"
+
+	"github.com/amnezia-vpn/amneziawg-go/v3/conn"
+	"github.com/amnezia-vpn/amneziawg-go/v3/device"
+	"github.com/amnezia-vpn/amneziawg-go/v3/tun/tuntest"
+	"golang.org/x/crypto/curve25519"
+)
+
+type event struct {
+	peer  *device.Peer
+	event int
+}
+
+type testDevice struct {
+	device    *device.Device
+	tun       *tuntest.ChannelTUN
+	events    chan event
+	address   netip.Addr
+	publicKey device.NoisePublicKey
+}
+
+// newTestDevice brings up a device on a channel TUN and a loopback UDP port, reporting its events.
+func newTestDevice(t *testing.T, address string) *testDevice {
+	var privateKey [32]byte
+	if _, err := rand.Read(privateKey[:]); err != nil {
+		t.Fatal(err)
+	}
+	publicKey, err := curve25519.X25519(privateKey[:], curve25519.Basepoint)
+	if err != nil {
+		t.Fatal(err)
+	}
+	d := &testDevice{
+		tun:     tuntest.NewChannelTUN(),
+		events:  make(chan event, 16),
+		address: netip.MustParseAddr(address),
+	}
+	copy(d.publicKey[:], publicKey)
+	logger := &device.Logger{
+		Verbosef: Verbosef(t.Logf, func(peer *device.Peer, e int) {
+			select {
+			case d.events <- event{peer: peer, event: e}:
+			default:
+			}
+		}),
+		Errorf: t.Logf,
+	}
+	d.device = device.NewDevice(d.tun.TUN(), conn.NewDefaultBind(), logger)
+	t.Cleanup(d.device.Close)
+	if err := d.device.IpcSet("private_key=" + hex.EncodeToString(privateKey[:]) + "\nlisten_port=0\n"); err != nil {
+		t.Fatal(err)
+	}
+	if err := d.device.Up(); err != nil {
+		t.Fatal(err)
+	}
+	return d
+}
+
+// port returns the UDP port the device was given when it came up.
+func (d *testDevice) port(t *testing.T) int {
+	settings, err := d.device.IpcGet()
+	if err != nil {
+		t.Fatal(err)
+	}
+	for _, line := range strings.Split(settings, "\n") {
+		if value, ok := strings.CutPrefix(line, "listen_port="); ok {
+			port, err := strconv.Atoi(value)
+			if err != nil {
+				t.Fatal(err)
+			}
+			return port
+		}
+	}
+	t.Fatal("device has no listen_port")
+	return 0
+}
+
+func (d *testDevice) addPeer(t *testing.T, peer *testDevice) {
+	err := d.device.IpcSet(fmt.Sprintf("public_key=%s\nendpoint=127.0.0.1:%d\nallowed_ip=%s/32\n",
+		hex.EncodeToString(peer.publicKey[:]), peer.port(t), peer.address))
+	if err != nil {
+		t.Fatal(err)
+	}
+}
+
+// expect waits for the next event of the device, which must be want and about peer.
+func (d *testDevice) expect(t *testing.T, peer *testDevice, want int) {
+	t.Helper()
+	select {
+	case e := <-d.events:
+		if e.event != want {
+			t.Fatalf("got event %d, want %d", e.event, want)
+		}
+		if e.peer != d.device.LookupPeer(peer.publicKey) {
+			t.Fatalf("event %d is about the wrong peer", e.event)
+		}
+	case <-time.After(5 * time.Second):
+		t.Fatalf("no event %d", want)
+	}
+}
+
+func TestHandshakesAreReported(t *testing.T) {
+	a := newTestDevice(t, "10.0.0.1")
+	b := newTestDevice(t, "10.0.0.2")
+	a.addPeer(t, b)
+	b.addPeer(t, a)
+
+	// A packet for b makes a initiate a handshake, which b answers before it gets the packet.
+	a.tun.Outbound <- tuntest.Ping(b.address, a.address)
+	b.expect(t, a, HandshakeCompleted)
+	a.expect(t, b, HandshakeCompleted)
+	select {
+	case <-b.tun.Inbound:
+	case <-time.After(5 * time.Second):
+		t.Fatal("packet was not delivered")
+	}
+}
+
+func TestOtherLinesAreIgnored(t *testing.T) {
+	for _, format := range []string{
+		"%v - Sending handshake initiation",
+		"%v - Starting",
+		"Interface state was %s, requested %s, now %s",
+	} {
+		if _, ok := ForLog(format); ok {
+			t.Errorf("%q was taken for a peer event", format)
+		}
+	}
+}
@@ -55,6 +55,7 @@ android {
     androidResources {
         generateLocaleConfig = true
     }
+    testOptions.unitTests.isReturnDefaultValues = true
     lint {
         disable += "LongLogTag"
         warning += "MissingTranslation"
@@ -79,6 +80,7 @@ dependencies {
     implementation(libs.zxing.android.embedded)
     implementation(libs.kotlinx.coroutines.android)
     coreLibraryDesugaring(libs.desugarJdkLibs)
+    testImplementation(libs.junit)
 }
 
 tasks.withType<JavaCompile>().configureEach {
@@ -4,6 +4,8 @@
  */
 package org.amnezia.awg
 
+import android.app.ActivityManager
+import android.content.ComponentCallbacks2
 import android.content.Context
 import android.content.Intent
 import android.os.Build
@@ -21,7 +23,10 @@ import org.amnezia.awg.backend.Backend
 import org.amnezia.awg.backend.GoBackend
 import org.amnezia.awg.backend.AwgQuickBackend
 import org.amnezia.awg.configStore.FileConfigStore
+import org.amnezia.awg.configStore.IndexedConfigStore
+import org.amnezia.awg.crypto.PublicKeyCache
 import org.amnezia.awg.model.TunnelManager
+import org.amnezia.awg.util.AdminKnobs
 import org.amnezia.awg.util.NetworkState
 import org.amnezia.awg.util.NetworkType
 import org.amnezia.awg.util.RootShell
@@ -79,7 +84,11 @@ class Application : android.app.Application() {
             }
         }
         if (backend == null) {
-            backend = GoBackend(applicationContext)
+            val goBackend = GoBackend(applicationContext)
+            // The Go runtime otherwise lets its heap double before collecting.
+            if (getSystemService(ActivityManager::class.java)?.isLowRamDevice == true)
+                goBackend.setMemoryLimit(LOW_RAM_GO_MEMORY_LIMIT_BYTES, 100)
+            backend = goBackend
             GoBackend.setAlwaysOnCallback { get().applicationScope.launch { get().tunnelManager.restoreState(true) } }
         }
         return backend
@@ -109,7 +118,11 @@ class Application : android.app.Application() {
         } else {
             AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.MODE_NIGHT_FOLLOW_SYSTEM)
         }
-        tunnelManager = TunnelManager(FileConfigStore(applicationContext))
+        val configStore = if (AdminKnobs.useIndexedConfigStore || IndexedConfigStore.exists(applicationContext))
+            IndexedConfigStore(applicationContext)
+        else
+            FileConfigStore(applicationContext)
+        tunnelManager = TunnelManager(configStore)
         tunnelManager.onCreate()
 
         // Initialize network state monitor for auto-reconnection
@@ -134,6 +147,14 @@ class Application : android.app.Application() {
         }
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        if (::tunnelManager.isInitialized)
+            tunnelManager.onTrimMemory(level)
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            PublicKeyCache.clear()
+    }
+
     override fun onTerminate() {
         networkState.unbindNetworkListener()
         coroutineScope.cancel()
@@ -187,6 +208,7 @@ class Application : android.app.Application() {
     companion object {
         val USER_AGENT = String.format(Locale.ENGLISH, "AmneziaWG/%s (Android %d; %s; %s; %s %s; %s)", BuildConfig.VERSION_NAME, Build.VERSION.SDK_INT, if (Build.SUPPORTED_ABIS.isNotEmpty()) Build.SUPPORTED_ABIS[0] else "unknown ABI", Build.BOARD, Build.MANUFACTURER, Build.MODEL, Build.FINGERPRINT)
         private const val TAG = "AmneziaWG/Application"
+        private const val LOW_RAM_GO_MEMORY_LIMIT_BYTES = 48L * 1024 * 1024
         private lateinit var weakSelf: WeakReference<Application>
 
         fun get(): Application {
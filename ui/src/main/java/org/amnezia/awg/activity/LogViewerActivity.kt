@@ -36,8 +36,11 @@ import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.google.android.material.snackbar.Snackbar
 import com.google.android.material.textview.MaterialTextView
+import org.amnezia.awg.Application
 import org.amnezia.awg.BuildConfig
 import org.amnezia.awg.R
+import org.amnezia.awg.backend.BringUpTrace
+import org.amnezia.awg.backend.GoBackend
 import org.amnezia.awg.databinding.LogViewerActivityBinding
 import org.amnezia.awg.util.DownloadsFileSaver
 import org.amnezia.awg.util.ErrorMessages
@@ -192,6 +195,9 @@ class LogViewerActivity : AppCompatActivity() {
     }
 
     private suspend fun streamingLog() = withContext(Dispatchers.IO) {
+        BringUpTrace.dumpToLog()
+        (Application.getBackend() as? GoBackend)?.runtimeStats?.let { Log.i(TAG, "Go runtime: $it") }
+        Application.getRootShell().metrics.takeIf { it.roundTrips > 0 }?.let { Log.i(TAG, "Root shell: $it") }
         val builder = ProcessBuilder().command("logcat", "-b", "all", "-v", "threadtime", "*:V")
         builder.environment()["LC_ALL"] = "C"
         var process: Process? = null
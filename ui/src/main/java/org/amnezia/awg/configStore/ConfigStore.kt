@@ -21,6 +21,33 @@ interface ConfigStore {
     @Throws(Exception::class)
     fun create(name: String, config: Config): Config
 
+    /**
+     * Create many persistent tunnels at once: either all of them are created or, if this throws,
+     * none are. By default they are created one by one, and those created before a failure are
+     * deleted again.
+     *
+     * @param configs Configurations for the new tunnels, by name.
+     */
+    @Throws(Exception::class)
+    fun createAll(configs: Map<String, Config>) {
+        val created = ArrayList<String>()
+        try {
+            for ((name, config) in configs) {
+                create(name, config)
+                created.add(name)
+            }
+        } catch (e: Throwable) {
+            for (name in created) {
+                try {
+                    delete(name)
+                } catch (deleteError: Throwable) {
+                    e.addSuppressed(deleteError)
+                }
+            }
+            throw e
+        }
+    }
+
     /**
      * Delete a persistent tunnel.
      *
@@ -65,4 +92,15 @@ interface ConfigStore {
      */
     @Throws(Exception::class)
     fun save(name: String, config: Config): Config
+
+    /**
+     * Summarize the configuration for the tunnel given by `name`, for lists of tunnels. Stores
+     * that keep an index of summaries return them without loading the whole configuration.
+     *
+     * @param name The identifier for the configuration in persistent storage (i.e. the name of
+     * the tunnel).
+     * @return The summary of the configuration.
+     */
+    @Throws(Exception::class)
+    fun summarize(name: String): TunnelSummary = TunnelSummary.of(load(name))
 }
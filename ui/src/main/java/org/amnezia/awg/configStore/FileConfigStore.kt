@@ -6,27 +6,44 @@ package org.amnezia.awg.configStore
 
 import android.content.Context
 import android.util.Log
+import org.amnezia.awg.BuildConfig
 import org.amnezia.awg.R
 import org.amnezia.awg.config.BadConfigException
 import org.amnezia.awg.config.Config
+import org.amnezia.awg.config.ConfigCodec
+import java.io.DataInputStream
+import java.io.DataOutputStream
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileNotFoundException
 import java.io.FileOutputStream
 import java.io.IOException
 import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * Configuration store that uses a `awg-quick`-style file for each configured tunnel.
+ *
+ * Next to each file, a binary form of the parsed configuration is cached, keyed on the size and
+ * modification time of the file and on the version of the app that wrote it, so that loading a
+ * configuration that has not changed since it was last loaded or saved does not have to parse it
+ * again. The cache starts with the tunnel's [TunnelSummary], which [summarize] reads on its own.
+ * The `awg-quick` file remains the source of truth: a missing, stale or unreadable cache is
+ * rebuilt from it.
  */
 class FileConfigStore(private val context: Context) : ConfigStore {
+    private val summaries = ConcurrentHashMap<String, TunnelSummary>()
+
     @Throws(IOException::class)
     override fun create(name: String, config: Config): Config {
         Log.d(TAG, "Creating configuration for tunnel $name")
         val file = fileFor(name)
         if (!file.createNewFile())
             throw IOException(context.getString(R.string.config_file_exists_error, file.name))
-        FileOutputStream(file, false).use { it.write(config.toAwgQuickString().toByteArray(StandardCharsets.UTF_8)) }
+        FileOutputStream(file, false).bufferedWriter(StandardCharsets.UTF_8).use {
+            config.appendAwgQuickString(it, false)
+        }
+        writeCache(name, file, config)
         return config
     }
 
@@ -36,6 +53,8 @@ class FileConfigStore(private val context: Context) : ConfigStore {
         val file = fileFor(name)
         if (!file.delete())
             throw IOException(context.getString(R.string.config_delete_error, file.name))
+        cacheFor(file).delete()
+        summaries.remove(name)
     }
 
     override fun enumerate(): Set<String> {
@@ -45,13 +64,74 @@ class FileConfigStore(private val context: Context) : ConfigStore {
             .toSet()
     }
 
+    private fun cacheFor(file: File): File {
+        return File(file.path.removeSuffix(".conf") + ".cache")
+    }
+
     private fun fileFor(name: String): File {
         return File(context.filesDir, "$name.conf")
     }
 
     @Throws(BadConfigException::class, IOException::class)
     override fun load(name: String): Config {
-        FileInputStream(fileFor(name)).use { stream -> return Config.parse(stream) }
+        val file = fileFor(name)
+        readCache(file) { stream ->
+            summaries[name] = TunnelSummary.readFrom(stream)
+            ConfigCodec.read(stream)
+        }?.let { return it }
+        val config = FileInputStream(file).use { stream -> Config.parse(stream) }
+        writeCache(name, file, config)
+        return config
+    }
+
+    /**
+     * Read the cache of [file] with [reader], positioned after the app version, size and
+     * modification time that the cache was made for, if those match this app and the file. Any
+     * other version of the app may lay out summaries or configurations differently.
+     */
+    private fun <T> readCache(file: File, reader: (DataInputStream) -> T): T? {
+        val cache = cacheFor(file)
+        if (!cache.isFile)
+            return null
+        return try {
+            DataInputStream(FileInputStream(cache).buffered()).use { stream ->
+                if (stream.readInt() != BuildConfig.VERSION_CODE ||
+                    stream.readLong() != file.length() ||
+                    stream.readLong() != file.lastModified())
+                    null
+                else
+                    reader(stream)
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Ignoring unreadable cache for ${file.name}", e)
+            null
+        }
+    }
+
+    /**
+     * Cache the parsed form of a configuration that was just read from or written to [file].
+     * This is best effort: failing to write the cache only costs parsing the file next time.
+     */
+    private fun writeCache(name: String, file: File, config: Config) {
+        val summary = TunnelSummary.of(config)
+        summaries[name] = summary
+        val cache = cacheFor(file)
+        val temporary = File(cache.path + ".tmp")
+        try {
+            DataOutputStream(FileOutputStream(temporary, false).buffered()).use { stream ->
+                stream.writeInt(BuildConfig.VERSION_CODE)
+                stream.writeLong(file.length())
+                stream.writeLong(file.lastModified())
+                summary.writeTo(stream)
+                ConfigCodec.write(config, stream)
+            }
+            if (!temporary.renameTo(cache))
+                throw IOException("Couldn't replace ${cache.name}")
+        } catch (e: IOException) {
+            Log.w(TAG, "Couldn't cache ${file.name}", e)
+            temporary.delete()
+            cache.delete()
+        }
     }
 
     @Throws(IOException::class)
@@ -64,6 +144,20 @@ class FileConfigStore(private val context: Context) : ConfigStore {
             if (!replacementFile.delete()) Log.w(TAG, "Couldn't delete marker file for new name $replacement")
             throw IOException(context.getString(R.string.config_rename_error, file.name))
         }
+        if (!cacheFor(file).renameTo(cacheFor(replacementFile)))
+            cacheFor(replacementFile).delete()
+        summaries.remove(name)?.let { summaries[replacement] = it }
+    }
+
+    @Throws(BadConfigException::class, IOException::class)
+    override fun summarize(name: String): TunnelSummary {
+        summaries[name]?.let { return it }
+        val cached = readCache(fileFor(name)) { stream -> TunnelSummary.readFrom(stream) }
+        if (cached != null)
+            return summaries.getOrPut(name) { cached }
+        // Loading records the summary, unless the cache could not be written.
+        val config = load(name)
+        return summaries[name] ?: TunnelSummary.of(config)
     }
 
     @Throws(IOException::class)
@@ -72,7 +166,10 @@ class FileConfigStore(private val context: Context) : ConfigStore {
         val file = fileFor(name)
         if (!file.isFile)
             throw FileNotFoundException(context.getString(R.string.config_not_found_error, file.name))
-        FileOutputStream(file, false).use { stream -> stream.write(config.toAwgQuickString().toByteArray(StandardCharsets.UTF_8)) }
+        FileOutputStream(file, false).bufferedWriter(StandardCharsets.UTF_8).use {
+            config.appendAwgQuickString(it, false)
+        }
+        writeCache(name, file, config)
         return config
     }
 
@@ -0,0 +1,459 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.amnezia.awg.configStore
+
+import android.content.Context
+import android.util.Log
+import org.amnezia.awg.R
+import org.amnezia.awg.config.BadConfigException
+import org.amnezia.awg.config.Config
+import org.amnezia.awg.crypto.Key
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.charset.StandardCharsets
+import java.util.zip.CRC32
+
+/**
+ * Configuration store that keeps every tunnel in one append-only data file, for devices that are
+ * provisioned with thousands of tunnels.
+ *
+ * The file is a header followed by frames. Each frame is one batch of changes, and is checksummed
+ * and synced before the index in memory reflects it, so a batch is either entirely in the file or,
+ * if writing it was interrupted, cut off when the file is next opened. A change either puts the
+ * `awg-quick` text and [TunnelSummary] of a tunnel or deletes a tunnel; renames are a put and a
+ * delete in one batch. Summaries are tagged with [TunnelSummary.VERSION] and length-prefixed, so
+ * one written in another layout is skipped and recomputed from the text when it is next asked for.
+ * The index maps each name to where its latest text is, so lookups do not depend on the number of
+ * tunnels. Once superseded records take up more of the file than live ones, the live ones are
+ * copied to a new file that replaces the old one with a rename.
+ *
+ * Tunnels stored by [FileConfigStore] are moved into the data file when it is opened.
+ */
+class IndexedConfigStore(private val context: Context) : ConfigStore {
+    private val file = dataFile(context)
+    private val index = HashMap<String, Entry>()
+    private var garbage = 0L
+    private var length = 0L
+    private var opened = false
+
+    private class Entry(val offset: Long, val length: Int, var summary: TunnelSummary?)
+
+    private class Put(val name: String, val text: ByteArray, val summary: TunnelSummary?)
+
+    /**
+     * Open the data file on first use, off the main thread, replaying it into the index and
+     * moving in any tunnels stored as separate files.
+     */
+    private fun ensureOpen() {
+        if (opened)
+            return
+        open()
+        migrate()
+        opened = true
+    }
+
+    private fun open() {
+        index.clear()
+        garbage = 0
+        val temporary = File(file.path + ".tmp")
+        temporary.delete()
+        // A file without a whole header was being created when the app stopped, so holds nothing.
+        if (file.length() < HEADER_LENGTH) {
+            writeHeader(temporary)
+            if (!temporary.renameTo(file))
+                throw IOException("Couldn't create ${file.name}")
+        }
+        val version = RandomAccessFile(file, "rw").use { data ->
+            val version = if (data.readInt() == FILE_MAGIC) data.readInt() else -1
+            if (version != VERSION && version != VERSION_UNTAGGED_SUMMARIES)
+                throw IOException("Unsupported tunnel data file ${file.name}")
+            var position = data.filePointer
+            while (true) {
+                val frame = try {
+                    readFrame(data)
+                } catch (e: IOException) {
+                    Log.w(TAG, "Discarding an interrupted batch at offset $position", e)
+                    null
+                } ?: break
+                replay(frame, position + FRAME_HEADER_LENGTH, version)
+                position = data.filePointer
+            }
+            if (position != data.length()) {
+                data.setLength(position)
+                data.fd.sync()
+            }
+            length = position
+            version
+        }
+        if (version != VERSION) {
+            Log.i(TAG, "Upgrading ${file.name} from version $version")
+            rewrite()
+        }
+    }
+
+    /**
+     * Read the frame at the current position of [data], or null at the end of the file.
+     */
+    private fun readFrame(data: RandomAccessFile): ByteArray? {
+        if (data.filePointer == data.length())
+            return null
+        if (data.readInt() != FRAME_MAGIC)
+            throw IOException("Bad frame marker")
+        val size = data.readInt()
+        val checksum = data.readInt()
+        if (size < 0 || size > data.length() - data.filePointer)
+            throw EOFException("Truncated frame")
+        val frame = ByteArray(size)
+        data.readFully(frame)
+        if (crc(frame) != checksum)
+            throw IOException("Bad frame checksum")
+        return frame
+    }
+
+    /**
+     * Apply the changes in [frame] to the index. A frame that does not decode is skipped whole,
+     * rather than half applied or keeping the file from opening.
+     */
+    private fun replay(frame: ByteArray, offset: Long, version: Int) {
+        val changes = try {
+            decode(frame, offset, version)
+        } catch (e: IOException) {
+            Log.e(TAG, "Skipping an unreadable batch at offset $offset", e)
+            return
+        }
+        for ((name, entry) in changes) {
+            val previous = if (entry != null) index.put(name, entry) else index.remove(name)
+            previous?.let { garbage += it.length }
+        }
+    }
+
+    /**
+     * Decode the changes in [frame], each a name and where its text now is or, for a delete, null.
+     */
+    private fun decode(frame: ByteArray, offset: Long, version: Int): List<Pair<String, Entry?>> {
+        val input = DataInputStream(ByteArrayInputStream(frame))
+        val changes = ArrayList<Pair<String, Entry?>>()
+        for (i in 0 until input.readInt()) {
+            val name = input.readUTF()
+            when (input.readByte()) {
+                OP_PUT -> {
+                    val summary = if (version == VERSION_UNTAGGED_SUMMARIES)
+                        readUntaggedSummary(input)
+                    else
+                        readSummary(input)
+                    val size = input.readInt()
+                    if (size < 0 || size > input.available())
+                        throw EOFException("Truncated configuration")
+                    // The stream has consumed exactly what precedes the text in the frame.
+                    val position = frame.size - input.available()
+                    changes.add(name to Entry(offset + position, size, summary))
+                    input.skipBytes(size)
+                }
+                OP_DELETE -> changes.add(name to null)
+                else -> throw IOException("Unknown operation in tunnel data file")
+            }
+        }
+        return changes
+    }
+
+    private fun migrate() {
+        val legacy = context.fileList().filter { it.endsWith(".conf") }
+        if (legacy.isEmpty())
+            return
+        Log.i(TAG, "Moving ${legacy.size} tunnels into ${file.name}")
+        val puts = ArrayList<Put>()
+        val migrated = ArrayList<String>()
+        for (fileName in legacy) {
+            val name = fileName.removeSuffix(".conf")
+            if (index.containsKey(name)) {
+                // Moved already, by a run that stopped before deleting the file.
+                migrated.add(name)
+                continue
+            }
+            val text = try {
+                File(context.filesDir, fileName).readBytes()
+            } catch (e: IOException) {
+                Log.e(TAG, "Leaving unreadable configuration $fileName in place", e)
+                continue
+            }
+            // One that does not parse is moved as it is, so that it is still listed and loading
+            // it reports why, as it did when it was a separate file.
+            val summary = try {
+                TunnelSummary.of(Config.parse(ByteArrayInputStream(text)))
+            } catch (e: Exception) {
+                Log.w(TAG, "Moving invalid configuration $fileName without a summary", e)
+                null
+            }
+            puts.add(Put(name, text, summary))
+            migrated.add(name)
+        }
+        commit(puts, emptyList())
+        for (name in migrated) {
+            File(context.filesDir, "$name.conf").delete()
+            File(context.filesDir, "$name.cache").delete()
+        }
+    }
+
+    /**
+     * Append one batch of changes and sync it, then apply it to the index. If writing fails, the
+     * index is unchanged and the next batch overwrites whatever part of this one was written.
+     */
+    private fun commit(puts: List<Put>, deletes: List<String>) {
+        if (puts.isEmpty() && deletes.isEmpty())
+            return
+        val offsets = appendFrame(file, puts, deletes)
+        puts.forEachIndexed { i, put ->
+            index.put(put.name, Entry(offsets[i], put.text.size, put.summary))?.let { garbage += it.length }
+        }
+        for (name in deletes)
+            index.remove(name)?.let { garbage += it.length }
+        if (garbage > COMPACTION_THRESHOLD && garbage > length / 2)
+            compact()
+    }
+
+    /**
+     * Write a frame at [length] in [target], sync it and advance [length] past it.
+     *
+     * @return where the text of each of [puts] is in [target]
+     */
+    private fun appendFrame(target: File, puts: List<Put>, deletes: List<String>): LongArray {
+        val bytes = ByteArrayOutputStream()
+        val out = DataOutputStream(bytes)
+        val offsets = LongArray(puts.size)
+        out.writeInt(puts.size + deletes.size)
+        puts.forEachIndexed { i, put ->
+            out.writeUTF(put.name)
+            out.writeByte(OP_PUT.toInt())
+            writeSummary(out, put.summary)
+            out.writeInt(put.text.size)
+            offsets[i] = length + FRAME_HEADER_LENGTH + out.size()
+            out.write(put.text)
+        }
+        for (name in deletes) {
+            out.writeUTF(name)
+            out.writeByte(OP_DELETE.toInt())
+        }
+        val frame = bytes.toByteArray()
+        RandomAccessFile(target, "rw").use { data ->
+            data.seek(length)
+            data.writeInt(FRAME_MAGIC)
+            data.writeInt(frame.size)
+            data.writeInt(crc(frame))
+            data.write(frame)
+            data.fd.sync()
+        }
+        length += FRAME_HEADER_LENGTH + frame.size
+        return offsets
+    }
+
+    private fun compact() {
+        try {
+            rewrite()
+        } catch (e: IOException) {
+            Log.w(TAG, "Couldn't compact ${file.name}", e)
+        }
+    }
+
+    /**
+     * Copy the live records into one frame of a new file and rename it over the old one. Until
+     * then the old file is untouched, and a new file left over by a crash is deleted on opening.
+     */
+    private fun rewrite() {
+        val temporary = File(file.path + ".tmp")
+        val puts = RandomAccessFile(file, "r").use { data ->
+            index.map { (name, entry) -> Put(name, read(data, entry), entry.summary) }
+        }
+        val previousLength = length
+        try {
+            writeHeader(temporary)
+            length = HEADER_LENGTH
+            val offsets = appendFrame(temporary, puts, emptyList())
+            if (!temporary.renameTo(file))
+                throw IOException("Couldn't replace ${file.name}")
+            puts.forEachIndexed { i, put -> index[put.name] = Entry(offsets[i], put.text.size, put.summary) }
+            garbage = 0
+        } catch (e: IOException) {
+            temporary.delete()
+            length = previousLength
+            throw e
+        }
+    }
+
+    private fun read(data: RandomAccessFile, entry: Entry): ByteArray {
+        val text = ByteArray(entry.length)
+        data.seek(entry.offset)
+        data.readFully(text)
+        return text
+    }
+
+    private fun put(name: String, config: Config): Put {
+        val text = ByteArrayOutputStream()
+        text.bufferedWriter(StandardCharsets.UTF_8).use { config.appendAwgQuickString(it, false) }
+        return Put(name, text.toByteArray(), TunnelSummary.of(config))
+    }
+
+    @Throws(IOException::class)
+    @Synchronized
+    override fun create(name: String, config: Config): Config {
+        ensureOpen()
+        Log.d(TAG, "Creating configuration for tunnel $name")
+        if (index.containsKey(name))
+            throw IOException(context.getString(R.string.config_exists_error, name))
+        commit(listOf(put(name, config)), emptyList())
+        return config
+    }
+
+    /**
+     * Create many tunnels in one batch, which is written and synced once.
+     */
+    @Throws(IOException::class)
+    @Synchronized
+    override fun createAll(configs: Map<String, Config>) {
+        ensureOpen()
+        for (name in configs.keys) {
+            if (index.containsKey(name))
+                throw IOException(context.getString(R.string.config_exists_error, name))
+        }
+        commit(configs.map { (name, config) -> put(name, config) }, emptyList())
+    }
+
+    @Throws(IOException::class)
+    @Synchronized
+    override fun delete(name: String) {
+        ensureOpen()
+        Log.d(TAG, "Deleting configuration for tunnel $name")
+        if (!index.containsKey(name))
+            throw IOException(context.getString(R.string.config_delete_error, name))
+        commit(emptyList(), listOf(name))
+    }
+
+    @Synchronized
+    override fun enumerate(): Set<String> {
+        ensureOpen()
+        return HashSet(index.keys)
+    }
+
+    @Throws(BadConfigException::class, IOException::class)
+    override fun load(name: String): Config {
+        val text = synchronized(this) {
+            ensureOpen()
+            val entry = index[name] ?: throw FileNotFoundException(context.getString(R.string.config_not_found_error, name))
+            RandomAccessFile(file, "r").use { read(it, entry) }
+        }
+        return Config.parse(ByteArrayInputStream(text))
+    }
+
+    @Throws(IOException::class)
+    @Synchronized
+    override fun rename(name: String, replacement: String) {
+        ensureOpen()
+        Log.d(TAG, "Renaming configuration for tunnel $name to $replacement")
+        if (index.containsKey(replacement))
+            throw IOException(context.getString(R.string.config_exists_error, replacement))
+        val entry = index[name] ?: throw IOException(context.getString(R.string.config_rename_error, name))
+        val text = RandomAccessFile(file, "r").use { read(it, entry) }
+        commit(listOf(Put(replacement, text, entry.summary)), listOf(name))
+    }
+
+    @Throws(IOException::class)
+    @Synchronized
+    override fun save(name: String, config: Config): Config {
+        ensureOpen()
+        Log.d(TAG, "Saving configuration for tunnel $name")
+        if (!index.containsKey(name))
+            throw FileNotFoundException(context.getString(R.string.config_not_found_error, name))
+        commit(listOf(put(name, config)), emptyList())
+        return config
+    }
+
+    @Throws(BadConfigException::class, IOException::class)
+    @Synchronized
+    override fun summarize(name: String): TunnelSummary {
+        ensureOpen()
+        val entry = index[name] ?: throw FileNotFoundException(context.getString(R.string.config_not_found_error, name))
+        entry.summary?.let { return it }
+        // Written in another layout, so recomputed once and then kept by the next compaction.
+        val text = RandomAccessFile(file, "r").use { read(it, entry) }
+        return TunnelSummary.of(Config.parse(ByteArrayInputStream(text))).also { entry.summary = it }
+    }
+
+    companion object {
+        private const val TAG = "AmneziaWG/IndexedConfigStore"
+        private const val FILE_MAGIC = 0x41574744 // "AWGD"
+        private const val FRAME_MAGIC = 0x41574746 // "AWGF"
+        private const val VERSION = 2
+        private const val VERSION_UNTAGGED_SUMMARIES = 1
+        private const val HEADER_LENGTH = 8L
+        private const val FRAME_HEADER_LENGTH = 12
+        private const val OP_PUT: Byte = 1
+        private const val OP_DELETE: Byte = 2
+        private const val COMPACTION_THRESHOLD = 1L shl 20
+
+        private fun crc(bytes: ByteArray): Int {
+            val crc = CRC32()
+            crc.update(bytes)
+            return crc.value.toInt()
+        }
+
+        private fun dataFile(context: Context) = File(context.filesDir, "tunnels.db")
+
+        private fun writeSummary(out: DataOutputStream, summary: TunnelSummary?) {
+            if (summary == null) {
+                out.writeByte(0)
+                out.writeShort(0)
+                return
+            }
+            val bytes = ByteArrayOutputStream()
+            summary.writeTo(DataOutputStream(bytes))
+            out.writeByte(TunnelSummary.VERSION)
+            out.writeShort(bytes.size())
+            bytes.writeTo(out)
+        }
+
+        /**
+         * Read a summary tagged with its layout version, or null if it is not in the current one.
+         */
+        private fun readSummary(input: DataInputStream): TunnelSummary? {
+            val version = input.readUnsignedByte()
+            val bytes = ByteArray(input.readUnsignedShort())
+            input.readFully(bytes)
+            if (version != TunnelSummary.VERSION)
+                return null
+            return TunnelSummary.readFrom(DataInputStream(ByteArrayInputStream(bytes)))
+        }
+
+        /**
+         * Read a summary from a version 1 file, which has them in the first layout with no tag. The
+         * layout is spelled out here so that changing [TunnelSummary.writeTo] cannot break it.
+         */
+        private fun readUntaggedSummary(input: DataInputStream): TunnelSummary {
+            val peerCount = input.readInt()
+            val endpointHost = if (input.readBoolean()) input.readUTF() else null
+            val publicKey = ByteArray(Key.Format.BINARY.length).also { input.readFully(it) }
+            return TunnelSummary(peerCount, endpointHost, Key.fromBytes(publicKey), input.readBoolean())
+        }
+
+        private fun writeHeader(target: File) {
+            RandomAccessFile(target, "rw").use { data ->
+                data.setLength(0)
+                data.writeInt(FILE_MAGIC)
+                data.writeInt(VERSION)
+                data.fd.sync()
+            }
+        }
+
+        /**
+         * Whether tunnels have been moved into a data file, which then has to be kept using.
+         */
+        fun exists(context: Context) = dataFile(context).exists()
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.amnezia.awg.configStore
+
+import org.amnezia.awg.config.Config
+import org.amnezia.awg.crypto.Key
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+
+/**
+ * The few facts about a tunnel's configuration that lists of tunnels show, small enough to keep
+ * for every tunnel without holding on to, or even parsing, the whole [Config].
+ */
+data class TunnelSummary(
+    val peerCount: Int,
+    /** The host of the first peer that has an endpoint, if any. */
+    val endpointHost: String?,
+    val publicKey: Key,
+    /** Whether any peer routes all IPv4 or all IPv6 traffic. */
+    val hasDefaultRoute: Boolean
+) {
+    @Throws(IOException::class)
+    fun writeTo(out: DataOutput) {
+        out.writeInt(peerCount)
+        out.writeBoolean(endpointHost != null)
+        if (endpointHost != null)
+            out.writeUTF(endpointHost)
+        out.write(publicKey.bytes)
+        out.writeBoolean(hasDefaultRoute)
+    }
+
+    companion object {
+        /**
+         * The version of the layout that [writeTo] writes and [readFrom] reads. Change it whenever
+         * that layout changes, so that stored summaries in the old one are recomputed instead.
+         */
+        const val VERSION = 1
+
+        fun of(config: Config): TunnelSummary {
+            val peers = config.peers
+            return TunnelSummary(
+                peers.size,
+                peers.firstNotNullOfOrNull { it.endpoint.orElse(null) }?.host,
+                config.`interface`.keyPair.publicKey,
+                peers.any { peer -> peer.effectiveAllowedIps.any { it.mask == 0 } }
+            )
+        }
+
+        @Throws(IOException::class)
+        fun readFrom(input: DataInput): TunnelSummary {
+            val peerCount = input.readInt()
+            val endpointHost = if (input.readBoolean()) input.readUTF() else null
+            val publicKey = ByteArray(Key.Format.BINARY.length).also { input.readFully(it) }
+            return TunnelSummary(peerCount, endpointHost, Key.fromBytes(publicKey), input.readBoolean())
+        }
+    }
+}
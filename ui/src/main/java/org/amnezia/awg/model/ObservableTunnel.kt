@@ -10,6 +10,7 @@ import androidx.databinding.Bindable
 import org.amnezia.awg.BR
 import org.amnezia.awg.backend.Statistics
 import org.amnezia.awg.backend.Tunnel
+import org.amnezia.awg.configStore.TunnelSummary
 import org.amnezia.awg.databinding.Keyed
 import org.amnezia.awg.util.applicationScope
 import org.amnezia.awg.config.Config
@@ -129,6 +130,37 @@ class ObservableTunnel internal constructor(
         return config
     }
 
+    /**
+     * Drop the cached configuration to save memory. Bindings are not notified, as they would only
+     * load it again; whoever needs it next loads it through [getConfigAsync].
+     */
+    fun onConfigEvicted() {
+        config = null
+    }
+
+
+    @get:Bindable
+    var summary: TunnelSummary? = null
+        get() {
+            if (field == null)
+            // Opportunistically fetch this if we don't have a cached one, and rely on data bindings to update it eventually
+                applicationScope.launch {
+                    try {
+                        manager.getTunnelSummary(this@ObservableTunnel)
+                    } catch (e: Throwable) {
+                        Log.e(TAG, Log.getStackTraceString(e))
+                    }
+                }
+            return field
+        }
+        private set
+
+    fun onSummaryChanged(summary: TunnelSummary?): TunnelSummary? {
+        this.summary = summary
+        notifyPropertyChanged(BR.summary)
+        return summary
+    }
+
 
     @get:Bindable
     var statistics: Statistics? = null
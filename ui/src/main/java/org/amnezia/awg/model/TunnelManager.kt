@@ -5,6 +5,7 @@
 package org.amnezia.awg.model
 
 import android.content.BroadcastReceiver
+import android.content.ComponentCallbacks2
 import android.content.Context
 import android.content.Intent
 import android.os.Build
@@ -21,17 +22,22 @@ import org.amnezia.awg.backend.Statistics
 import org.amnezia.awg.backend.StatusCallback
 import org.amnezia.awg.backend.Tunnel
 import org.amnezia.awg.configStore.ConfigStore
+import org.amnezia.awg.configStore.TunnelSummary
 import org.amnezia.awg.databinding.ObservableSortedKeyedArrayList
 import org.amnezia.awg.util.ErrorMessages
 import org.amnezia.awg.util.UserKnobs
 import org.amnezia.awg.util.applicationScope
 import org.amnezia.awg.config.Config
+import org.amnezia.awg.crypto.Key
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.future.await
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 
@@ -43,13 +49,39 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
     private val context: Context = get()
     private val tunnelMap: ObservableSortedKeyedArrayList<String, ObservableTunnel> = ObservableSortedKeyedArrayList(TunnelComparator)
     private var haveLoaded = false
+    // Tunnels holding a loaded config, least recently used first. Only touched on the main thread.
+    private val loadedConfigs = LinkedHashMap<ObservableTunnel, Unit>(16, 0.75f, true)
 
     private fun addToList(name: String, config: Config?, state: Tunnel.State): ObservableTunnel {
         val tunnel = ObservableTunnel(this, name, config, state)
         tunnelMap.add(tunnel)
+        if (config != null)
+            onConfigLoaded(tunnel)
         return tunnel
     }
 
+    private fun onConfigLoaded(tunnel: ObservableTunnel) {
+        loadedConfigs[tunnel] = Unit
+        trimConfigs(MAX_LOADED_CONFIGS)
+    }
+
+    private fun trimConfigs(limit: Int) {
+        val iterator = loadedConfigs.keys.iterator()
+        while (loadedConfigs.size > limit) {
+            iterator.next().onConfigEvicted()
+            iterator.remove()
+        }
+    }
+
+    /**
+     * Drop cached configs when the system runs low on memory: half of them while the app is
+     * running, all of them once it is running low or in the background. They are loaded again,
+     * from the store's cache, when next needed.
+     */
+    fun onTrimMemory(level: Int) {
+        trimConfigs(if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) 0 else loadedConfigs.size / 2)
+    }
+
     suspend fun getTunnels(): ObservableSortedKeyedArrayList<String, ObservableTunnel> = tunnels.await()
 
     suspend fun create(name: String, config: Config?): ObservableTunnel = withContext(Dispatchers.Main.immediate) {
@@ -60,6 +92,32 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         addToList(name, withContext(Dispatchers.IO) { configStore.create(name, config!!) }, Tunnel.State.DOWN)
     }
 
+    /**
+     * Create many tunnels at once, such as those of an imported archive, with one call to
+     * [ConfigStore.createAll]. Tunnels that can't be created are left out, and why is added to
+     * [throwables].
+     */
+    suspend fun createAll(configs: Map<String, Config>, throwables: MutableCollection<Throwable>): List<ObservableTunnel> = withContext(Dispatchers.Main.immediate) {
+        val batch = LinkedHashMap<String, Config>()
+        for ((name, config) in configs) {
+            if (Tunnel.isNameInvalid(name))
+                throwables.add(IllegalArgumentException(context.getString(R.string.tunnel_error_invalid_name)))
+            else if (tunnelMap.containsKey(name))
+                throwables.add(IllegalArgumentException(context.getString(R.string.tunnel_error_already_exists, name)))
+            else
+                batch[name] = config
+        }
+        if (batch.isEmpty())
+            return@withContext emptyList()
+        try {
+            withContext(Dispatchers.IO) { configStore.createAll(batch) }
+        } catch (e: Throwable) {
+            throwables.add(e)
+            return@withContext emptyList()
+        }
+        batch.map { (name, config) -> addToList(name, config, Tunnel.State.DOWN) }
+    }
+
     suspend fun delete(tunnel: ObservableTunnel) = withContext(Dispatchers.Main.immediate) {
         val originalState = tunnel.state
         val wasLastUsed = tunnel == lastUsedTunnel
@@ -69,12 +127,13 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         tunnelMap.remove(tunnel)
         try {
             if (originalState == Tunnel.State.UP)
-                withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.DOWN, null) }
+                getBackend().setStateAsync(tunnel, Tunnel.State.DOWN, null).await()
             try {
                 withContext(Dispatchers.IO) { configStore.delete(tunnel.name) }
+                loadedConfigs.remove(tunnel)
             } catch (e: Throwable) {
                 if (originalState == Tunnel.State.UP)
-                    withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.UP, tunnel.config) }
+                    getBackend().setStateAsync(tunnel, Tunnel.State.UP, tunnel.getConfigAsync()).await()
                 throw e
             }
         } catch (e: Throwable) {
@@ -96,7 +155,13 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         }
 
     suspend fun getTunnelConfig(tunnel: ObservableTunnel): Config = withContext(Dispatchers.Main.immediate) {
-        tunnel.onConfigChanged(withContext(Dispatchers.IO) { configStore.load(tunnel.name) })!!
+        val config = tunnel.onConfigChanged(withContext(Dispatchers.IO) { configStore.load(tunnel.name) })!!
+        onConfigLoaded(tunnel)
+        config
+    }
+
+    suspend fun getTunnelSummary(tunnel: ObservableTunnel): TunnelSummary = withContext(Dispatchers.Main.immediate) {
+        tunnel.onSummaryChanged(withContext(Dispatchers.IO) { configStore.summarize(tunnel.name) })!!
     }
 
     fun onCreate() {
@@ -129,8 +194,20 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
                             }
                         }
                     }
+
+                    override fun onStatusEvent(tunnel: Tunnel, peer: Key, event: StatusCallback.Event, connected: Boolean) {
+                        applicationScope.launch(Dispatchers.Main) {
+                            val observableTunnel = tunnel as? ObservableTunnel ?: return@launch
+                            if (observableTunnel.state != Tunnel.State.UP)
+                                return@launch
+                            observableTunnel.onConnectionStatusChanged(
+                                if (connected) ObservableTunnel.ConnectionStatus.CONNECTED
+                                else ObservableTunnel.ConnectionStatus.CONNECTING
+                            )
+                        }
+                    }
                 }
-                
+
                 backend.setStatusCallback(statusCallback)
             } catch (e: Throwable) {
                 Log.e(TAG, "Failed to setup status callbacks", e)
@@ -154,7 +231,12 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
     private fun refreshTunnelStates() {
         applicationScope.launch {
             try {
-                val running = withContext(Dispatchers.IO) { getBackend().runningTunnelNames }
+                val running = withContext(Dispatchers.IO) {
+                    val backend = getBackend()
+                    // Something outside the app may have changed which tunnels are up.
+                    backend.invalidateState()
+                    backend.runningTunnelNames
+                }
                 for (tunnel in tunnelMap)
                     tunnel.onStateChanged(if (running.contains(tunnel.name)) Tunnel.State.UP else Tunnel.State.DOWN)
             } catch (e: Throwable) {
@@ -183,10 +265,11 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
     }
 
     suspend fun setTunnelConfig(tunnel: ObservableTunnel, config: Config): Config = withContext(Dispatchers.Main.immediate) {
-        tunnel.onConfigChanged(withContext(Dispatchers.IO) {
-            getBackend().setState(tunnel, tunnel.state, config)
-            configStore.save(tunnel.name, config)
-        })!!
+        getBackend().setStateAsync(tunnel, tunnel.state, config).await()
+        val (saved, summary) = withContext(Dispatchers.IO) { configStore.save(tunnel.name, config) to configStore.summarize(tunnel.name) }
+        tunnel.onSummaryChanged(summary)
+        onConfigLoaded(tunnel)
+        tunnel.onConfigChanged(saved)!!
     }
 
     suspend fun setTunnelName(tunnel: ObservableTunnel, name: String): String = withContext(Dispatchers.Main.immediate) {
@@ -205,11 +288,11 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         var newName: String? = null
         try {
             if (originalState == Tunnel.State.UP)
-                withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.DOWN, null) }
+                getBackend().setStateAsync(tunnel, Tunnel.State.DOWN, null).await()
             withContext(Dispatchers.IO) { configStore.rename(tunnel.name, name) }
             newName = tunnel.onNameChanged(name)
             if (originalState == Tunnel.State.UP)
-                withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.UP, tunnel.config) }
+                getBackend().setStateAsync(tunnel, Tunnel.State.UP, tunnel.getConfigAsync()).await()
         } catch (e: Throwable) {
             throwable = e
             // On failure, we don't know what state the tunnel might be in. Fix that.
@@ -228,9 +311,13 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         var newState = tunnel.state
         var throwable: Throwable? = null
         try {
-            newState = withContext(Dispatchers.IO) { getBackend().setState(tunnel, state, tunnel.getConfigAsync()) }
+            newState = getBackend().setStateAsync(tunnel, state, tunnel.getConfigAsync()).await()
             if (newState == Tunnel.State.UP)
                 lastUsedTunnel = tunnel
+        } catch (e: CancellationException) {
+            // Superseded by a newer transition of this tunnel, which reports the final state.
+            ensureActive()
+            return@withContext tunnel.state
         } catch (e: Throwable) {
             throwable = e
         }
@@ -281,5 +368,6 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
 
     companion object {
         private const val TAG = "AmneziaWG/TunnelManager"
+        private const val MAX_LOADED_CONFIGS = 16
     }
 }
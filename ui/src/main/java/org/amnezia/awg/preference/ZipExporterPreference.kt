@@ -52,9 +52,12 @@ class ZipExporterPreference(context: Context, attrs: AttributeSet?) : Preference
                     }
                     try {
                         ZipOutputStream(outputFile.outputStream).use { zip ->
+                            // Not closed on its own, as that would close the zip stream too.
+                            val writer = zip.bufferedWriter(StandardCharsets.UTF_8)
                             for (i in configs.indices) {
                                 zip.putNextEntry(ZipEntry(tunnels[i].name + ".conf"))
-                                zip.write(configs[i].toAwgQuickString().toByteArray(StandardCharsets.UTF_8))
+                                configs[i].appendAwgQuickString(writer, false)
+                                writer.flush()
                             }
                             zip.closeEntry()
                         }
@@ -14,4 +14,7 @@ object AdminKnobs {
     val disableConfigExport: Boolean
         get() = restrictions?.applicationRestrictions?.getBoolean("disable_config_export", false)
             ?: false
+    val useIndexedConfigStore: Boolean
+        get() = restrictions?.applicationRestrictions?.getBoolean("use_indexed_config_store", false)
+            ?: false
 }
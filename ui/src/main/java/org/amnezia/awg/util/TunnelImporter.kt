@@ -30,7 +30,8 @@ import java.util.zip.ZipInputStream
 object TunnelImporter {
     suspend fun importTunnel(contentResolver: ContentResolver, uri: Uri, messageCallback: (CharSequence) -> Unit) = withContext(Dispatchers.IO) {
         val context = Application.get().applicationContext
-        val futureTunnels = ArrayList<Deferred<ObservableTunnel>>()
+        val futureTunnels = ArrayList<Deferred<List<ObservableTunnel>>>()
+        val configs = LinkedHashMap<String, Config>()
         val throwables = ArrayList<Throwable>()
         try {
             val columns = arrayOf(OpenableColumns.DISPLAY_NAME)
@@ -80,13 +81,18 @@ object TunnelImporter {
                             throwables.add(e)
                             null
                         }?.let {
-                            val nameCopy = name
-                            futureTunnels.add(async(SupervisorJob()) { Application.getTunnelManager().create(nameCopy, it) })
+                            if (configs.containsKey(name))
+                                throwables.add(IllegalArgumentException(context.getString(R.string.tunnel_error_already_exists, name)))
+                            else
+                                configs[name] = it
                         }
                     }
                 }
+                // Created in one batch rather than one by one, which matters for large archives.
+                if (configs.isNotEmpty())
+                    futureTunnels.add(async(SupervisorJob()) { Application.getTunnelManager().createAll(configs, throwables) })
             } else {
-                futureTunnels.add(async(SupervisorJob()) { Application.getTunnelManager().create(name, Config.parse(contentResolver.openInputStream(uri)!!)) })
+                futureTunnels.add(async(SupervisorJob()) { listOf(Application.getTunnelManager().create(name, Config.parse(contentResolver.openInputStream(uri)!!))) })
             }
 
             if (futureTunnels.isEmpty()) {
@@ -96,12 +102,12 @@ object TunnelImporter {
                     require(throwables.isNotEmpty()) { context.getString(R.string.no_configs_error) }
                 }
             }
-            val tunnels = futureTunnels.mapNotNull {
+            val tunnels = futureTunnels.flatMap {
                 try {
                     it.await()
                 } catch (e: Throwable) {
                     throwables.add(e)
-                    null
+                    emptyList()
                 }
             }
             withContext(Dispatchers.Main.immediate) { onTunnelImportFinished(tunnels, throwables, messageCallback) }
@@ -40,6 +40,13 @@ class PeerProxy : BaseObservable, Parcelable {
             notifyPropertyChanged(BR.endpoint)
         }
 
+    @get:Bindable
+    var excludedIps: String = ""
+        set(value) {
+            field = value
+            notifyPropertyChanged(BR.excludedIps)
+        }
+
     @get:Bindable
     var persistentKeepalive: String = ""
         set(value) {
@@ -72,6 +79,7 @@ class PeerProxy : BaseObservable, Parcelable {
     private constructor(parcel: Parcel) {
         allowedIps = parcel.readString() ?: ""
         endpoint = parcel.readString() ?: ""
+        excludedIps = parcel.readString() ?: ""
         persistentKeepalive = parcel.readString() ?: ""
         preSharedKey = parcel.readString() ?: ""
         publicKey = parcel.readString() ?: ""
@@ -80,6 +88,7 @@ class PeerProxy : BaseObservable, Parcelable {
     constructor(other: Peer) {
         allowedIps = Attribute.join(other.allowedIps)
         endpoint = other.endpoint.map { it.toString() }.orElse("")
+        excludedIps = Attribute.join(other.excludedIps)
         persistentKeepalive = other.persistentKeepalive.map { it.toString() }.orElse("")
         preSharedKey = other.preSharedKey.map { it.toBase64() }.orElse("")
         publicKey = other.publicKey.toBase64()
@@ -162,6 +171,7 @@ class PeerProxy : BaseObservable, Parcelable {
         val builder = Peer.Builder()
         if (allowedIps.isNotEmpty()) builder.parseAllowedIPs(allowedIps)
         if (endpoint.isNotEmpty()) builder.parseEndpoint(endpoint)
+        if (excludedIps.isNotEmpty()) builder.parseExcludedIPs(excludedIps)
         if (persistentKeepalive.isNotEmpty()) builder.parsePersistentKeepalive(persistentKeepalive)
         if (preSharedKey.isNotEmpty()) builder.parsePreSharedKey(preSharedKey)
         if (publicKey.isNotEmpty()) builder.parsePublicKey(publicKey)
@@ -203,6 +213,7 @@ class PeerProxy : BaseObservable, Parcelable {
     override fun writeToParcel(dest: Parcel, flags: Int) {
         dest.writeString(allowedIps)
         dest.writeString(endpoint)
+        dest.writeString(excludedIps)
         dest.writeString(persistentKeepalive)
         dest.writeString(preSharedKey)
         dest.writeString(publicKey)
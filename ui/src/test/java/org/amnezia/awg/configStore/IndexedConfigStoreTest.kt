@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.amnezia.awg.configStore
+
+import android.content.ContextWrapper
+import org.amnezia.awg.config.BadConfigException
+import org.amnezia.awg.config.Config
+import org.amnezia.awg.crypto.Key
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.charset.StandardCharsets
+import java.util.Random
+import java.util.zip.CRC32
+
+class IndexedConfigStoreTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val context by lazy {
+        val dir = folder.root
+        object : ContextWrapper(null) {
+            override fun getFilesDir() = dir
+            override fun fileList(): Array<String> = dir.list() ?: emptyArray()
+        }
+    }
+
+    private val dataFile by lazy { File(folder.root, "tunnels.db") }
+
+    private fun config(random: Random, peers: Int = 1): Config {
+        val key = ByteArray(Key.Format.BINARY.length)
+        val text = StringBuilder()
+        random.nextBytes(key)
+        text.append("[Interface]\nPrivateKey = ").append(Key.fromBytes(key).toBase64()).append("\nAddress = 10.0.0.1/32\n")
+        for (i in 0 until peers) {
+            random.nextBytes(key)
+            text.append("[Peer]\nPublicKey = ").append(Key.fromBytes(key).toBase64())
+                .append("\nAllowedIPs = 10.").append(i shr 8).append('.').append(i and 0xff).append(".0/24\n")
+        }
+        return Config.parse(ByteArrayInputStream(text.toString().toByteArray(StandardCharsets.UTF_8)))
+    }
+
+    private fun assertStored(store: ConfigStore, expected: Map<String, Config>) {
+        assertEquals(expected.keys, store.enumerate())
+        for ((name, config) in expected) {
+            assertEquals(config.toAwgQuickString(), store.load(name).toAwgQuickString())
+            assertEquals(TunnelSummary.of(config), store.summarize(name))
+        }
+    }
+
+    /**
+     * Write a data file of [version] by hand, holding [config] as [name] with the summary
+     * [writeSummary] writes.
+     */
+    private fun writeDataFile(version: Int, name: String, config: Config, writeSummary: (DataOutputStream) -> Unit) {
+        val text = config.toAwgQuickString().toByteArray(StandardCharsets.UTF_8)
+        val payload = ByteArrayOutputStream()
+        DataOutputStream(payload).use {
+            it.writeInt(1)
+            it.writeUTF(name)
+            it.writeByte(1)
+            writeSummary(it)
+            it.writeInt(text.size)
+            it.write(text)
+        }
+        val frame = payload.toByteArray()
+        val crc = CRC32()
+        crc.update(frame)
+        DataOutputStream(dataFile.outputStream()).use {
+            it.writeInt(0x41574744)
+            it.writeInt(version)
+            it.writeInt(0x41574746)
+            it.writeInt(frame.size)
+            it.writeInt(crc.value.toInt())
+            it.write(frame)
+        }
+    }
+
+    @Test
+    fun changes_are_replayed_on_opening() {
+        val random = Random(42)
+        val expected = LinkedHashMap<String, Config>()
+        val store = IndexedConfigStore(context)
+        for (name in listOf("alpha", "beta", "gamma"))
+            expected[name] = store.create(name, config(random))
+        val batch = mapOf("delta" to config(random), "epsilon" to config(random))
+        store.createAll(batch)
+        expected.putAll(batch)
+        expected["beta"] = store.save("beta", config(random, 3))
+        store.rename("gamma", "zeta")
+        expected["zeta"] = expected.remove("gamma")!!
+        store.delete("alpha")
+        expected.remove("alpha")
+        assertStored(store, expected)
+        assertStored(IndexedConfigStore(context), expected)
+    }
+
+    @Test
+    fun interrupted_batches_are_cut_off() {
+        val random = Random(42)
+        val first = config(random)
+        val store = IndexedConfigStore(context)
+        store.create("first", first)
+        val length = dataFile.length()
+        store.create("second", config(random))
+        RandomAccessFile(dataFile, "rw").use { it.setLength(length + 20) }
+
+        val reopened = IndexedConfigStore(context)
+        assertStored(reopened, mapOf("first" to first))
+        assertEquals(length, dataFile.length())
+        val third = reopened.create("third", config(random))
+        assertStored(IndexedConfigStore(context), mapOf("first" to first, "third" to third))
+    }
+
+    @Test
+    fun interrupted_header_is_rewritten() {
+        dataFile.writeBytes(byteArrayOf(0x41, 0x57))
+        val config = config(Random(42))
+        IndexedConfigStore(context).create("tunnel", config)
+        assertStored(IndexedConfigStore(context), mapOf("tunnel" to config))
+    }
+
+    @Test
+    fun version_1_files_are_upgraded() {
+        val config = config(Random(42))
+        writeDataFile(1, "tunnel", config) { TunnelSummary.of(config).writeTo(it) }
+        assertStored(IndexedConfigStore(context), mapOf("tunnel" to config))
+        assertEquals(2, DataInputStream(dataFile.inputStream()).use { it.readInt(); it.readInt() })
+        assertStored(IndexedConfigStore(context), mapOf("tunnel" to config))
+    }
+
+    @Test
+    fun summaries_in_other_layouts_are_recomputed() {
+        val config = config(Random(42))
+        writeDataFile(2, "tunnel", config) {
+            it.writeByte(TunnelSummary.VERSION + 1)
+            it.writeShort(3)
+            it.write(byteArrayOf(1, 2, 3))
+        }
+        assertStored(IndexedConfigStore(context), mapOf("tunnel" to config))
+    }
+
+    @Test
+    fun superseded_records_are_compacted() {
+        val random = Random(42)
+        val store = IndexedConfigStore(context)
+        val small = store.create("small", config(random))
+        var large = store.create("large", config(random, 2000))
+        val initialLength = dataFile.length()
+        var previousLength = initialLength
+        var compacted = false
+        for (attempt in 1..20) {
+            large = store.save("large", config(random, 2000))
+            if (dataFile.length() < previousLength) {
+                compacted = true
+                break
+            }
+            previousLength = dataFile.length()
+        }
+        // Only once the superseded records pass the threshold are the live ones copied.
+        assertTrue(compacted)
+        assertTrue(previousLength > 1 shl 20)
+        assertTrue(dataFile.length() < 2 * initialLength)
+        assertFalse(File(dataFile.path + ".tmp").exists())
+        val expected = mapOf("small" to small, "large" to large)
+        assertStored(store, expected)
+        assertStored(IndexedConfigStore(context), expected)
+    }
+
+    @Test
+    fun separate_files_are_migrated() {
+        val random = Random(42)
+        val legacy = config(random)
+        File(folder.root, "legacy.conf").writeText(legacy.toAwgQuickString())
+        File(folder.root, "legacy.cache").writeBytes(byteArrayOf(1, 2, 3))
+        File(folder.root, "broken.conf").writeText("[Interface]\nPrivateKey = nonsense\n")
+
+        val store = IndexedConfigStore(context)
+        assertEquals(setOf("legacy", "broken"), store.enumerate())
+        assertStored(store, mapOf("legacy" to legacy))
+        assertFalse(File(folder.root, "legacy.conf").exists())
+        assertFalse(File(folder.root, "legacy.cache").exists())
+        assertFalse(File(folder.root, "broken.conf").exists())
+        assertTrue(IndexedConfigStore.exists(context))
+
+        // The invalid one is kept as it was, and loading it still says what is wrong with it.
+        val reopened = IndexedConfigStore(context)
+        assertEquals(setOf("legacy", "broken"), reopened.enumerate())
+        assertStored(reopened, mapOf("legacy" to legacy))
+        assertThrows(BadConfigException::class.java) { reopened.load("broken") }
+        assertThrows(BadConfigException::class.java) { reopened.summarize("broken") }
+    }
+}